@@ -0,0 +1,22 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+/**
+ * A scheduled virtual appointment that has ended and is a candidate for importing its hcw@home
+ * consultation into OpenMRS, it is read with the uuids of its patient and provider so that no
+ * further queries are needed to create the OpenMRS encounter and obs.
+ *
+ * @param id the appointment id
+ * @param patientId the patient id
+ * @param uuid the appointment uuid
+ * @param patientUuid the patient uuid
+ * @param providerUuid the uuid of the appointment provider, null if the appointment has none
+ */
+public record AppointmentCandidate(Integer id, Integer patientId, String uuid, String patientUuid,
+                                   String providerUuid) {}
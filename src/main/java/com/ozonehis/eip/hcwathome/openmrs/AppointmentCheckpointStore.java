@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists the progress of the {@link AppointmentsTask} in the management database. A checkpoint is
+ * kept for each ended appointment that could not yet be completed, it records how far the appointment
+ * got and when it should be checked again. The interval between checks doubles with each attempt up
+ * to a maximum, once the retry horizon has elapsed since the first check the appointment is parked
+ * and no longer checked. The watermark is the time up to which new candidates have been scanned,
+ * later runs only scan appointments that ended, were created or were changed after it, candidates
+ * that already have a checkpoint are left to the retry schedule.
+ */
+@Slf4j
+@Component
+public class AppointmentCheckpointStore implements InitializingBean {
+	
+	protected static final String WATERMARK_NAME = "ended_appointments";
+	
+	protected static final String SQL_CREATE_CHECKPOINT_TABLE = "CREATE TABLE IF NOT EXISTS "
+	        + "hcw_appointment_task_checkpoint (appointment_id INT NOT NULL PRIMARY KEY, appointment_uuid "
+	        + "VARCHAR(38) NOT NULL, stage VARCHAR(50) NOT NULL, attempts INT NOT NULL, first_checked BIGINT NOT NULL, "
+	        + "last_checked BIGINT NOT NULL, next_check BIGINT NOT NULL, parked BOOLEAN NOT NULL)";
+	
+	protected static final String SQL_CREATE_WATERMARK_TABLE = "CREATE TABLE IF NOT EXISTS "
+	        + "hcw_appointment_task_watermark (name VARCHAR(50) NOT NULL PRIMARY KEY, watermark VARCHAR(30) NOT NULL, "
+	        + "date_changed BIGINT NOT NULL)";
+	
+	protected static final String QUERY_DUE = "SELECT appointment_id FROM hcw_appointment_task_checkpoint WHERE "
+	        + "next_check <= ? AND parked = ? AND appointment_id > ? ORDER BY appointment_id LIMIT ?";
+	
+	protected static final String QUERY_ATTEMPTS = "SELECT appointment_id,attempts,first_checked,parked FROM "
+	        + "hcw_appointment_task_checkpoint WHERE appointment_id IN (%s)";
+	
+	protected static final String QUERY_CHECKPOINTED = "SELECT appointment_id FROM hcw_appointment_task_checkpoint "
+	        + "WHERE appointment_id IN (%s)";
+	
+	protected static final String QUERY_PARKED_COUNT = "SELECT COUNT(*) FROM hcw_appointment_task_checkpoint WHERE "
+	        + "parked = ?";
+	
+	protected static final String SQL_UPDATE_CHECKPOINT = "UPDATE hcw_appointment_task_checkpoint SET "
+	        + "appointment_uuid = ?,stage = ?,attempts = ?,first_checked = ?,last_checked = ?,next_check = ?,"
+	        + "parked = ? WHERE appointment_id = ?";
+	
+	protected static final String SQL_INSERT_CHECKPOINT = "INSERT INTO hcw_appointment_task_checkpoint "
+	        + "(appointment_uuid,stage,attempts,first_checked,last_checked,next_check,parked,appointment_id) VALUES "
+	        + "(?,?,?,?,?,?,?,?)";
+	
+	protected static final RowMapper<Attempts> ATTEMPTS_MAPPER = r -> new Attempts(r.getInt(1), r.getInt(2),
+	        r.getLong(3), r.getBoolean(4));
+	
+	protected static final String SQL_DELETE_CHECKPOINT = "DELETE FROM hcw_appointment_task_checkpoint WHERE "
+	        + "appointment_id = ?";
+	
+	protected static final String QUERY_WATERMARK = "SELECT watermark FROM hcw_appointment_task_watermark WHERE "
+	        + "name = ?";
+	
+	protected static final String SQL_UPDATE_WATERMARK = "UPDATE hcw_appointment_task_watermark SET watermark = ?,"
+	        + "date_changed = ? WHERE name = ?";
+	
+	protected static final String SQL_INSERT_WATERMARK = "INSERT INTO hcw_appointment_task_watermark (watermark,"
+	        + "date_changed,name) VALUES (?,?,?)";
+	
+	private DataSource dataSource;
+	
+	private long retryInterval;
+	
+	private long maxRetryInterval;
+	
+	private long retryHorizon;
+	
+	public AppointmentCheckpointStore(@Qualifier("mngtDataSource") DataSource dataSource,
+	    @Value("${appointments.task.retry.interval.ms}") long retryInterval,
+	    @Value("${appointments.task.retry.max.interval.ms}") long maxRetryInterval,
+	    @Value("${appointments.task.retry.horizon.ms}") long retryHorizon) {
+		this.dataSource = dataSource;
+		this.retryInterval = retryInterval;
+		this.maxRetryInterval = maxRetryInterval;
+		this.retryHorizon = retryHorizon;
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws SQLException {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(SQL_CREATE_CHECKPOINT_TABLE, List.of());
+			session.executeUpdate(SQL_CREATE_WATERMARK_TABLE, List.of());
+		}
+	}
+	
+	/**
+	 * Gets the time up to which new candidates have been scanned for the watermark with the specified
+	 * name.
+	 *
+	 * @param name the watermark name
+	 * @return the watermark or null if no scan has completed yet
+	 * @throws SQLException
+	 */
+	public LocalDateTime getWatermark(String name) throws SQLException {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			final String value = session.querySingleValue(QUERY_WATERMARK, List.of(name), String.class);
+			return value == null ? null : LocalDateTime.parse(value);
+		}
+	}
+	
+	/**
+	 * Sets the time up to which new candidates have been scanned for the watermark with the specified
+	 * name.
+	 *
+	 * @param name the watermark name
+	 * @param watermark the watermark to save
+	 * @throws SQLException
+	 */
+	public void saveWatermark(String name, LocalDateTime watermark) throws SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("Saving appointments watermark {}: {}", name, watermark);
+		}
+		
+		List<Object> args = List.of(watermark.toString(), System.currentTimeMillis(), name);
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			if (session.executeUpdate(SQL_UPDATE_WATERMARK, args) == 0) {
+				session.executeUpdate(SQL_INSERT_WATERMARK, args);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the ids of the appointments whose next check time has come, ordered by id.
+	 *
+	 * @param asOf the time in milliseconds since the epoch to compare against
+	 * @param afterId only ids greater than this are returned
+	 * @param limit the maximum number of ids to return
+	 * @return List of appointment ids
+	 * @throws SQLException
+	 */
+	public List<Integer> getDue(long asOf, Integer afterId, int limit) throws SQLException {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			return session.executeQuery(QUERY_DUE, List.of(asOf, false, afterId, limit), r -> r.getInt(1));
+		}
+	}
+	
+	/**
+	 * Gets the ids of the appointments among the specified ones that have a checkpoint, parked or not.
+	 *
+	 * @param appointmentIds the appointment ids
+	 * @return Set of the ids with a checkpoint
+	 * @throws SQLException
+	 */
+	public Set<Integer> getCheckpointed(List<Integer> appointmentIds) throws SQLException {
+		if (appointmentIds.isEmpty()) {
+			return Set.of();
+		}
+		
+		final String query = String.format(QUERY_CHECKPOINTED,
+		    appointmentIds.stream().map(id -> "?").collect(Collectors.joining(",")));
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			return new HashSet<>(session.executeQuery(query, new ArrayList<>(appointmentIds), r -> r.getInt(1)));
+		}
+	}
+	
+	/**
+	 * Adds a checkpoint that is due right away for each of the specified new candidates so that the
+	 * member that owns them processes them at its next run, a candidate that got a checkpoint from
+	 * another member in the meantime is left as is.
+	 *
+	 * @param checkpoints the checkpoints to add
+	 * @throws SQLException
+	 */
+	public void schedule(List<Checkpoint> checkpoints) throws SQLException {
+		if (checkpoints.isEmpty()) {
+			return;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Scheduling checks of {} new appointments", checkpoints.size());
+		}
+		
+		final long now = System.currentTimeMillis();
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			for (Checkpoint c : checkpoints) {
+				try {
+					session.executeUpdate(SQL_INSERT_CHECKPOINT, List.of(c.appointmentUuid(), c.stage().name(), 0, now,
+					    now, now, false, c.appointmentId()));
+				}
+				catch (SQLIntegrityConstraintViolationException e) {
+					if (log.isDebugEnabled()) {
+						log.debug("Appointment with uuid {} already has a checkpoint", c.appointmentUuid());
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records a check of each of the specified appointments and schedules the next one, the attempt
+	 * count of an appointment with an existing checkpoint is incremented otherwise a new checkpoint is
+	 * created, all in one transaction. Appointments for which the retry horizon has elapsed since their
+	 * first check are parked.
+	 *
+	 * @param checkpoints the checkpoints to record
+	 * @return the number of appointments that got parked
+	 * @throws SQLException
+	 */
+	public int record(List<Checkpoint> checkpoints) throws SQLException {
+		if (checkpoints.isEmpty()) {
+			return 0;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Recording checkpoints for {} appointments", checkpoints.size());
+		}
+		
+		final long now = System.currentTimeMillis();
+		int parkedCount = 0;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.beginTransaction();
+			final String query = String.format(QUERY_ATTEMPTS,
+			    checkpoints.stream().map(c -> "?").collect(Collectors.joining(",")));
+			Map<Integer, Attempts> existing = new HashMap<>(checkpoints.size());
+			List<Object> ids = checkpoints.stream().map(c -> (Object) c.appointmentId()).toList();
+			for (Attempts a : session.executeQuery(query, ids, ATTEMPTS_MAPPER)) {
+				existing.put(a.appointmentId(), a);
+			}
+			
+			List<List<Object>> updates = new ArrayList<>();
+			List<List<Object>> inserts = new ArrayList<>();
+			for (Checkpoint c : checkpoints) {
+				final Attempts previous = existing.get(c.appointmentId());
+				final int attempts = previous == null ? 1 : previous.attempts() + 1;
+				final long firstChecked = previous == null ? now : previous.firstChecked();
+				final boolean parked = retryHorizon > 0 && now - firstChecked >= retryHorizon;
+				if (parked && (previous == null || !previous.parked())) {
+					parkedCount++;
+					log.warn("Giving up on ended appointment with uuid {} after {} attempts, last stage: {}",
+					    c.appointmentUuid(), attempts, c.stage());
+				}
+				
+				final long nextCheck = parked ? now : now + getRetryDelay(attempts);
+				List<Object> args = List.of(c.appointmentUuid(), c.stage().name(), attempts, firstChecked, now,
+				    nextCheck, parked, c.appointmentId());
+				if (previous == null) {
+					inserts.add(args);
+				} else {
+					updates.add(args);
+				}
+			}
+			
+			if (!updates.isEmpty()) {
+				session.executeBatch(SQL_UPDATE_CHECKPOINT, updates);
+			}
+			
+			if (!inserts.isEmpty()) {
+				session.executeBatch(SQL_INSERT_CHECKPOINT, inserts);
+			}
+			
+			session.commit();
+		}
+		
+		return parkedCount;
+	}
+	
+	/**
+	 * Gets the delay before the next check of an appointment, it doubles with each attempt up to the
+	 * maximum retry interval.
+	 *
+	 * @param attempts the number of checks made so far
+	 * @return the delay in milliseconds
+	 */
+	protected long getRetryDelay(int attempts) {
+		final long delay = retryInterval << Math.min(attempts - 1, 30);
+		return maxRetryInterval > 0 ? Math.min(delay, maxRetryInterval) : delay;
+	}
+	
+	/**
+	 * Gets the number of appointments that were given up on.
+	 *
+	 * @return the count of parked appointments
+	 * @throws SQLException
+	 */
+	public int getParkedCount() throws SQLException {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			return session.querySingleValue(QUERY_PARKED_COUNT, List.of(true), Integer.class);
+		}
+	}
+	
+	/**
+	 * Removes the checkpoints of the appointments with the specified ids.
+	 *
+	 * @param appointmentIds the appointment ids
+	 * @throws SQLException
+	 */
+	public void remove(List<Integer> appointmentIds) throws SQLException {
+		if (appointmentIds.isEmpty()) {
+			return;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Removing checkpoints of appointments with ids: {}", appointmentIds);
+		}
+		
+		List<List<Object>> batch = appointmentIds.stream().map(id -> List.<Object> of(id)).toList();
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeBatch(SQL_DELETE_CHECKPOINT, batch);
+		}
+	}
+	
+	/**
+	 * The stage at which the processing of an ended appointment stopped, new candidates scheduled for
+	 * another member are at the NEW stage.
+	 */
+	public enum Stage {
+		
+		NEW,
+		
+		APPOINTMENT_NOT_FOUND,
+		
+		ENCOUNTER_NOT_FOUND,
+		
+		FAILED
+		
+	}
+	
+	/**
+	 * The progress of an ended appointment.
+	 *
+	 * @param appointmentId the appointment id
+	 * @param appointmentUuid the appointment uuid
+	 * @param stage the stage at which the processing stopped
+	 */
+	public record Checkpoint(Integer appointmentId, String appointmentUuid, Stage stage) {}
+	
+	protected record Attempts(Integer appointmentId, int attempts, long firstChecked, boolean parked) {}
+	
+}
@@ -7,90 +7,223 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
-import static com.ozonehis.eip.hcwathome.openmrs.DbUtils.executeQuery;
-
-import java.util.List;
-import java.util.Map;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.IdType;
+import org.openmrs.eip.EIPException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 @Component
 public class AppointmentProcessor {
 	
-	protected static final String QUERY_APPOINTMENT = "SELECT patient_appointment_id,patient_id,status,start_date_time,"
-	        + "end_date_time,voided FROM patient_appointment WHERE uuid = ?";
+	protected static final int MAX_UPDATE_ATTEMPTS = 3;
+	
+	private static final String TYPE_APPOINTMENT = "Appointment";
 	
 	private HcwFhirClient hcwClient;
 	
-	private DataSource dataSource;
+	private AppointmentSnapshotLoader snapshotLoader;
 	
-	@Value("${openmrs.email.person.attr.type.uuid}")
-	private String emailPersonAttTypeUuid;
+	private SyncStateStore syncStateStore;
+	
+	private HcwBatchWriter hcwWriter;
+	
+	private DataSource dataSource;
 	
 	@Value("${hcwathome.fhir.identifier.system}")
 	private String idSystem;
 	
-	public AppointmentProcessor(HcwFhirClient hcwClient, DataSource dataSource) {
+	private final AtomicLong skippedCount = new AtomicLong();
+	
+	private final AtomicLong pushedCount = new AtomicLong();
+	
+	public AppointmentProcessor(HcwFhirClient hcwClient, AppointmentSnapshotLoader snapshotLoader,
+	    SyncStateStore syncStateStore, HcwBatchWriter hcwWriter, DataSource dataSource) {
 		this.hcwClient = hcwClient;
+		this.snapshotLoader = snapshotLoader;
+		this.syncStateStore = syncStateStore;
+		this.hcwWriter = hcwWriter;
 		this.dataSource = dataSource;
 	}
 	
 	public void process(String uuid, Action action) throws Exception {
-		List<Map<String, Object>> data = executeQuery(QUERY_APPOINTMENT, dataSource, List.of(uuid));
-		if (data.isEmpty()) {
-			log.info("No appointment found matching uuid: {}", uuid);
+		AppointmentSnapshot snapshot = null;
+		String contentHash = null;
+		if (action != Action.DELETE) {
+			try (QuerySession session = DbUtils.openSession(dataSource)) {
+				snapshot = snapshotLoader.load(uuid, session);
+			}
+			
+			if (snapshot == null) {
+				log.info("No appointment found matching uuid: {}", uuid);
+				return;
+			}
+			
+			contentHash = Utils.computeContentHash(snapshot);
+		}
+		
+		SyncState state = syncStateStore.get(uuid);
+		if (state != null) {
+			if (contentHash != null && contentHash.equals(state.contentHash())) {
+				if (log.isDebugEnabled()) {
+					log.debug("Skipping appointment with uuid {} because the synced fields have not changed", uuid);
+				}
+				
+				skippedCount.incrementAndGet();
+				return;
+			}
+			
+			try {
+				processById(uuid, action, snapshot, contentHash, state);
+				return;
+			}
+			catch (ResourceNotFoundException | ResourceGoneException e) {
+				log.info("Sync state of appointment with uuid {} is stale, looking it up by identifier", uuid);
+				syncStateStore.remove(uuid);
+			}
+		}
+		
+		if (action != Action.DELETE && "Scheduled".equals(snapshot.status())) {
+			createOrUpdate(uuid, snapshot, contentHash);
+			return;
 		}
 		
 		//TODO Skip canceled or voided appointment if does not exist in hcw@home
 		Appointment a = hcwClient.getAppointmentByIdentifier(uuid);
 		if (action != Action.DELETE) {
-			if (!data.isEmpty()) {
-				if (a == null) {
-					final String status = (String) data.get(0).get("status");
-					if ("Scheduled".equals(status)) {
-						create(uuid, data.get(0));
-					} else {
-						log.info("Skipping creation of appointment in hcw@home with status: {}", status);
-					}
-				} else {
-					update(a, data.get(0));
-				}
+			if (a == null) {
+				log.info("Skipping creation of appointment in hcw@home with status: {}", snapshot.status());
+			} else {
+				update(uuid, a, snapshot, contentHash);
 			}
 		} else {
 			delete(a);
 		}
 	}
 	
-	private void create(String uuid, Map<String, Object> appointmentData) throws Exception {
-		Appointment appointment = Utils.buildFhirAppointment(uuid, appointmentData, emailPersonAttTypeUuid, idSystem,
-		    dataSource);
-		hcwClient.create(appointment);
+	private void processById(String uuid, Action action, AppointmentSnapshot snapshot, String contentHash,
+	                         SyncState state)
+	    throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("Found sync state for appointment with uuid {}, hcw@home id: {}", uuid, state.hcwId());
+		}
+		
+		if (action == Action.DELETE) {
+			hcwWriter.deleteAppointmentById(state.hcwId());
+			syncStateStore.remove(uuid);
+			pushedCount.incrementAndGet();
+		} else if (state.versionId() != null) {
+			updateByVersion(uuid, state, snapshot, contentHash);
+		} else {
+			update(uuid, hcwClient.getAppointmentById(state.hcwId()), snapshot, contentHash);
+		}
 	}
 	
-	private void update(Appointment hcwAppointment, Map<String, Object> openmrsAppointment) throws Exception {
-		if ("Completed".equals(openmrsAppointment.get("status"))) {
+	/**
+	 * Updates the appointment in hcw@home without reading it first, the appointment is rebuilt from the
+	 * snapshot and sent with the stored version in an If-Match header. If the appointment was modified
+	 * in hcw@home since it was last written, it is read and merged with the snapshot instead, if it no
+	 * longer exists the ResourceNotFoundException is propagated so that it is looked up by identifier.
+	 */
+	private void updateByVersion(String uuid, SyncState state, AppointmentSnapshot snapshot, String contentHash)
+	    throws Exception {
+		if ("Completed".equals(snapshot.status())) {
 			log.info("Skipping updating completed appointment in hcw@home");
 			return;
 		}
 		
-		boolean isModified = Utils.updateFhirAppointment(hcwAppointment, openmrsAppointment, emailPersonAttTypeUuid,
-		    dataSource);
-		if (!isModified) {
-			if (log.isDebugEnabled()) {
-				log.debug("No changes detected on the appointment");
-			}
-			
+		Appointment appointment = Utils.buildFhirAppointment(uuid, snapshot, idSystem);
+		appointment.setId(new IdType(TYPE_APPOINTMENT, state.hcwId(), state.versionId()));
+		MethodOutcome outcome;
+		try {
+			outcome = hcwWriter.updateAppointment(appointment);
+		}
+		catch (PreconditionFailedException e) {
+			log.info("Appointment with uuid {} was modified in hcw@home, reloading it to merge the update", uuid);
+			update(uuid, hcwClient.getAppointmentById(state.hcwId()), snapshot, contentHash);
 			return;
 		}
 		
-		hcwClient.updateAppointment(hcwAppointment);
+		saveState(uuid, outcome.getId(), true, contentHash);
+		pushedCount.incrementAndGet();
+	}
+	
+	private void createOrUpdate(String uuid, AppointmentSnapshot snapshot, String contentHash) throws Exception {
+		Appointment appointment = Utils.buildFhirAppointment(uuid, snapshot, idSystem);
+		MethodOutcome outcome = hcwWriter.createAppointment(appointment, uuid);
+		if (Boolean.TRUE.equals(outcome.getCreated())) {
+			saveState(uuid, outcome.getId(), true, contentHash);
+			pushedCount.incrementAndGet();
+			return;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Appointment with uuid {} already exists in hcw@home", uuid);
+		}
+		
+		Appointment existing;
+		if (outcome.getResource() instanceof Appointment) {
+			existing = (Appointment) outcome.getResource();
+		} else if (outcome.getId() != null && outcome.getId().hasIdPart()) {
+			existing = hcwClient.getAppointmentById(outcome.getId().getIdPart());
+		} else {
+			existing = hcwClient.getAppointmentByIdentifier(uuid);
+		}
+		
+		if (existing == null) {
+			throw new EIPException("Failed to find existing appointment in hcw@home with identifier " + uuid);
+		}
+		
+		update(uuid, existing, snapshot, contentHash);
+	}
+	
+	private void update(String uuid, Appointment hcwAppointment, AppointmentSnapshot snapshot, String contentHash)
+	    throws Exception {
+		if ("Completed".equals(snapshot.status())) {
+			log.info("Skipping updating completed appointment in hcw@home");
+			return;
+		}
+		
+		Appointment appointment = hcwAppointment;
+		for (int attempt = 1;; attempt++) {
+			boolean isModified = Utils.updateFhirAppointment(appointment, snapshot);
+			if (!isModified) {
+				if (log.isDebugEnabled()) {
+					log.debug("No changes detected on the appointment");
+				}
+				
+				saveState(uuid, appointment.getIdElement(), false, contentHash);
+				return;
+			}
+			
+			try {
+				saveState(uuid, hcwWriter.updateAppointment(appointment).getId(), false, contentHash);
+				pushedCount.incrementAndGet();
+				return;
+			}
+			catch (PreconditionFailedException e) {
+				if (attempt >= MAX_UPDATE_ATTEMPTS) {
+					throw new EIPException("Failed to update appointment with uuid " + uuid + " in hcw@home after "
+					        + attempt + " attempts because it was modified by someone else");
+				}
+				
+				log.info("Appointment with uuid {} was modified in hcw@home, reloading it to retry the update", uuid);
+				appointment = hcwClient.getAppointmentById(appointment.getIdElement().getIdPart());
+			}
+		}
 	}
 	
 	private void delete(Appointment appointment) {
@@ -102,7 +235,46 @@ public class AppointmentProcessor {
 			return;
 		}
 		
-		hcwClient.deleteAppointment(appointment);
+		hcwWriter.deleteAppointment(appointment);
+		pushedCount.incrementAndGet();
+	}
+	
+	/**
+	 * Saves the sync state of the appointment with the specified uuid, the version id is only kept if the
+	 * written appointment was built from OpenMRS data alone, otherwise rebuilding it for the next update
+	 * would drop the fields hcw@home manages.
+	 */
+	private void saveState(String uuid, IIdType id, boolean keepVersion, String contentHash) throws SQLException {
+		if (id == null || !id.hasIdPart()) {
+			if (log.isDebugEnabled()) {
+				log.debug("No hcw@home id available to save sync state for appointment with uuid: {}", uuid);
+			}
+			
+			return;
+		}
+		
+		syncStateStore.save(new SyncState(uuid, id.getIdPart(), keepVersion ? id.getVersionIdPart() : null,
+		        contentHash));
+	}
+	
+	/**
+	 * Gets the number of events that were skipped because the synced fields had not changed since
+	 * the last push to hcw@home.
+	 *
+	 * @return the count
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+	
+	/**
+	 * Gets the number of events that resulted in an appointment being created, updated or deleted in
+	 * hcw@home.
+	 *
+	 * @return the count
+	 */
+	public long getPushedCount() {
+		return pushedCount.get();
 	}
 	
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.time.LocalDateTime;
+
+/**
+ * Immutable view of an OpenMRS appointment together with the patient and provider details that get
+ * synced to hcw@home.
+ *
+ * @param appointmentId the appointment id
+ * @param patientId the patient id
+ * @param status the OpenMRS appointment status
+ * @param start the appointment start date and time
+ * @param end the appointment end date and time
+ * @param voided whether the appointment is voided
+ * @param gender the patient gender
+ * @param givenName the given name from the patient's preferred name
+ * @param familyName the family name from the patient's preferred name
+ * @param patientEmail the patient email address
+ * @param providerPersonId the person id of the appointment provider
+ * @param providerEmail the provider email address
+ */
+public record AppointmentSnapshot(Integer appointmentId, Integer patientId, String status, LocalDateTime start,
+                                  LocalDateTime end, boolean voided, String gender, String givenName, String familyName,
+                                  String patientEmail, Integer providerPersonId, String providerEmail) {}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Loads an {@link AppointmentSnapshot} from the OpenMRS database, the appointment row and the
+ * provider's person id are fetched by one query while the patient and provider details come from
+ * the {@link PersonCache}.
+ */
+@Slf4j
+@Component
+public class AppointmentSnapshotLoader {
+	
+	protected static final String QUERY_APPOINTMENT = "SELECT a.patient_appointment_id,a.patient_id,a.status,"
+	        + "a.start_date_time,a.end_date_time,a.voided,pr.person_id FROM patient_appointment a LEFT JOIN provider "
+	        + "pr ON pr.provider_id = (SELECT ap.provider_id FROM patient_appointment_provider ap WHERE "
+	        + "ap.patient_appointment_id = a.patient_appointment_id AND (ap.voided = 0 OR ap.voided IS NULL) LIMIT 1) "
+	        + "WHERE a.uuid = ?";
+	
+	protected static final RowMapper<AppointmentRow> APPOINTMENT_MAPPER = r -> new AppointmentRow(
+	        r.getObject(1, Integer.class), r.getObject(2, Integer.class), r.getString(3),
+	        r.getObject(4, LocalDateTime.class), r.getObject(5, LocalDateTime.class), r.getBoolean(6),
+	        r.getObject(7, Integer.class));
+	
+	private static final PersonDetails UNKNOWN_PERSON = new PersonDetails(null, null, null, null, null);
+	
+	private PersonCache personCache;
+	
+	public AppointmentSnapshotLoader(PersonCache personCache) {
+		this.personCache = personCache;
+	}
+	
+	/**
+	 * Loads the snapshot of the appointment with the specified uuid.
+	 *
+	 * @param uuid the uuid of the appointment
+	 * @param session the {@link QuerySession} of the current unit of work
+	 * @return the AppointmentSnapshot or null if no appointment is found
+	 * @throws SQLException
+	 */
+	public AppointmentSnapshot load(String uuid, QuerySession session) throws SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("Loading snapshot of appointment with uuid: {}", uuid);
+		}
+		
+		List<AppointmentRow> rows = session.executeQuery(QUERY_APPOINTMENT, List.of(uuid), APPOINTMENT_MAPPER);
+		if (rows.isEmpty()) {
+			return null;
+		}
+		
+		AppointmentRow a = rows.get(0);
+		List<Integer> personIds = new ArrayList<>();
+		personIds.add(a.patientId());
+		if (a.providerPersonId() != null) {
+			personIds.add(a.providerPersonId());
+		}
+		
+		Map<Integer, PersonDetails> persons = personCache.getPersons(personIds, session);
+		PersonDetails patient = persons.getOrDefault(a.patientId(), UNKNOWN_PERSON);
+		PersonDetails provider = persons.getOrDefault(a.providerPersonId(), UNKNOWN_PERSON);
+		return new AppointmentSnapshot(a.id(), a.patientId(), a.status(), a.start(), a.end(), a.voided(),
+		        patient.gender(), patient.givenName(), patient.familyName(), patient.email(), a.providerPersonId(),
+		        provider.email());
+	}
+	
+	protected record AppointmentRow(Integer id, Integer patientId, String status, LocalDateTime start,
+	                                LocalDateTime end, boolean voided, Integer providerPersonId) {}
+	
+}
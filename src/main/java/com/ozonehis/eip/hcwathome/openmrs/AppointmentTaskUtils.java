@@ -9,15 +9,18 @@ package com.ozonehis.eip.hcwathome.openmrs;
 
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.ENC_TYPE_SYSTEM;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
-
-import javax.sql.DataSource;
+import java.util.UUID;
 
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Observation.ObservationStatus;
@@ -26,135 +29,249 @@ import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 import org.openmrs.eip.EIPException;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import ca.uhn.fhir.rest.api.MethodOutcome;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class AppointmentTaskUtils {
 	
-	private static final String QUERY_PATIENT_ID = "SELECT person_id FROM person WHERE uuid = ?";
+	protected static final String QUERY_ENCOUNTER = "SELECT encounter_id,uuid FROM encounter WHERE patient_id = ? AND "
+	        + "encounter_datetime = ? AND voided != 1";
 	
-	protected static final String QUERY_ENCOUNTER = "SELECT encounter_id,uuid FROM encounter WHERE patient_id = ("
-	        + QUERY_PATIENT_ID + ") AND  encounter_datetime = ? AND voided != 1";
+	protected static final String QUERY_OBS = "SELECT obs_id FROM obs WHERE person_id = ? AND encounter_id = ? AND "
+	        + "obs_datetime = ? AND voided != 1";
 	
-	protected static final String QUERY_OBS = "SELECT obs_id FROM obs WHERE person_id = (" + QUERY_PATIENT_ID
-	        + ") AND encounter_id = ? AND obs_datetime = ? AND voided != 1";
+	protected static final String URN_UUID_PREFIX = "urn:uuid:";
 	
-	private static final ObjectMapper MAPPER = new ObjectMapper();
+	protected static final RowMapper<EncounterRef> ENCOUNTER_MAPPER = r -> new EncounterRef(
+	        r.getObject(1, Integer.class), r.getString(2));
 	
-	public static String getActiveVisitUuid(String patientUuid, OpenMrsRestClient openmrsClient) throws Exception {
-		final byte[] data = openmrsClient.search("visit", Map.of("patient", patientUuid, "includeInactive", "false"));
-		List<Map<String, Object>> visits = (List) MAPPER.readValue(data, Map.class).get("results");
-		if (visits == null || visits.size() != 1) {
+	/**
+	 * Gets the encounter in OpenMRS associated with a given appointment and patient
+	 *
+	 * @param appointment The {@link AppointmentCandidate} with the patient of the encounter
+	 * @param startDate The start date and time of the encounter.
+	 * @param session The {@link QuerySession} used to query the database.
+	 * @return The {@link EncounterRef} of the existing encounter or null if none exists
+	 * @throws Exception
+	 */
+	public static EncounterRef getOpenMrsEncounter(AppointmentCandidate appointment, Date startDate,
+	                                               QuerySession session)
+	    throws Exception {
+		
+		final String appointmentUuid = appointment.uuid();
+		List<EncounterRef> encs = session.executeQuery(QUERY_ENCOUNTER, List.of(appointment.patientId(), startDate),
+		    ENCOUNTER_MAPPER);
+		if (encs.size() == 0) {
 			return null;
 		}
 		
-		return visits.get(0).get("uuid").toString();
+		final int size = encs.size();
+		if (size != 1) {
+			throw new EIPException("Found " + size + " associated to appointment with uuid " + appointmentUuid);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("There is already an encounter associated to appointment with uuid {}", appointmentUuid);
+		}
+		
+		return encs.get(0);
 	}
 	
 	/**
-	 * Adds an Encounter to OpenMRS associated with a given appointment and patient if it does not exist
+	 * Checks whether an Observation associated with a given appointment and patient exists in OpenMRS
+	 *
+	 * @param appointment the {@link AppointmentCandidate} with the patient of the observation
+	 * @param encRef the {@link EncounterRef} of the encounter associated with the observation
+	 * @param obsDate the date of the observation
+	 * @param session the {@link QuerySession} used to query existing observations
+	 * @return true if the observation exists otherwise false
+	 * @throws Exception
+	 */
+	public static boolean openMrsObsExists(AppointmentCandidate appointment, EncounterRef encRef, Date obsDate,
+	                                       QuerySession session)
+	    throws Exception {
+		
+		//A new encounter has no id yet and can't have any obs
+		if (encRef.id() == null
+		        || session.querySingleValue(QUERY_OBS, List.of(appointment.patientId(), encRef.id(), obsDate),
+		            Integer.class) == null) {
+			return false;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Clinical notes obs already exists associated to appointment with uuid {}", appointment.uuid());
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds an Encounter to OpenMRS associated with a given appointment and patient, callers check that
+	 * it does not exist with {@link #getOpenMrsEncounter(AppointmentCandidate, Date, QuerySession)}
 	 *
 	 * @param encounter The FHIR {@link Encounter} object.
-	 * @param appointmentUuid The UUID of the appointment
+	 * @param appointment The {@link AppointmentCandidate} with the patient and provider of the encounter
 	 * @param encounterTypeUuid The UUID of the encounter type.
-	 * @param patientUuid The UUID of the patient associated with the encounter.
 	 * @param visitUuid the UUID of the visit associated with the encounter
-	 * @param providerUuid The UUID of the provider participating in the encounter.
 	 * @param startDate The start date and time of the encounter.
 	 * @param endDate The end date and time of the encounter.
-	 * @param ds The {@link DataSource} used to query and interact with the database.
 	 * @param openmrsClient The {@link OpenmrsFhirClient} instance
-	 * @return The data of the created or existing encounter as a Map.
+	 * @return The {@link EncounterRef} of the created encounter, the id is null since only its uuid is
+	 *         returned by OpenMRS
 	 * @throws Exception
 	 */
-	public static Map<String, Object> createOpenMrsEncounter(Encounter encounter, String appointmentUuid,
-	                                                         String encounterTypeUuid, String patientUuid, String visitUuid,
-	                                                         String providerUuid, Date startDate, Date endDate,
-	                                                         DataSource ds, OpenmrsFhirClient openmrsClient)
+	public static EncounterRef createOpenMrsEncounter(Encounter encounter, AppointmentCandidate appointment,
+	                                                  String encounterTypeUuid, String visitUuid, Date startDate,
+	                                                  Date endDate, OpenmrsFhirClient openmrsClient)
 	    throws Exception {
 		
-		List<Map<String, Object>> encs = DbUtils.executeQuery(QUERY_ENCOUNTER, ds, List.of(patientUuid, startDate));
-		if (encs.size() == 0) {
-			if (log.isDebugEnabled()) {
-				log.debug("Adding encounter associated to appointment with uuid {}", appointmentUuid);
-			}
-			
-			encounter.setType(List.of(new CodeableConcept(new Coding(ENC_TYPE_SYSTEM, encounterTypeUuid, null))));
-			encounter.setSubject(new Reference("Patient/" + patientUuid));
-			if (visitUuid != null) {
-				encounter.setPartOf(new Reference("Encounter/" + visitUuid));
-			}
-			
-			Encounter.EncounterParticipantComponent participant = new Encounter.EncounterParticipantComponent();
-			participant.setIndividual(new Reference("Practitioner/" + providerUuid));
-			encounter.setParticipant(List.of(participant));
-			Period period = new Period();
-			period.setStart(startDate);
-			period.setEnd(endDate);
-			encounter.setPeriod(period);
-			openmrsClient.create(encounter);
-			if (log.isDebugEnabled()) {
-				log.debug("Read id of added encounter associated to appointment with uuid {}", appointmentUuid);
-			}
-			
-			encs = DbUtils.executeQuery(QUERY_ENCOUNTER, ds, List.of(patientUuid, startDate));
-		} else {
-			final int size = encs.size();
-			if (size != 1) {
-				throw new EIPException("Found " + size + " associated to appointment with uuid " + appointmentUuid);
-			}
-			
-			if (log.isDebugEnabled()) {
-				log.debug("There is already an encounter associated to appointment with uuid {}", appointmentUuid);
-			}
+		final String appointmentUuid = appointment.uuid();
+		if (log.isDebugEnabled()) {
+			log.debug("Adding encounter associated to appointment with uuid {}", appointmentUuid);
 		}
 		
-		return encs.get(0);
+		populateEncounter(encounter, appointment, encounterTypeUuid, visitUuid, startDate, endDate);
+		MethodOutcome outcome = openmrsClient.create(encounter);
+		if (outcome.getId() == null || !outcome.getId().hasIdPart()) {
+			throw new EIPException(
+			        "No id returned for added encounter associated to appointment with uuid " + appointmentUuid);
+		}
+		
+		return new EncounterRef(null, outcome.getId().getIdPart());
 	}
 	
 	/**
-	 * Adds an Observation to OpenMRS associated with a given appointment and patient if it does not
-	 * exist
+	 * Adds an Observation to OpenMRS associated with a given appointment and patient, callers check
+	 * that it does not exist with
+	 * {@link #openMrsObsExists(AppointmentCandidate, EncounterRef, Date, QuerySession)}
 	 *
-	 * @param appointmentUuid the UUID of the appointment
-	 * @param patientUuid the UUID the patient
-	 * @param encData the encounter data associated with the observation
+	 * @param appointment the {@link AppointmentCandidate} with the patient of the observation
+	 * @param encRef the {@link EncounterRef} of the encounter associated with the observation
 	 * @param qnConceptUuid the UUID of the question concept
 	 * @param value the observation value
 	 * @param obsDate the date of the observation
-	 * @param ds the data source used to query existing observations
 	 * @param openmrsClient the {@link OpenmrsFhirClient} instance
 	 * @throws Exception
 	 */
-	public static void createOpenMrsObs(String appointmentUuid, String patientUuid, Map<String, Object> encData,
-	                                    String qnConceptUuid, String value, Date obsDate, DataSource ds,
-	                                    OpenmrsFhirClient openmrsClient)
+	public static void createOpenMrsObs(AppointmentCandidate appointment, EncounterRef encRef, String qnConceptUuid,
+	                                    String value, Date obsDate, OpenmrsFhirClient openmrsClient)
 	    throws Exception {
 		
-		int encId = (int) encData.get("encounter_id");
-		List<?> obsIds = DbUtils.executeQuery(QUERY_OBS, ds, List.of(patientUuid, encId, obsDate));
-		if (obsIds.size() > 0) {
+		if (log.isDebugEnabled()) {
+			log.debug("Adding obs for clinical notes associated to appointment with uuid {}", appointment.uuid());
+		}
+		
+		openmrsClient.create(newObs(appointment, "Encounter/" + encRef.uuid(), qnConceptUuid, value, obsDate));
+	}
+	
+	/**
+	 * Builds the transaction bundle entries that add to OpenMRS the encounter and clinical notes obs
+	 * associated with a given appointment which don't exist yet. A new encounter gets a urn:uuid full
+	 * url which the obs references so that both are created in the same transaction and no query is
+	 * needed to read the id of the encounter.
+	 *
+	 * @param encounter the fhir {@link Encounter} object
+	 * @param appointment the {@link AppointmentCandidate} with the patient and provider of the encounter
+	 * @param encounterTypeUuid the UUID of the encounter type
+	 * @param visitUuid the UUID of the visit associated with the encounter
+	 * @param startDate the start date and time of the encounter
+	 * @param endDate the end date and time of the encounter, also used as the obs date
+	 * @param qnConceptUuid the UUID of the question concept of the obs
+	 * @param notes the clinical notes, no obs is added if blank
+	 * @param session the {@link QuerySession} used to query existing encounters and observations
+	 * @return the entries, empty if the encounter and obs already exist
+	 * @throws Exception
+	 */
+	public static List<BundleEntryComponent> createOpenMrsEntries(Encounter encounter,
+	                                                              AppointmentCandidate appointment,
+	                                                              String encounterTypeUuid, String visitUuid,
+	                                                              Date startDate, Date endDate,
+	                                                              String qnConceptUuid, String notes,
+	                                                              QuerySession session)
+	    throws Exception {
+		
+		final String appointmentUuid = appointment.uuid();
+		List<BundleEntryComponent> entries = new ArrayList<>(2);
+		List<EncounterRef> encs = session.executeQuery(QUERY_ENCOUNTER, List.of(appointment.patientId(), startDate),
+		    ENCOUNTER_MAPPER);
+		String encReference;
+		if (encs.size() == 0) {
 			if (log.isDebugEnabled()) {
-				log.debug("Clinical notes obs already exists associated to appointment with uuid {}", appointmentUuid);
+				log.debug("Adding encounter entry associated to appointment with uuid {}", appointmentUuid);
 			}
 			
-			return;
+			populateEncounter(encounter, appointment, encounterTypeUuid, visitUuid, startDate, endDate);
+			encReference = URN_UUID_PREFIX + UUID.randomUUID();
+			entries.add(newEntry(encReference, encounter));
+		} else {
+			final int size = encs.size();
+			if (size != 1) {
+				throw new EIPException("Found " + size + " associated to appointment with uuid " + appointmentUuid);
+			}
+			
+			encReference = "Encounter/" + encs.get(0).uuid();
+			List<Object> args = List.of(appointment.patientId(), encs.get(0).id(), endDate);
+			if (StringUtils.isBlank(notes) || session.querySingleValue(QUERY_OBS, args, Integer.class) != null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Encounter and obs already exist for appointment with uuid {}", appointmentUuid);
+				}
+				
+				return entries;
+			}
 		}
 		
-		if (log.isDebugEnabled()) {
-			log.debug("Adding obs for clinical notes associated to appointment with uuid {}", appointmentUuid);
+		if (StringUtils.isNotBlank(notes)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Adding clinical notes obs entry for appointment with uuid {}", appointmentUuid);
+			}
+			
+			Observation obs = newObs(appointment, encReference, qnConceptUuid, notes, endDate);
+			entries.add(newEntry(URN_UUID_PREFIX + UUID.randomUUID(), obs));
+		}
+		
+		return entries;
+	}
+	
+	private static void populateEncounter(Encounter encounter, AppointmentCandidate appointment,
+	                                      String encounterTypeUuid, String visitUuid, Date startDate, Date endDate) {
+		encounter.setType(List.of(new CodeableConcept(new Coding(ENC_TYPE_SYSTEM, encounterTypeUuid, null))));
+		encounter.setSubject(new Reference("Patient/" + appointment.patientUuid()));
+		if (visitUuid != null) {
+			encounter.setPartOf(new Reference("Encounter/" + visitUuid));
 		}
 		
+		if (appointment.providerUuid() != null) {
+			Encounter.EncounterParticipantComponent participant = new Encounter.EncounterParticipantComponent();
+			participant.setIndividual(new Reference("Practitioner/" + appointment.providerUuid()));
+			encounter.setParticipant(List.of(participant));
+		} else {
+			log.warn("No provider found for appointment with uuid {}, creating the encounter without a participant",
+			    appointment.uuid());
+		}
+		
+		Period period = new Period();
+		period.setStart(startDate);
+		period.setEnd(endDate);
+		encounter.setPeriod(period);
+	}
+	
+	private static Observation newObs(AppointmentCandidate appointment, String encReference, String qnConceptUuid,
+	                                  String value, Date obsDate) {
 		Observation obs = new Observation();
-		obs.setSubject(new Reference("Patient/" + patientUuid));
+		obs.setSubject(new Reference("Patient/" + appointment.patientUuid()));
 		obs.setCode(new CodeableConcept(new Coding(null, qnConceptUuid, null)));
 		obs.setValue(new StringType(value));
 		obs.setEffective(new DateTimeType(obsDate));
 		obs.setStatus(ObservationStatus.FINAL);
-		obs.setEncounter(new Reference("Encounter/" + encData.get("uuid")));
-		openmrsClient.create(obs);
+		obs.setEncounter(new Reference(encReference));
+		return obs;
+	}
+	
+	private static BundleEntryComponent newEntry(String fullUrl, DomainResource resource) {
+		BundleEntryComponent entry = new BundleEntryComponent().setFullUrl(fullUrl).setResource(resource);
+		entry.getRequest().setMethod(HTTPVerb.POST).setUrl(resource.fhirType());
+		return entry;
 	}
 	
 }
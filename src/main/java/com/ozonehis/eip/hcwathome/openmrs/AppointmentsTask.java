@@ -7,26 +7,46 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.WATERMARK_NAME;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEntries;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsObs;
-import static com.ozonehis.eip.hcwathome.openmrs.DbUtils.executeQuery;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.getOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.openMrsObsExists;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toSet;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Type;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Checkpoint;
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Stage;
+import com.ozonehis.eip.hcwathome.openmrs.ClusterCoordinator.Assignment;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -37,16 +57,33 @@ public class AppointmentsTask {
 	
 	public static final String PROP_DELAY = "appointments.task.delay";
 	
-	protected static final String QUERY = "SELECT patient_appointment_id,patient_id,uuid FROM patient_appointment "
-	        + "WHERE appointment_kind = ? AND status = ? AND end_date_time < ? AND voided = ?";
+	protected static final String SELECT_CANDIDATES = "SELECT a.patient_appointment_id,a.patient_id,a.uuid,"
+	        + "pe.uuid,(SELECT pr.uuid FROM patient_appointment_provider ap JOIN provider pr ON pr.provider_id = "
+	        + "ap.provider_id WHERE ap.patient_appointment_id = a.patient_appointment_id AND (ap.voided = 0 OR "
+	        + "ap.voided IS NULL) ORDER BY ap.patient_appointment_provider_id LIMIT 1) FROM patient_appointment a JOIN "
+	        + "person pe ON pe.person_id = a.patient_id WHERE ";
+	
+	protected static final String QUERY = SELECT_CANDIDATES + "a.appointment_kind = ? AND a.status = ? AND "
+	        + "a.end_date_time < ? AND (a.end_date_time >= ? OR a.date_created >= ? OR a.date_changed >= ?) AND "
+	        + "a.voided = ? AND a.patient_appointment_id > ? ORDER BY a.patient_appointment_id LIMIT ?";
+	
+	protected static final String QUERY_BY_IDS = SELECT_CANDIDATES + "a.patient_appointment_id IN (%s) AND "
+	        + "a.appointment_kind = ? AND a.status = ? AND a.voided = ? ORDER BY a.patient_appointment_id";
+	
+	protected static final String QUERY_BY_UUID = SELECT_CANDIDATES + "a.uuid = ? AND a.appointment_kind = ? AND "
+	        + "a.status = ? AND a.voided = ?";
 	
-	protected static final String QUERY_PATIENT_UUID = "SELECT uuid FROM person WHERE person_id = ?";
+	protected static final LocalDateTime MIN_END_DATE = LocalDateTime.of(1970, 1, 1, 0, 0);
 	
-	protected static final String QUERY_PROV_UUID = "SELECT uuid FROM provider WHERE provider_id = ("
-	        + Utils.QUERY_PROVIDER_ID + ")";
+	//Rescanned before the watermark to allow for clock skew with OpenMRS and transactions committed late
+	protected static final int WATERMARK_OVERLAP_MINUTES = 5;
 	
 	protected static final String SQL_UPDATE_APPT = "UPDATE patient_appointment SET status = 'Completed' WHERE "
-	        + "patient_appointment_id = ?";
+	        + "patient_appointment_id = ? AND status = 'Scheduled'";
+	
+	protected static final RowMapper<AppointmentCandidate> CANDIDATE_MAPPER = r -> new AppointmentCandidate(
+	        r.getObject(1, Integer.class), r.getObject(2, Integer.class), r.getString(3), r.getString(4),
+	        r.getString(5));
 	
 	public static final String ENC_TYPE_SYSTEM = "http://fhir.openmrs.org/code-system/encounter-type";
 	
@@ -65,85 +102,756 @@ public class AppointmentsTask {
 	@Value("${hcwathome.fhir.clinical.notes.ext.url}")
 	private String notesExtensionUrl;
 	
-	private OpenMrsRestClient openmrsRestClient;
+	private VisitResolver visitResolver;
+	
+	private AppointmentCheckpointStore checkpointStore;
+	
+	private ClusterCoordinator coordinator;
+	
+	@Value("${appointments.task.query.page.size}")
+	private int queryPageSize;
+	
+	@Value("${appointments.task.hcw.lookup.chunk.size}")
+	private int hcwLookupChunkSize;
+	
+	@Value("${appointments.task.concurrency}")
+	private int concurrency;
+	
+	@Value("${appointments.task.virtual.threads}")
+	private boolean useVirtualThreads;
+	
+	@Value("${appointments.task.max.concurrent.hcw}")
+	private int maxConcurrentHcw;
+	
+	@Value("${appointments.task.max.concurrent.openmrs.rest}")
+	private int maxConcurrentOpenmrsRest;
 	
-	public AppointmentsTask(HcwFhirClient hcwClient, OpenmrsFhirClient openmrsClient, OpenMrsRestClient openmrsRestClient,
-	    DataSource dataSource) {
+	@Value("${appointments.task.max.concurrent.openmrs.fhir}")
+	private int maxConcurrentOpenmrsFhir;
+	
+	@Value("${appointments.task.openmrs.transaction.max.entries}")
+	private int transactionMaxEntries;
+	
+	private volatile RunSummary lastRunSummary;
+	
+	private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+	
+	public AppointmentsTask(HcwFhirClient hcwClient, OpenmrsFhirClient openmrsClient, VisitResolver visitResolver,
+	    AppointmentCheckpointStore checkpointStore, ClusterCoordinator coordinator, DataSource dataSource) {
 		this.hcwClient = hcwClient;
 		this.openmrsClient = openmrsClient;
-		this.openmrsRestClient = openmrsRestClient;
+		this.visitResolver = visitResolver;
+		this.checkpointStore = checkpointStore;
+		this.coordinator = coordinator;
 		this.dataSource = dataSource;
 	}
 	
 	@Scheduled(initialDelayString = "${" + PROP_INITIAL_DELAY + "}", fixedDelayString = "${" + PROP_DELAY + "}")
 	protected void execute() throws Exception {
-		List<Object> args = List.of("Virtual", "Scheduled", LocalDateTimeUtils.getCurrentTime(), 0);
-		List<Map<String, Object>> results = executeQuery(QUERY, dataSource, args);
+		final Assignment assignment = coordinator.getAssignment();
+		if (assignment == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping appointments task run because this instance has no share of the work");
+			}
+			
+			return;
+		}
+		
+		final LocalDateTime asOf = LocalDateTimeUtils.getCurrentTime();
+		final int pageSize = Math.max(1, queryPageSize);
+		final long start = System.currentTimeMillis();
+		visitResolver.beginRun();
+		RunCounts counts = new RunCounts();
+		Limiters limiters = null;
+		ExecutorService executor = null;
+		if (concurrency > 1) {
+			limiters = new Limiters(new Semaphore(concurrency), new Semaphore(maxConcurrentHcw),
+			        new Semaphore(maxConcurrentOpenmrsRest), new Semaphore(maxConcurrentOpenmrsFhir));
+			executor = HcwOpenmrsUtils.newExecutor("appointments-task", useVirtualThreads, concurrency);
+		}
+		
+		final LocalDateTime watermark = checkpointStore.getWatermark(WATERMARK_NAME);
+		final LocalDateTime from = watermark != null ? watermark.minusMinutes(WATERMARK_OVERLAP_MINUTES)
+		        : MIN_END_DATE;
+		int total = 0;
+		try {
+			total += processDue(assignment, pageSize, limiters, executor, counts);
+			total += processNew(assignment, from, asOf, pageSize, limiters, executor, counts);
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		
+		if (counts.leaseLost) {
+			log.warn("Not advancing the appointments watermark because the run was stopped");
+		} else if (counts.checkpointFailed) {
+			log.warn("Not advancing the appointments watermark because some checkpoints failed to be saved");
+		} else {
+			checkpointStore.saveWatermark(WATERMARK_NAME, asOf);
+		}
+		
+		int parked = -1;
+		try {
+			parked = checkpointStore.getParkedCount();
+		}
+		catch (Exception e) {
+			log.warn("Failed to get the count of parked appointments", e);
+		}
+		
+		lastRunSummary = new RunSummary(total, counts.completed.get(), counts.skipped.get(), counts.failed.get(),
+		        counts.parked.get(), parked, System.currentTimeMillis() - start);
+		if (total > 0 || parked > 0) {
+			log.info("Appointments task run summary: {}", lastRunSummary);
+		}
+		
 		if (log.isDebugEnabled()) {
-			log.debug("Found {} scheduled virtual appointments that should have ended by now", results.size());
+			log.debug("Visit lookups sent to OpenMRS: {}, served from cache: {}", visitResolver.getRestCallCount(),
+			    visitResolver.getSavedCallCount());
+		}
+	}
+	
+	/**
+	 * Processes the appointments in the specified shard whose checkpoint says they are due for another
+	 * check, checkpoints of appointments that are no longer scheduled are removed.
+	 *
+	 * @return the number of candidates processed
+	 */
+	private int processDue(Assignment assignment, int pageSize, Limiters limiters, ExecutorService executor,
+	    RunCounts counts) throws Exception {
+		final long now = System.currentTimeMillis();
+		int total = 0;
+		Integer lastId = 0;
+		List<Integer> ids;
+		do {
+			if (!holdsLease(counts)) {
+				break;
+			}
+			
+			ids = checkpointStore.getDue(now, lastId, pageSize);
+			if (ids.isEmpty()) {
+				break;
+			}
+			
+			lastId = ids.get(ids.size() - 1);
+			List<Integer> ownIds = ids.stream().filter(assignment::owns).toList();
+			counts.handled.addAll(ownIds);
+			if (ownIds.isEmpty()) {
+				continue;
+			}
+			
+			final String query = String.format(QUERY_BY_IDS, ownIds.stream().map(id -> "?").collect(joining(",")));
+			List<Object> args = new ArrayList<>(ownIds);
+			args.addAll(List.of("Virtual", "Scheduled", 0));
+			List<AppointmentCandidate> page;
+			try (QuerySession session = DbUtils.openSession(dataSource)) {
+				page = session.executeQuery(query, args, CANDIDATE_MAPPER);
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Found {} scheduled virtual appointments due for another check", page.size());
+			}
+			
+			if (page.size() < ownIds.size()) {
+				final Set<Integer> scheduledIds = page.stream().map(AppointmentCandidate::id).collect(toSet());
+				List<Integer> unscheduledIds = ownIds.stream().filter(id -> !scheduledIds.contains(id)).toList();
+				saveCheckpoints(unscheduledIds, List.of(), counts);
+			}
+			
+			total += page.size();
+			processPage(page, limiters, executor, counts);
+		} while (ids.size() == pageSize);
+		
+		return total;
+	}
+	
+	/**
+	 * Processes the new candidates i.e. the scheduled virtual appointments that ended before the
+	 * specified end time and ended, were created or were changed since the specified start time, this
+	 * way an appointment that becomes a candidate after it ended is also picked up. Candidates that
+	 * already have a checkpoint or were handled by this run are skipped, they are left to the retry
+	 * schedule. All the new candidates are scanned so that the watermark does not depend on the shards,
+	 * those owned by other members get a checkpoint that is due right away and are processed by their
+	 * owner.
+	 *
+	 * @return the number of candidates processed
+	 */
+	private int processNew(Assignment assignment, LocalDateTime from, LocalDateTime to, int pageSize,
+	    Limiters limiters, ExecutorService executor, RunCounts counts) throws Exception {
+		int total = 0;
+		Integer lastId = 0;
+		List<AppointmentCandidate> page;
+		do {
+			if (!holdsLease(counts)) {
+				break;
+			}
+			
+			List<Object> args = List.of("Virtual", "Scheduled", to, from, from, from, 0, lastId, pageSize);
+			try (QuerySession session = DbUtils.openSession(dataSource)) {
+				page = session.executeQuery(QUERY, args, CANDIDATE_MAPPER);
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Found {} new scheduled virtual appointment candidates since {} with id after {}",
+				    page.size(), from, lastId);
+			}
+			
+			if (page.isEmpty()) {
+				break;
+			}
+			
+			lastId = page.get(page.size() - 1).id();
+			final Set<Integer> checkpointed = checkpointStore
+			        .getCheckpointed(page.stream().map(AppointmentCandidate::id).toList());
+			List<AppointmentCandidate> own = new ArrayList<>(page.size());
+			List<Checkpoint> others = new ArrayList<>();
+			for (AppointmentCandidate a : page) {
+				if (checkpointed.contains(a.id()) || counts.handled.contains(a.id())) {
+					continue;
+				}
+				
+				if (assignment.owns(a.id())) {
+					own.add(a);
+				} else {
+					others.add(new Checkpoint(a.id(), a.uuid(), Stage.NEW));
+				}
+			}
+			
+			if (!others.isEmpty()) {
+				try {
+					checkpointStore.schedule(others);
+				}
+				catch (Exception e) {
+					counts.checkpointFailed = true;
+					log.error("Failed to schedule the checks of {} appointments owned by other members", others.size(),
+					    e);
+				}
+			}
+			
+			total += own.size();
+			processPage(own, limiters, executor, counts);
+		} while (page.size() == pageSize);
+		
+		return total;
+	}
+	
+	/**
+	 * Checks that this instance still holds its cluster lease before processing another page, the run is
+	 * stopped otherwise because another instance may have taken over its share of the work.
+	 *
+	 * @return true if the run can go on otherwise false
+	 */
+	private boolean holdsLease(RunCounts counts) {
+		if (coordinator.holdsLease()) {
+			return true;
+		}
+		
+		if (!counts.leaseLost) {
+			counts.leaseLost = true;
+			log.warn("Stopping the appointments task run because this instance lost its cluster lease");
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Processes the specified page of candidates, in parallel mode this method returns after all the
+	 * candidates in the page have been processed.
+	 *
+	 * @param page the candidates to process
+	 * @param limiters the concurrency limiters, null when processing sequentially
+	 * @param executor the executor to process the candidates on, null when processing sequentially
+	 * @param counts the run counts to update
+	 */
+	private void processPage(List<AppointmentCandidate> page, Limiters limiters, ExecutorService executor,
+	    RunCounts counts) {
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		final int chunkSize = Math.max(1, hcwLookupChunkSize);
+		for (int i = 0; i < page.size(); i += chunkSize) {
+			List<AppointmentCandidate> chunk = page.subList(i, Math.min(i + chunkSize, page.size()));
+			final Map<String, HcwAppointment> found = lookupInHcw(chunk, limiters);
+			final ChunkResult result = new ChunkResult(chunk.size());
+			if (executor == null) {
+				for (AppointmentCandidate a : chunk) {
+					processAndCount(a, found, null, result, counts);
+				}
+				
+				completeChunk(result, null, counts);
+			} else {
+				CompletableFuture<?>[] chunkFutures = chunk.stream().map(a -> CompletableFuture
+				        .runAsync(() -> processAndCount(a, found, limiters, result, counts), executor))
+				        .toArray(CompletableFuture[]::new);
+				futures.add(CompletableFuture.allOf(chunkFutures)
+				        .thenRunAsync(() -> completeChunk(result, limiters, counts), executor));
+			}
+		}
+		
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+	}
+	
+	/**
+	 * Sends the pending imports of the specified chunk to OpenMRS, marks the processed appointments as
+	 * completed and saves the checkpoints of the rest.
+	 *
+	 * @param result the chunk result
+	 * @param limiters the concurrency limiters, null when processing sequentially
+	 * @param counts the run counts to update
+	 */
+	private void completeChunk(ChunkResult result, Limiters limiters, RunCounts counts) {
+		try {
+			sendImports(result, limiters, counts);
+			List<Checkpoint> checkpoints = new ArrayList<>(result.checkpoints);
+			List<Integer> resolvedIds = new ArrayList<>(result.processed.size());
+			if (markAsCompleted(result.processed, counts)) {
+				result.processed.forEach(a -> resolvedIds.add(a.id()));
+			} else {
+				result.processed.forEach(a -> checkpoints.add(new Checkpoint(a.id(), a.uuid(), Stage.FAILED)));
+			}
+			
+			saveCheckpoints(resolvedIds, checkpoints, counts);
+		}
+		finally {
+			releaseClaims(result.claimed);
+		}
+	}
+	
+	/**
+	 * Releases the claims on the specified appointments once their imports have been sent, a failure
+	 * is only logged since the claims expire anyway.
+	 *
+	 * @param claimed the claimed appointments
+	 */
+	private void releaseClaims(List<AppointmentCandidate> claimed) {
+		try {
+			coordinator.release(claimed.stream().map(AppointmentCandidate::id).toList());
+		}
+		catch (Exception e) {
+			log.warn("Failed to release the claims on {} appointments", claimed.size(), e);
+		}
+		finally {
+			claimed.forEach(a -> inProgress.remove(a.uuid()));
+		}
+	}
+	
+	/**
+	 * Sends the pending imports of the specified chunk to OpenMRS in transaction bundles combining the
+	 * entries of several appointments up to the configured maximum number of entries, the entries of an
+	 * appointment are never split across bundles. Appointments whose bundle succeeds are added to the
+	 * processed appointments of the chunk. If a bundle with multiple appointments fails, each of them is
+	 * sent again on its own so that one bad appointment does not fail the others.
+	 *
+	 * @param result the chunk result
+	 * @param limiters the concurrency limiters, null when processing sequentially
+	 * @param counts the run counts to update
+	 */
+	private void sendImports(ChunkResult result, Limiters limiters, RunCounts counts) {
+		List<PendingImport> batch = new ArrayList<>();
+		int entryCount = 0;
+		for (PendingImport pendingImport : result.imports) {
+			if (!batch.isEmpty() && entryCount + pendingImport.entries().size() > transactionMaxEntries) {
+				sendTransaction(batch, result, limiters, counts);
+				batch = new ArrayList<>();
+				entryCount = 0;
+			}
+			
+			batch.add(pendingImport);
+			entryCount += pendingImport.entries().size();
 		}
 		
-		//TODO Process the appointments in parallel
-		for (Map<String, Object> a : results) {
-			final String uuid = (String) a.get("uuid");
-			Appointment appointment = hcwClient.getAppointmentByIdentifier(uuid);
-			if (appointment == null) {
+		if (!batch.isEmpty()) {
+			sendTransaction(batch, result, limiters, counts);
+		}
+	}
+	
+	private void sendTransaction(List<PendingImport> imports, ChunkResult result, Limiters limiters,
+	    RunCounts counts) {
+		List<BundleEntryComponent> entries = new ArrayList<>();
+		imports.forEach(i -> entries.addAll(i.entries()));
+		try {
+			List<IdType> ids = call(limiters == null ? null : limiters.openmrsFhir(),
+			    () -> openmrsClient.executeTransaction(entries));
+			int index = 0;
+			for (PendingImport pendingImport : imports) {
+				final int count = pendingImport.entries().size();
 				if (log.isDebugEnabled()) {
-					log.debug("No appointment found in hcw@home with uuid {}", uuid);
+					log.debug("Added {} to OpenMRS for ended appointment with uuid {}",
+					    ids.subList(index, index + count), pendingImport.appointment().uuid());
 				}
 				
-				//Could be not yet synced to hcw.
-				continue;
+				index += count;
+				result.processed.add(pendingImport.appointment());
+			}
+		}
+		catch (Throwable t) {
+			if (imports.size() > 1) {
+				log.warn("Failed to send transaction bundle for {} appointments, sending them one by one",
+				    imports.size(), t);
+				imports.forEach(i -> sendTransaction(List.of(i), result, limiters, counts));
+				return;
 			}
 			
-			Encounter encounter = hcwClient.getEncounterByAppointment(uuid);
-			if (encounter == null) {
+			final AppointmentCandidate a = imports.get(0).appointment();
+			counts.failed.incrementAndGet();
+			result.checkpoints.add(new Checkpoint(a.id(), a.uuid(), Stage.FAILED));
+			log.error("Failed to send transaction bundle for ended appointment with uuid {}", a.uuid(), t);
+		}
+	}
+	
+	/**
+	 * Marks the specified appointments as completed with a single JDBC batch in one transaction. The
+	 * update only applies to appointments that are still scheduled so that a status set by a clinician
+	 * in the meantime is not overwritten, such appointments are counted as skipped. If the batch fails
+	 * the transaction is rolled back and all the appointments are counted as failed, they are checked
+	 * again later which is safe because the OpenMRS encounter and obs are only created if they don't
+	 * already exist.
+	 *
+	 * @param appointments the appointments to mark as completed
+	 * @param counts the run counts to update
+	 * @return true if the update succeeded otherwise false
+	 */
+	private boolean markAsCompleted(List<AppointmentCandidate> appointments, RunCounts counts) {
+		if (appointments.isEmpty()) {
+			return true;
+		}
+		
+		List<List<Object>> batch = appointments.stream().map(a -> List.<Object> of(a.id())).toList();
+		int[] updateCounts;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.beginTransaction();
+			updateCounts = session.executeBatch(SQL_UPDATE_APPT, batch);
+			session.commit();
+		}
+		catch (Exception e) {
+			counts.failed.addAndGet(appointments.size());
+			log.error("Failed to mark {} appointments as completed", appointments.size(), e);
+			return false;
+		}
+		
+		for (int i = 0; i < appointments.size(); i++) {
+			if (i < updateCounts.length && updateCounts[i] == 0) {
+				counts.skipped.incrementAndGet();
+				log.warn("Appointment with uuid {} was not marked as completed because its status was changed",
+				    appointments.get(i).uuid());
+			} else {
+				counts.completed.incrementAndGet();
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Removes the checkpoints of the appointments that no longer need to be checked and records the
+	 * specified checkpoints, a failure is logged and prevents the watermark from being advanced so that
+	 * the affected appointments are scanned again by the next run.
+	 *
+	 * @param resolvedIds the ids of the appointments that no longer need to be checked
+	 * @param checkpoints the checkpoints to record
+	 * @param counts the run counts to update
+	 */
+	private void saveCheckpoints(List<Integer> resolvedIds, List<Checkpoint> checkpoints, RunCounts counts) {
+		try {
+			checkpointStore.remove(resolvedIds);
+			counts.parked.addAndGet(checkpointStore.record(checkpoints));
+		}
+		catch (Exception e) {
+			counts.checkpointFailed = true;
+			log.error("Failed to save the checkpoints of {} appointments", resolvedIds.size() + checkpoints.size(),
+			    e);
+		}
+	}
+	
+	/**
+	 * Imports the consultation of the scheduled virtual appointment with the specified uuid right away
+	 * instead of waiting for the next run, this is used when hcw@home notifies that the consultation was
+	 * closed. When running in a cluster, the appointment is only processed if it belongs to the share of
+	 * the work of this instance otherwise it is left to the instance that owns it.
+	 *
+	 * @param uuid the appointment uuid
+	 * @return the RunSummary of the processing, the total is 0 if no scheduled virtual appointment
+	 *         exists with the uuid, null if the appointment is owned by another instance
+	 * @throws SQLException
+	 */
+	public RunSummary processAppointment(String uuid) throws SQLException {
+		final long start = System.currentTimeMillis();
+		List<AppointmentCandidate> candidates;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			candidates = session.executeQuery(QUERY_BY_UUID, List.of(uuid, "Virtual", "Scheduled", 0),
+			    CANDIDATE_MAPPER);
+		}
+		
+		if (!candidates.isEmpty()) {
+			final Assignment assignment = coordinator.getAssignment();
+			if (assignment == null || !assignment.owns(candidates.get(0).id())) {
 				if (log.isDebugEnabled()) {
-					log.debug("No encounter found in hcw@home associated to appointment with uuid {}", uuid);
+					log.debug("Leaving appointment with uuid {} to the instance that owns it", uuid);
 				}
-				//Multiple reasons for this, could be not yet synced to hcw, or it is not ended yet.
-				continue;
+				
+				return null;
+			}
+		}
+		
+		RunCounts counts = new RunCounts();
+		if (candidates.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("No scheduled virtual appointment found with uuid {}", uuid);
+			}
+		} else {
+			processPage(candidates, null, null, counts);
+		}
+		
+		return new RunSummary(candidates.size(), counts.completed.get(), counts.skipped.get(), counts.failed.get(),
+		        counts.parked.get(), -1, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Gets the summary of the last run of this task.
+	 *
+	 * @return the RunSummary or null if the task has not yet run
+	 */
+	public RunSummary getLastRunSummary() {
+		return lastRunSummary;
+	}
+	
+	/**
+	 * Fetches the hcw@home appointments and encounters for the specified candidates in bulk.
+	 *
+	 * @param candidates the appointment candidates
+	 * @param limiters the concurrency limiters, null when processing sequentially
+	 * @return a map of appointment uuids to the matching hcw appointments or null if the lookup failed
+	 *         in which case each appointment is looked up individually
+	 */
+	private Map<String, HcwAppointment> lookupInHcw(List<AppointmentCandidate> candidates, Limiters limiters) {
+		final List<String> uuids = candidates.stream().map(AppointmentCandidate::uuid).toList();
+		try {
+			return call(limiters == null ? null : limiters.hcw(), () -> hcwClient.getAppointmentsWithEncounters(uuids));
+		}
+		catch (Exception e) {
+			log.warn("Failed to look up {} appointments in hcw@home in bulk, falling back to individual lookups",
+			    uuids.size(), e);
+			return null;
+		}
+	}
+	
+	private HcwAppointment lookupInHcw(String uuid, Limiters limiters) throws Exception {
+		final Semaphore hcwLimiter = limiters == null ? null : limiters.hcw();
+		Appointment appointment = call(hcwLimiter, () -> hcwClient.getAppointmentByIdentifier(uuid));
+		if (appointment == null) {
+			return null;
+		}
+		
+		return new HcwAppointment(appointment, call(hcwLimiter, () -> hcwClient.getEncounterByAppointment(uuid)));
+	}
+	
+	private void processAndCount(AppointmentCandidate a, Map<String, HcwAppointment> found, Limiters limiters,
+	    ChunkResult result, RunCounts counts) {
+		if (!inProgress.add(a.uuid())) {
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping appointment with uuid {} because it is already being processed", a.uuid());
 			}
 			
-			final String patientUuid = getPatientUuid(a);
-			final String providerUuid = getProviderUuid(a);
-			final String visitUuid = AppointmentTaskUtils.getActiveVisitUuid(patientUuid, openmrsRestClient);
-			final Date startDate = encounter.getPeriod().getStart();
-			final Date endDate = encounter.getPeriod().getEnd();
-			Map<String, Object> encData = createOpenMrsEncounter(encounter, uuid, encounterTypeUuid, patientUuid, visitUuid,
-			    providerUuid, startDate, endDate, dataSource, openmrsClient);
-			Type clinicalNotes = encounter.getExtensionByUrl(notesExtensionUrl).getValue();
-			if (clinicalNotes != null) {
-				final String notes = clinicalNotes.toString();
-				if (StringUtils.isNotBlank(notes)) {
-					createOpenMrsObs(uuid, patientUuid, encData, questionConceptUuid, notes, endDate, dataSource,
-					    openmrsClient);
+			counts.skipped.incrementAndGet();
+			return;
+		}
+		
+		boolean claimed = false;
+		try {
+			if (!coordinator.claim(a.id())) {
+				if (log.isDebugEnabled()) {
+					log.debug("Skipping appointment with uuid {} because another member claimed it", a.uuid());
 				}
+				
+				counts.skipped.incrementAndGet();
+				return;
+			}
+			
+			claimed = true;
+			result.claimed.add(a);
+			Stage stoppedAt;
+			if (limiters == null) {
+				stoppedAt = process(a, found, null, result);
+			} else {
+				stoppedAt = call(limiters.overall(), () -> process(a, found, limiters, result));
 			}
 			
-			markAppointmentAsCompleted(a);
+			if (stoppedAt != null) {
+				counts.skipped.incrementAndGet();
+				result.checkpoints.add(new Checkpoint(a.id(), a.uuid(), stoppedAt));
+			}
+		}
+		catch (Throwable t) {
+			counts.failed.incrementAndGet();
+			result.checkpoints.add(new Checkpoint(a.id(), a.uuid(), Stage.FAILED));
+			log.error("Failed to process ended appointment with uuid {}", a.uuid(), t);
+		}
+		finally {
+			//A claimed appointment is released once its chunk is complete
+			if (!claimed) {
+				inProgress.remove(a.uuid());
+			}
 		}
 	}
 	
-	private Object getAppointmentId(Map<String, Object> appointmentData) {
-		return appointmentData.get("patient_appointment_id");
+	/**
+	 * Creates the OpenMRS encounter and obs for the specified appointment from its hcw@home consultation
+	 * and adds it to the processed appointments of the chunk. When transaction bundles are enabled, the
+	 * bundle entries for the encounter and obs are instead added to the pending imports of the chunk.
+	 *
+	 * @return null if the appointment was processed otherwise the stage at which the processing stopped
+	 * @throws Exception
+	 */
+	private Stage process(AppointmentCandidate a, Map<String, HcwAppointment> found, Limiters limiters,
+	    ChunkResult result) throws Exception {
+		final String uuid = a.uuid();
+		HcwAppointment hcwAppointment = found != null ? found.get(uuid) : lookupInHcw(uuid, limiters);
+		if (hcwAppointment == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("No appointment found in hcw@home with uuid {}", uuid);
+			}
+			
+			//Could be not yet synced to hcw.
+			return Stage.APPOINTMENT_NOT_FOUND;
+		}
+		
+		final Encounter encounter = hcwAppointment.encounter();
+		if (encounter == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("No encounter found in hcw@home associated to appointment with uuid {}", uuid);
+			}
+			//Multiple reasons for this, could be not yet synced to hcw, or it is not ended yet.
+			return Stage.ENCOUNTER_NOT_FOUND;
+		}
+		
+		final Semaphore restLimiter = limiters == null ? null : limiters.openmrsRest();
+		final Semaphore fhirLimiter = limiters == null ? null : limiters.openmrsFhir();
+		
+		//No database connection is held while calling OpenMRS, the lookups are done in short sessions
+		final String visitUuid = call(restLimiter, () -> visitResolver.getActiveVisitUuid(a.patientUuid()));
+		final Date startDate = encounter.getPeriod().getStart();
+		final Date endDate = encounter.getPeriod().getEnd();
+		Type clinicalNotes = encounter.getExtensionByUrl(notesExtensionUrl).getValue();
+		final String notes = clinicalNotes != null ? clinicalNotes.toString() : null;
+		if (transactionMaxEntries > 0) {
+			List<BundleEntryComponent> entries;
+			try (QuerySession session = DbUtils.openSession(dataSource)) {
+				entries = createOpenMrsEntries(encounter, a, encounterTypeUuid, visitUuid, startDate, endDate,
+				    questionConceptUuid, notes, session);
+			}
+			
+			if (!entries.isEmpty()) {
+				result.imports.add(new PendingImport(a, entries));
+				return null;
+			}
+			
+			result.processed.add(a);
+			return null;
+		}
+		
+		final boolean hasNotes = StringUtils.isNotBlank(notes);
+		EncounterRef existingEnc;
+		boolean obsExists = false;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			existingEnc = getOpenMrsEncounter(a, startDate, session);
+			if (existingEnc != null && hasNotes) {
+				obsExists = openMrsObsExists(a, existingEnc, endDate, session);
+			}
+		}
+		
+		EncounterRef encRef = existingEnc;
+		if (encRef == null) {
+			encRef = call(fhirLimiter, () -> createOpenMrsEncounter(encounter, a, encounterTypeUuid, visitUuid,
+			    startDate, endDate, openmrsClient));
+		}
+		
+		if (hasNotes && !obsExists) {
+			final EncounterRef obsEncRef = encRef;
+			call(fhirLimiter, () -> {
+				createOpenMrsObs(a, obsEncRef, questionConceptUuid, notes, endDate, openmrsClient);
+				return null;
+			});
+		}
+		
+		result.processed.add(a);
+		return null;
 	}
 	
-	private String getPatientUuid(Map<String, Object> appointmentData) throws Exception {
-		Integer patientId = Utils.getPatientId(appointmentData);
-		return (String) executeQuery(QUERY_PATIENT_UUID, dataSource, List.of(patientId)).get(0).get("uuid");
+	/**
+	 * Calls the specified operation while holding a permit from the specified limiter.
+	 *
+	 * @param limiter the limiter of the downstream system called by the operation, null if unlimited
+	 * @param operation the operation to call
+	 * @return the result of the operation
+	 * @throws Exception
+	 */
+	private static <T> T call(Semaphore limiter, Callable<T> operation) throws Exception {
+		if (limiter == null) {
+			return operation.call();
+		}
+		
+		limiter.acquire();
+		try {
+			return operation.call();
+		}
+		finally {
+			limiter.release();
+		}
 	}
 	
-	private String getProviderUuid(Map<String, Object> appointmentData) throws Exception {
-		Object appointmentId = getAppointmentId(appointmentData);
-		return (String) executeQuery(QUERY_PROV_UUID, dataSource, List.of(appointmentId)).get(0).get("uuid");
+	/**
+	 * Summary of a run of the task.
+	 *
+	 * @param total the number of ended appointments found
+	 * @param completed the number of appointments that were marked as completed in OpenMRS
+	 * @param skipped the number of appointments skipped because they or their encounter were not found
+	 *            in hcw@home, or their status was changed before they could be marked as completed
+	 * @param failed the number of appointments that failed to be processed
+	 * @param newlyParked the number of appointments that were given up on during the run
+	 * @param parked the total number of appointments that were given up on, -1 if unknown
+	 * @param duration the duration of the run in milliseconds
+	 */
+	public record RunSummary(int total, int completed, int skipped, int failed, int newlyParked, int parked,
+	                         long duration) {}
+	
+	private record PendingImport(AppointmentCandidate appointment, List<BundleEntryComponent> entries) {}
+	
+	private record Limiters(Semaphore overall, Semaphore hcw, Semaphore openmrsRest, Semaphore openmrsFhir) {}
+	
+	private static class RunCounts {
+		
+		private final AtomicInteger completed = new AtomicInteger();
+		
+		private final AtomicInteger skipped = new AtomicInteger();
+		
+		private final AtomicInteger failed = new AtomicInteger();
+		
+		private final AtomicInteger parked = new AtomicInteger();
+		
+		private final Set<Integer> handled = ConcurrentHashMap.newKeySet();
+		
+		private volatile boolean checkpointFailed;
+		
+		private volatile boolean leaseLost;
+		
 	}
 	
-	private void markAppointmentAsCompleted(Map<String, Object> appointmentData) throws Exception {
-		try (Connection c = dataSource.getConnection(); PreparedStatement s = c.prepareStatement(SQL_UPDATE_APPT)) {
-			s.setInt(1, (Integer) getAppointmentId(appointmentData));
-			s.executeUpdate();
+	private static class ChunkResult {
+		
+		private final List<AppointmentCandidate> processed;
+		
+		private final List<Checkpoint> checkpoints;
+		
+		private final List<PendingImport> imports;
+		
+		private final List<AppointmentCandidate> claimed;
+		
+		private ChunkResult(int size) {
+			processed = Collections.synchronizedList(new ArrayList<>(size));
+			checkpoints = Collections.synchronizedList(new ArrayList<>(size));
+			imports = Collections.synchronizedList(new ArrayList<>(size));
+			claimed = Collections.synchronizedList(new ArrayList<>(size));
 		}
+		
 	}
 	
 }
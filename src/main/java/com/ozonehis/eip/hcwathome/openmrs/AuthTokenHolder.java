@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.ExchangeBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.eip.EIPException;
+import org.openmrs.eip.camel.OauthProcessor;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds the Authorization header used for requests to OpenMRS. When oauth is enabled the header is
+ * cached until the token expires, the expiry is read from the exp claim of the token. Once a token
+ * is within the refresh margin of its expiry, a new one is fetched in the background while callers
+ * keep using the current one, concurrent callers share a single in-flight refresh. When oauth is
+ * disabled a basic auth header is used which is encoded once.
+ */
+@Slf4j
+@Component
+public class AuthTokenHolder implements DisposableBean {
+	
+	private OauthProcessor oauthProcessor;
+	
+	private CamelContext camelContext;
+	
+	private String basicAuthHeader;
+	
+	private long refreshMargin;
+	
+	private volatile CachedHeader cached;
+	
+	private volatile boolean oauthDisabled;
+	
+	private CompletableFuture<CachedHeader> inFlight;
+	
+	private ExecutorService refresher;
+	
+	public AuthTokenHolder(OauthProcessor oauthProcessor, CamelContext camelContext,
+	    @Value("${openmrs.username}") String username, @Value("${openmrs.password}") char[] password,
+	    @Value("${openmrs.oauth.token.refresh.margin.ms}") long refreshMargin) {
+		this.oauthProcessor = oauthProcessor;
+		this.camelContext = camelContext;
+		this.refreshMargin = refreshMargin;
+		final String userAndPass = username + ":" + new String(password);
+		basicAuthHeader = "Basic " + Base64.getEncoder().encodeToString(userAndPass.getBytes(UTF_8));
+		refresher = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "openmrs-token-refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Gets the value of the Authorization header to set on requests to OpenMRS, blocks only if there
+	 * is no cached token or it has expired.
+	 *
+	 * @return the Authorization header value
+	 * @throws Exception
+	 */
+	public String getAuthHeader() throws Exception {
+		if (oauthDisabled) {
+			return basicAuthHeader;
+		}
+		
+		CachedHeader current = cached;
+		final long now = System.currentTimeMillis();
+		if (current != null && now < current.expiresAt()) {
+			if (now >= current.expiresAt() - refreshMargin) {
+				if (log.isDebugEnabled()) {
+					log.debug("OpenMRS oauth token is about to expire, refreshing it in the background");
+				}
+				
+				refresh();
+			}
+			
+			return current.header();
+		}
+		
+		CachedHeader fresh;
+		try {
+			fresh = refresh().get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EIPException("Interrupted while waiting for the OpenMRS oauth token");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			
+			throw new EIPException("Failed to get OpenMRS oauth token: " + e.getCause().getMessage());
+		}
+		
+		return fresh == null ? basicAuthHeader : fresh.header();
+	}
+	
+	@Override
+	public void destroy() {
+		refresher.shutdown();
+	}
+	
+	/**
+	 * Starts fetching a new token unless a fetch is already in progress in which case the in-flight
+	 * fetch is returned.
+	 *
+	 * @return a CompletableFuture that completes with the new header or null if oauth is disabled
+	 */
+	protected synchronized CompletableFuture<CachedHeader> refresh() {
+		if (inFlight == null) {
+			final CompletableFuture<CachedHeader> future = new CompletableFuture<>();
+			inFlight = future;
+			refresher.execute(() -> {
+				try {
+					CachedHeader header = fetch();
+					if (header != null) {
+						cached = header;
+					}
+					
+					future.complete(header);
+				}
+				catch (Throwable t) {
+					log.warn("Failed to fetch OpenMRS oauth token", t);
+					future.completeExceptionally(t);
+				}
+				finally {
+					synchronized (this) {
+						inFlight = null;
+					}
+				}
+			});
+		}
+		
+		return inFlight;
+	}
+	
+	private CachedHeader fetch() throws Exception {
+		final String header = fetchOauthHeader();
+		if (header == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("OAuth is disabled, using basic authentication for OpenMRS");
+			}
+			
+			oauthDisabled = true;
+			return null;
+		}
+		
+		final long expiresAt = getExpiry(header);
+		if (expiresAt == 0 && log.isDebugEnabled()) {
+			log.debug("No expiry found in the OpenMRS oauth token, it will not be cached");
+		}
+		
+		return new CachedHeader(header, expiresAt);
+	}
+	
+	protected String fetchOauthHeader() throws Exception {
+		Exchange exchange = ExchangeBuilder.anExchange(camelContext).build();
+		oauthProcessor.process(exchange);
+		return exchange.getMessage().getBody(String.class);
+	}
+	
+	/**
+	 * Gets the expiry of the token in the specified Authorization header.
+	 *
+	 * @param header the Authorization header value
+	 * @return the expiry in milliseconds since the epoch or 0 if it can't be read from the token
+	 */
+	protected static long getExpiry(String header) {
+		try {
+			Object exp = JwtUtils.parseToken(StringUtils.substringAfter(header, " ")).get("exp");
+			if (exp instanceof Number) {
+				return ((Number) exp).longValue() * 1000;
+			}
+		}
+		catch (Exception e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to parse OpenMRS oauth token", e);
+			}
+		}
+		
+		return 0;
+	}
+	
+	protected record CachedHeader(String header, long expiresAt) {}
+	
+}
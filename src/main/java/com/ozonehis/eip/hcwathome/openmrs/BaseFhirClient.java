@@ -7,6 +7,10 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.openmrs.eip.EIPException;
@@ -24,16 +28,20 @@ public abstract class BaseFhirClient {
 	
 	private String serverName;
 	
-	public BaseFhirClient(String serverName) {
+	private Executor executor;
+	
+	public BaseFhirClient(String serverName, Executor executor) {
 		this.serverName = serverName;
+		this.executor = executor;
 	}
 	
 	/**
 	 * Creates the specified resource in the fhir server.
 	 *
 	 * @param resource the resource to create
+	 * @return the MethodOutcome
 	 */
-	public void create(DomainResource resource) {
+	public MethodOutcome create(DomainResource resource) {
 		if (log.isDebugEnabled()) {
 			log.debug("Creating {} in {}", resource.fhirType(), serverName);
 		}
@@ -53,6 +61,38 @@ public abstract class BaseFhirClient {
 		if (log.isDebugEnabled()) {
 			log.debug("Successfully created {} in {}", resource.fhirType(), serverName);
 		}
+		
+		return outcome;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #create(DomainResource)}.
+	 *
+	 * @param resource the resource to create
+	 * @return a CompletableFuture that completes with the MethodOutcome
+	 */
+	public CompletableFuture<MethodOutcome> createAsync(DomainResource resource) {
+		return supplyAsync(() -> create(resource));
+	}
+	
+	/**
+	 * Runs the specified operation on the executor of this client, exceptions thrown by the operation
+	 * complete the returned future exceptionally as is.
+	 *
+	 * @param operation the operation to run
+	 * @return a CompletableFuture that completes with the result of the operation
+	 */
+	protected <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+		return CompletableFuture.supplyAsync(operation, executor);
+	}
+	
+	/**
+	 * Gets the name of the fhir server
+	 *
+	 * @return the server name
+	 */
+	public String getServerName() {
+		return serverName;
 	}
 	
 	protected String getErrorMessage(Exception e, String operation) {
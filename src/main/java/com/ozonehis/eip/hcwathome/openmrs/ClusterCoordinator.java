@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coordinates the {@link AppointmentsTask} between multiple instances of the application that share
+ * the same OpenMRS and management databases. Each instance holds a lease in the management database
+ * which it renews in the background, an instance whose lease has expired is considered dead and is
+ * removed by the next live instance that reads the members. In leader mode the task only runs on the
+ * live member that joined first, in sharded mode the appointments are split between the live members
+ * by id modulo the member count. Members are read at the start of each run so the work is rebalanced
+ * once the lease of a dead member expires or a member leaves on shutdown. Lease expiry times are set
+ * and compared with the clock of the management database so the clocks of the instances don't need
+ * to be in sync. A run checks {@link #holdsLease()} before each page and stops once the lease of this
+ * member has expired or was re-acquired. Since membership changes only take effect at the next run,
+ * two members can own the same appointment while the shards are rebalanced, a member therefore
+ * {@link #claim(int) claims} an appointment in the management database before importing it and skips
+ * it if another member holds a live claim.
+ */
+@Slf4j
+@Component
+public class ClusterCoordinator implements InitializingBean, DisposableBean {
+	
+	protected static final Assignment ALL = new Assignment(0, 1);
+	
+	protected static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS hcw_cluster_member (member_id "
+	        + "VARCHAR(100) NOT NULL PRIMARY KEY, joined BIGINT NOT NULL, expires DATETIME NOT NULL)";
+	
+	protected static final String SQL_CREATE_CLAIM_TABLE = "CREATE TABLE IF NOT EXISTS hcw_appointment_claim "
+	        + "(appointment_id INT NOT NULL PRIMARY KEY, member_id VARCHAR(100) NOT NULL, expires DATETIME NOT NULL)";
+	
+	protected static final String SQL_EXPIRES = "TIMESTAMPADD(MICROSECOND, ?, CURRENT_TIMESTAMP)";
+	
+	protected static final String SQL_RENEW = "UPDATE hcw_cluster_member SET expires = " + SQL_EXPIRES + " WHERE "
+	        + "member_id = ?";
+	
+	protected static final String SQL_INSERT = "INSERT INTO hcw_cluster_member (member_id,joined,expires) VALUES "
+	        + "(?,?," + SQL_EXPIRES + ")";
+	
+	protected static final String SQL_DELETE_EXPIRED = "DELETE FROM hcw_cluster_member WHERE expires < "
+	        + "CURRENT_TIMESTAMP";
+	
+	protected static final String SQL_DELETE = "DELETE FROM hcw_cluster_member WHERE member_id = ?";
+	
+	protected static final String QUERY_MEMBERS = "SELECT member_id FROM hcw_cluster_member WHERE expires >= "
+	        + "CURRENT_TIMESTAMP ORDER BY joined, member_id";
+	
+	protected static final String SQL_TAKE_CLAIM = "UPDATE hcw_appointment_claim SET member_id = ?,expires = "
+	        + SQL_EXPIRES + " WHERE appointment_id = ? AND (member_id = ? OR expires < CURRENT_TIMESTAMP)";
+	
+	protected static final String SQL_INSERT_CLAIM = "INSERT INTO hcw_appointment_claim (appointment_id,member_id,"
+	        + "expires) VALUES (?,?," + SQL_EXPIRES + ")";
+	
+	protected static final String SQL_DELETE_CLAIM = "DELETE FROM hcw_appointment_claim WHERE appointment_id = ? AND "
+	        + "member_id = ?";
+	
+	private DataSource dataSource;
+	
+	private Mode mode;
+	
+	private String memberId;
+	
+	private long leaseDuration;
+	
+	private long claimDuration;
+	
+	private ScheduledExecutorService heartbeat;
+	
+	private boolean joined;
+	
+	//Local deadline of the lease in System.nanoTime() units, it is not affected by the clock of this instance
+	private volatile long leaseExpires;
+	
+	private volatile boolean rejoined;
+	
+	public ClusterCoordinator(@Qualifier("mngtDataSource") DataSource dataSource,
+	    @Value("${appointments.task.cluster.mode}") Mode mode,
+	    @Value("${appointments.task.cluster.member.id:}") String memberId,
+	    @Value("${appointments.task.cluster.lease.ms}") long leaseDuration,
+	    @Value("${appointments.task.cluster.claim.ms}") long claimDuration) {
+		this.dataSource = dataSource;
+		this.mode = mode;
+		this.memberId = StringUtils.isBlank(memberId) ? UUID.randomUUID().toString() : memberId;
+		this.leaseDuration = leaseDuration;
+		this.claimDuration = claimDuration;
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws SQLException {
+		if (mode == Mode.NONE) {
+			return;
+		}
+		
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(SQL_CREATE_TABLE, List.of());
+			session.executeUpdate(SQL_CREATE_CLAIM_TABLE, List.of());
+		}
+		
+		renewLease();
+		log.info("Joined appointments task cluster in {} mode as member {}", mode, memberId);
+		final long interval = Math.max(1, leaseDuration / 3);
+		heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "cluster-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		heartbeat.scheduleWithFixedDelay(() -> {
+			try {
+				renewLease();
+			}
+			catch (Throwable t) {
+				log.warn("Failed to renew the cluster lease of member {}", memberId, t);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	@Override
+	public void destroy() {
+		if (heartbeat == null) {
+			return;
+		}
+		
+		heartbeat.shutdownNow();
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(SQL_DELETE, List.of(memberId));
+		}
+		catch (Exception e) {
+			log.warn("Failed to leave the appointments task cluster as member {}", memberId, e);
+		}
+	}
+	
+	/**
+	 * Gets the share of the appointments this member should process in the current run of the
+	 * {@link AppointmentsTask}, the lease of this member is renewed and the members whose lease has
+	 * expired are removed.
+	 *
+	 * @return the Assignment or null if this member should not run the task
+	 * @throws SQLException
+	 */
+	public Assignment getAssignment() throws SQLException {
+		if (mode == Mode.NONE) {
+			return ALL;
+		}
+		
+		renewLease();
+		rejoined = false;
+		List<String> members;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			final int removed = session.executeUpdate(SQL_DELETE_EXPIRED, List.of());
+			if (removed > 0) {
+				log.info("Removed {} cluster members whose lease expired", removed);
+			}
+			
+			members = session.executeQuery(QUERY_MEMBERS, List.of(), r -> r.getString(1));
+		}
+		
+		final int index = members.indexOf(memberId);
+		if (log.isDebugEnabled()) {
+			log.debug("Live cluster members: {}, this member: {}", members, memberId);
+		}
+		
+		if (index < 0) {
+			log.warn("Cluster member {} does not hold a live lease", memberId);
+			return null;
+		}
+		
+		if (mode == Mode.LEADER) {
+			return index == 0 ? ALL : null;
+		}
+		
+		return new Assignment(index, members.size());
+	}
+	
+	/**
+	 * Checks whether this member still holds the lease it had when {@link #getAssignment()} was last
+	 * called, i.e. the lease has not expired and was not lost and re-acquired since then.
+	 *
+	 * @return true if the current assignment is still valid otherwise false
+	 */
+	public boolean holdsLease() {
+		return mode == Mode.NONE || (!rejoined && System.nanoTime() - leaseExpires < 0);
+	}
+	
+	/**
+	 * Renews the lease of this member, the member is added if it has no lease. The lease is considered
+	 * held locally until the lease duration has elapsed since the renewal started which is never later
+	 * than its expiry time in the database.
+	 *
+	 * @throws SQLException
+	 */
+	protected synchronized void renewLease() throws SQLException {
+		final long start = System.nanoTime();
+		final long duration = TimeUnit.MILLISECONDS.toMicros(leaseDuration);
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			if (session.executeUpdate(SQL_RENEW, List.of(duration, memberId)) == 0) {
+				session.executeUpdate(SQL_INSERT, List.of(memberId, System.currentTimeMillis(), duration));
+				if (joined) {
+					log.warn("Cluster member {} lost its lease and joined again", memberId);
+					rejoined = true;
+				}
+			}
+		}
+		
+		joined = true;
+		leaseExpires = start + TimeUnit.MILLISECONDS.toNanos(leaseDuration);
+	}
+	
+	/**
+	 * Claims the appointment with the specified id for this member before it is imported, a claim held
+	 * by another member is only taken over once it has expired. A claim expires after the claim
+	 * duration in case this member dies before releasing it.
+	 *
+	 * @param appointmentId the appointment id
+	 * @return true if this member holds the claim otherwise false
+	 * @throws SQLException
+	 */
+	public boolean claim(int appointmentId) throws SQLException {
+		if (mode == Mode.NONE) {
+			return true;
+		}
+		
+		final long duration = TimeUnit.MILLISECONDS.toMicros(claimDuration);
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			if (session.executeUpdate(SQL_TAKE_CLAIM, List.of(memberId, duration, appointmentId, memberId)) > 0) {
+				return true;
+			}
+			
+			try {
+				session.executeUpdate(SQL_INSERT_CLAIM, List.of(appointmentId, memberId, duration));
+				return true;
+			}
+			catch (SQLIntegrityConstraintViolationException e) {
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Releases the claims of this member on the appointments with the specified ids.
+	 *
+	 * @param appointmentIds the appointment ids
+	 * @throws SQLException
+	 */
+	public void release(List<Integer> appointmentIds) throws SQLException {
+		if (mode == Mode.NONE || appointmentIds.isEmpty()) {
+			return;
+		}
+		
+		List<List<Object>> batch = appointmentIds.stream().map(id -> List.<Object> of(id, memberId)).toList();
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeBatch(SQL_DELETE_CLAIM, batch);
+		}
+	}
+	
+	/**
+	 * Gets the id of this member.
+	 *
+	 * @return the member id
+	 */
+	public String getMemberId() {
+		return memberId;
+	}
+	
+	/**
+	 * How the task is coordinated between the instances.
+	 */
+	public enum Mode {
+		
+		NONE,
+		
+		LEADER,
+		
+		SHARDED
+		
+	}
+	
+	/**
+	 * The share of the appointments a member processes.
+	 *
+	 * @param index the index of the member's shard
+	 * @param count the number of shards
+	 */
+	public record Assignment(int index, int count) {
+		
+		/**
+		 * Checks whether the appointment with the specified id belongs to this shard.
+		 *
+		 * @param appointmentId the appointment id
+		 * @return true if the appointment belongs to this shard otherwise false
+		 */
+		public boolean owns(int appointmentId) {
+			return appointmentId % count == index;
+		}
+		
+	}
+	
+}
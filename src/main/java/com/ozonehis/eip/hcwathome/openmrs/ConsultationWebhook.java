@@ -0,0 +1,279 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Identifier;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Route exposing the HTTP endpoint that hcw@home calls when a consultation is closed so that its
+ * encounter and clinical notes are imported into OpenMRS right away instead of waiting for the next
+ * run of the {@link AppointmentsTask} which remains as a safety net. The request body is either a fhir
+ * Encounter referencing the hcw@home appointment or a JSON object with an identifier field set to the
+ * OpenMRS appointment uuid. Requests must have an Authorization header with the configured bearer
+ * token. Accepted requests are replied to with a 202 and the import runs on a bounded pool of threads,
+ * a 503 is returned when its queue is full.
+ */
+@Slf4j
+@Component
+public class ConsultationWebhook extends RouteBuilder implements DisposableBean {
+	
+	protected static final String FIELD_RESOURCE_TYPE = "resourceType";
+	
+	protected static final String FIELD_IDENTIFIER = "identifier";
+	
+	private static final String ROUTE_ID = "consultation-webhook";
+	
+	private static final String HEADER_AUTH = "Authorization";
+	
+	private AppointmentsTask appointmentsTask;
+	
+	private HcwFhirClient hcwClient;
+	
+	private boolean enabled;
+	
+	private String host;
+	
+	private int port;
+	
+	private String path;
+	
+	private byte[] expectedAuthHeader;
+	
+	@Value("${hcwathome.fhir.identifier.system}")
+	private String idSystem;
+	
+	private ThreadPoolExecutor executor;
+	
+	public ConsultationWebhook(AppointmentsTask appointmentsTask, HcwFhirClient hcwClient,
+	    @Value("${hcwathome.webhook.enabled}") boolean enabled, @Value("${hcwathome.webhook.host}") String host,
+	    @Value("${hcwathome.webhook.port}") int port, @Value("${hcwathome.webhook.path}") String path,
+	    @Value("${hcwathome.webhook.token:}") String token, @Value("${hcwathome.webhook.threads}") int threads,
+	    @Value("${hcwathome.webhook.queue.size}") int queueSize) {
+		this.appointmentsTask = appointmentsTask;
+		this.hcwClient = hcwClient;
+		this.enabled = enabled;
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.expectedAuthHeader = ("Bearer " + token).getBytes(UTF_8);
+		if (enabled && StringUtils.isBlank(token)) {
+			throw new EIPException("A token is required when the consultation webhook is enabled");
+		}
+		
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+		        new ArrayBlockingQueue<>(queueSize), r -> {
+			        Thread thread = new Thread(r, ROUTE_ID + "-" + threadCount.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        });
+	}
+	
+	@Override
+	public void configure() {
+		if (!enabled) {
+			return;
+		}
+		
+		errorHandler("watcherErrorHandler");
+		
+		from("jetty:http://" + host + ":" + port + path + "?httpMethodRestrict=POST").routeId(ROUTE_ID)
+		        .process(this::handle);
+		
+		log.info("Consultation webhook listening on {}:{}{}", host, port, path);
+	}
+	
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+	
+	protected void handle(Exchange exchange) {
+		final Message message = exchange.getMessage();
+		final String authHeader = message.getHeader(HEADER_AUTH, String.class);
+		final String body = message.getBody(String.class);
+		//Don't echo any of the request headers in the response
+		message.removeHeaders("*");
+		message.setBody(null);
+		message.setHeader(Exchange.HTTP_RESPONSE_CODE, getResponseCode(authHeader, body));
+	}
+	
+	private int getResponseCode(String authHeader, String body) {
+		if (authHeader == null || !MessageDigest.isEqual(expectedAuthHeader, authHeader.getBytes(UTF_8))) {
+			log.warn("Rejecting consultation webhook request with missing or invalid token");
+			return 401;
+		}
+		
+		AppointmentRef ref;
+		try {
+			ref = getAppointmentRef(body == null ? null : HcwOpenmrsUtils.getMapper().readTree(body));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			log.warn("Rejecting invalid consultation webhook request: {}", e.getMessage());
+			return 400;
+		}
+		
+		String uuid = ref == null ? null : ref.uuid();
+		if (ref != null && ref.hcwId() != null) {
+			try {
+				uuid = getAppointmentUuid(ref.hcwId());
+			}
+			catch (ResourceNotFoundException e) {
+				log.warn("No appointment found in hcw@home with id {}", ref.hcwId());
+				return 404;
+			}
+			catch (FhirClientConnectionException e) {
+				log.error("Failed to connect to hcw@home to read the appointment with id {}", ref.hcwId(), e);
+				return 503;
+			}
+			catch (BaseServerResponseException e) {
+				log.error("Failed to read the appointment with id {} from hcw@home", ref.hcwId(), e);
+				return 502;
+			}
+		}
+		
+		if (uuid == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Ignoring consultation webhook request with no matching OpenMRS appointment");
+			}
+			
+			return 202;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Received consultation webhook request for appointment with uuid {}", uuid);
+		}
+		
+		final String appointmentUuid = uuid;
+		try {
+			executor.execute(() -> process(appointmentUuid));
+		}
+		catch (RejectedExecutionException e) {
+			//The appointment is still imported by the next run of the task
+			log.warn("Too many pending consultation webhook requests, rejecting appointment with uuid {}", uuid);
+			return 503;
+		}
+		
+		return 202;
+	}
+	
+	private void process(String uuid) {
+		try {
+			AppointmentsTask.RunSummary summary = appointmentsTask.processAppointment(uuid);
+			if (summary == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Appointment with uuid {} is owned by another instance in the cluster", uuid);
+				}
+			} else if (summary.failed() > 0) {
+				log.warn("Failed to import appointment with uuid {} from the consultation webhook", uuid);
+			}
+		}
+		catch (Throwable t) {
+			log.error("Failed to process consultation webhook request for appointment with uuid {}", uuid, t);
+		}
+	}
+	
+	/**
+	 * Gets the reference to the appointment from the specified webhook request body.
+	 *
+	 * @param body the request body
+	 * @return the AppointmentRef or null if the request should be ignored
+	 * @throws IllegalArgumentException if the body is not a supported payload
+	 */
+	protected AppointmentRef getAppointmentRef(JsonNode body) {
+		if (body == null || !body.isObject()) {
+			throw new IllegalArgumentException("Expected a JSON object");
+		}
+		
+		if (!body.has(FIELD_RESOURCE_TYPE)) {
+			final String uuid = body.path(FIELD_IDENTIFIER).asText(null);
+			if (StringUtils.isBlank(uuid)) {
+				throw new IllegalArgumentException("No identifier found");
+			}
+			
+			return new AppointmentRef(uuid, null);
+		}
+		
+		if (!"Encounter".equals(body.get(FIELD_RESOURCE_TYPE).asText())) {
+			throw new IllegalArgumentException("Unsupported resource type " + body.get(FIELD_RESOURCE_TYPE).asText());
+		}
+		
+		final String status = body.path("status").asText(null);
+		if (status != null && !"finished".equals(status)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Ignoring encounter with status {}", status);
+			}
+			
+			return null;
+		}
+		
+		final String reference = body.path("appointment").path(0).path("reference").asText(null);
+		if (StringUtils.isBlank(reference)) {
+			throw new IllegalArgumentException("No appointment reference found in the encounter");
+		}
+		
+		return new AppointmentRef(null, StringUtils.substringAfterLast("/" + reference, "/"));
+	}
+	
+	/**
+	 * Reads the appointment with the specified id from hcw@home and gets the OpenMRS appointment uuid
+	 * from its identifiers.
+	 *
+	 * @param hcwId the hcw@home appointment id
+	 * @return the appointment uuid or null if the appointment has no matching identifier
+	 */
+	protected String getAppointmentUuid(String hcwId) {
+		Appointment appointment = hcwClient.getAppointmentById(hcwId);
+		String uuid = null;
+		for (Identifier identifier : appointment.getIdentifier()) {
+			if (idSystem == null || idSystem.equals(identifier.getSystem())) {
+				uuid = identifier.getValue();
+				break;
+			}
+		}
+		
+		return uuid;
+	}
+	
+	/**
+	 * Reference to the appointment of a webhook request, either the OpenMRS appointment uuid or the id of
+	 * the hcw@home appointment whose identifier holds it.
+	 *
+	 * @param uuid the OpenMRS appointment uuid
+	 * @param hcwId the hcw@home appointment id
+	 */
+	protected record AppointmentRef(String uuid, String hcwId) {}
+	
+}
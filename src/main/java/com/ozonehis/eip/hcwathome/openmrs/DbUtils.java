@@ -7,54 +7,59 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.sql.DataSource;
 
 public class DbUtils {
 	
 	/**
-	 * Executes the specified query with a prepared statement and returns a list of mappings between
-	 * column names and their values.
-	 * 
+	 * Executes the specified query with a prepared statement and maps each row with the specified
+	 * {@link RowMapper}.
+	 *
 	 * @param query the query to execute
 	 * @param dataSource the datasource to use to execute the query
 	 * @param values the values to set for the prepared statement
-	 * @return List
+	 * @param mapper the {@link RowMapper} to apply to each row
+	 * @return List of mapped rows
 	 * @throws SQLException
 	 */
-	public static List<Map<String, Object>> executeQuery(String query, DataSource dataSource, List<Object> values)
+	public static <T> List<T> executeQuery(String query, DataSource dataSource, List<Object> values,
+	                                       RowMapper<T> mapper)
 	    throws SQLException {
-		List<Map<String, Object>> rows = new ArrayList<>();
-		try (Connection c = dataSource.getConnection(); PreparedStatement s = c.prepareStatement(query)) {
-			for (int i = 0; i < values.size(); i++) {
-				s.setObject(i + 1, values.get(i));
-			}
-			
-			try (ResultSet r = s.executeQuery()) {
-				ResultSetMetaData rmd = r.getMetaData();
-				int columnCount = rmd.getColumnCount();
-				while (r.next()) {
-					Map<String, Object> row = new HashMap<>();
-					for (int i = 1; i <= columnCount; i++) {
-						row.put(rmd.getColumnName(i), r.getObject(i));
-					}
-					
-					rows.add(row);
-				}
-				
-			}
+		try (QuerySession session = openSession(dataSource)) {
+			return session.executeQuery(query, values, mapper);
 		}
-		
-		return rows;
+	}
+	
+	/**
+	 * Executes the specified query with a prepared statement and returns the value of the first column
+	 * in the first row, this is intended for lookups that return a single value.
+	 *
+	 * @param query the query to execute
+	 * @param dataSource the datasource to use to execute the query
+	 * @param values the values to set for the prepared statement
+	 * @param type the java type of the value
+	 * @return the value or null if the query returns no rows
+	 * @throws SQLException
+	 */
+	public static <T> T querySingleValue(String query, DataSource dataSource, List<Object> values, Class<T> type)
+	    throws SQLException {
+		try (QuerySession session = openSession(dataSource)) {
+			return session.querySingleValue(query, values, type);
+		}
+	}
+	
+	/**
+	 * Opens a {@link QuerySession} to execute multiple statements for a single unit of work on one
+	 * connection, callers are required to close the returned session.
+	 *
+	 * @param dataSource the datasource to get the connection from
+	 * @return QuerySession
+	 */
+	public static QuerySession openSession(DataSource dataSource) {
+		return new QuerySession(dataSource);
 	}
 	
 }
@@ -0,0 +1,16 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+/**
+ * Identifies an encounter in the OpenMRS database.
+ *
+ * @param id the encounter id, null for an encounter that was just created via fhir
+ * @param uuid the encounter uuid
+ */
+public record EncounterRef(Integer id, String uuid) {}
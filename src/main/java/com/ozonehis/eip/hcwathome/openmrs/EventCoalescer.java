@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AggregationStrategy;
+import org.apache.camel.Exchange;
+import org.openmrs.eip.mysql.watcher.Event;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AggregationStrategy} that collapses pending events for the same row into a single event,
+ * since the processors always reload the current state from the database only the most recent event
+ * needs to be processed except for a delete which always wins.
+ */
+@Slf4j
+@Component
+public class EventCoalescer implements AggregationStrategy {
+	
+	protected static final String OP_DELETE = "d";
+	
+	private final AtomicLong coalescedCount = new AtomicLong();
+	
+	@Override
+	public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+		if (oldExchange == null) {
+			return newExchange;
+		}
+		
+		coalescedCount.incrementAndGet();
+		Event oldEvent = oldExchange.getIn().getBody(Event.class);
+		Event newEvent = newExchange.getIn().getBody(Event.class);
+		if (log.isDebugEnabled()) {
+			log.debug("Coalescing {} event with operation {} into pending event with operation {}",
+			    newEvent.getTableName(), newEvent.getOperation(), oldEvent.getOperation());
+		}
+		
+		if (OP_DELETE.equals(oldEvent.getOperation())) {
+			return oldExchange;
+		}
+		
+		return newExchange;
+	}
+	
+	/**
+	 * Gets the number of events that have been discarded because they were collapsed into another
+	 * pending event.
+	 *
+	 * @return the count
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+	
+}
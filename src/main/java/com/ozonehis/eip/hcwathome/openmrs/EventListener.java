@@ -7,11 +7,25 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import org.apache.camel.Route;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.ProcessorDefinition;
+import org.apache.camel.support.RoutePolicySupport;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Routes the database events to the event processors, optionally coalescing the events for the same
+ * row within a window and dispatching them to the lanes of the {@link PartitionedEventDispatcher}.
+ * The aggregator returns to the debezium reader as soon as an event is added so a batch read from the
+ * binlog is drained in a burst much shorter than the window, the events of a batch for the same row
+ * therefore collapse without a size based completion which would be per row anyway.
+ * When the route stops, the pending aggregates are completed and the lanes are drained before the
+ * processor route stops. Like the lanes, pending aggregates only live in memory so they are lost if
+ * the process dies, i.e. delivery is at most once when coalescing is enabled.
+ */
 @Slf4j
 @Component
 public class EventListener extends RouteBuilder {
@@ -20,11 +34,75 @@ public class EventListener extends RouteBuilder {
 	
 	private static final String ROUTE_ENDPOINT = "direct:" + ROUTE_ID;
 	
+	private static final String PROCESSOR_ROUTE_ID = "event-processor";
+	
+	protected static final String PROCESSOR_ENDPOINT = "direct:" + PROCESSOR_ROUTE_ID;
+	
+	private static final String CORRELATION_KEY = "${body.tableName}:${body.identifier}";
+	
+	private static final int PROCESSOR_STARTUP_ORDER = 901;
+	
+	private static final int LISTENER_STARTUP_ORDER = 902;
+	
+	@Value("${hcwathome.event.coalesce.window.ms}")
+	private long coalesceWindow;
+	
+	private EventCoalescer eventCoalescer;
+	
+	private PartitionedEventDispatcher eventDispatcher;
+	
+	public EventListener(EventCoalescer eventCoalescer, PartitionedEventDispatcher eventDispatcher) {
+		this.eventCoalescer = eventCoalescer;
+		this.eventDispatcher = eventDispatcher;
+	}
+	
 	@Override
 	public void configure() {
 		errorHandler("watcherErrorHandler");
 		
-		from(ROUTE_ENDPOINT).routeId(ROUTE_ID).process("eventRoutingProcessor");
+		//Routes are stopped in the reverse order they are started so the processor route stops last
+		ProcessorDefinition<?> route = from(ROUTE_ENDPOINT).routeId(ROUTE_ID).startupOrder(LISTENER_STARTUP_ORDER)
+		        .routePolicy(new LaneDrainingPolicy());
+		if (coalesceWindow > 0) {
+			log.info("Coalescing events for the same row within a window of {}ms", coalesceWindow);
+			
+			route = route.aggregate(simple(CORRELATION_KEY), eventCoalescer).completionInterval(coalesceWindow)
+			        .forceCompletionOnStop().completeAllOnStop();
+		}
+		
+		if (eventDispatcher.isEnabled()) {
+			log.info("Dispatching events to {} lanes", eventDispatcher.getLaneCount());
+			
+			route.process(eventDispatcher);
+		} else {
+			route.to(PROCESSOR_ENDPOINT);
+		}
+		
+		from(PROCESSOR_ENDPOINT).routeId(PROCESSOR_ROUTE_ID).startupOrder(PROCESSOR_STARTUP_ORDER)
+		        .process("eventRoutingProcessor");
+	}
+	
+	/**
+	 * Drains the event lanes once the listener route has stopped, i.e. after the pending aggregates were
+	 * completed, while the processor route is still running.
+	 */
+	private class LaneDrainingPolicy extends RoutePolicySupport {
+		
+		@Override
+		public void onStop(Route route) {
+			if (!eventDispatcher.isEnabled()) {
+				return;
+			}
+			
+			try {
+				eventDispatcher.drain();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted while draining the event lanes");
+			}
+		}
+		
 	}
 	
 }
@@ -25,8 +25,11 @@ public class EventRoutingProcessor implements Processor {
 	
 	private AppointmentEventProcessor appointmentProcessor;
 	
-	public EventRoutingProcessor(AppointmentEventProcessor appointmentProcessor) {
+	private PersonEventProcessor personProcessor;
+	
+	public EventRoutingProcessor(AppointmentEventProcessor appointmentProcessor, PersonEventProcessor personProcessor) {
 		this.appointmentProcessor = appointmentProcessor;
+		this.personProcessor = personProcessor;
 	}
 	
 	@Override
@@ -48,6 +51,11 @@ public class EventRoutingProcessor implements Processor {
 			case "patient_appointment":
 				processor = appointmentProcessor;
 				break;
+			case "person":
+			case "person_name":
+			case "person_attribute":
+				processor = personProcessor;
+				break;
 			default:
 				processor = null;
 		}
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logs at a fixed interval the number of events that were coalesced into another pending event and
+ * the number of appointment events that were pushed to hcw@home or skipped because the synced fields
+ * had not changed.
+ */
+@Slf4j
+@Component
+public class EventStatsLogger implements DisposableBean {
+	
+	private EventCoalescer eventCoalescer;
+	
+	private AppointmentProcessor appointmentProcessor;
+	
+	private ScheduledExecutorService statsExecutor;
+	
+	public EventStatsLogger(EventCoalescer eventCoalescer, AppointmentProcessor appointmentProcessor,
+	    @Value("${hcwathome.event.stats.interval.ms}") long statsInterval) {
+		this.eventCoalescer = eventCoalescer;
+		this.appointmentProcessor = appointmentProcessor;
+		if (statsInterval > 0) {
+			statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "event-stats");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			statsExecutor.scheduleWithFixedDelay(this::logStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if (statsExecutor != null) {
+			statsExecutor.shutdownNow();
+		}
+	}
+	
+	protected void logStats() {
+		log.info("Events -> coalesced: {}, appointments pushed: {}, appointments skipped: {}",
+		    eventCoalescer.getCoalescedCount(), appointmentProcessor.getPushedCount(),
+		    appointmentProcessor.getSkippedCount());
+	}
+	
+}
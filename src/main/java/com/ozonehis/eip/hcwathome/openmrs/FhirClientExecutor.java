@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executor on which the asynchronous operations of the fhir clients run, it uses a virtual thread
+ * per task when enabled and supported by the JVM otherwise a fixed pool of daemon threads.
+ */
+@Component
+public class FhirClientExecutor implements Executor, DisposableBean {
+	
+	private ExecutorService executor;
+	
+	public FhirClientExecutor(@Value("${fhir.async.virtual.threads}") boolean useVirtualThreads,
+	    @Value("${fhir.async.max.threads}") int maxThreads) {
+		executor = HcwOpenmrsUtils.newExecutor("fhir-client", useVirtualThreads, maxThreads);
+	}
+	
+	@Override
+	public void execute(Runnable command) {
+		executor.execute(command);
+	}
+	
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+	
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.interceptor.GZipContentInterceptor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates the HAPI fhir clients used to talk to hcw@home and OpenMRS, each client gets its own fhir
+ * context and pooled connection manager whose usage is exposed via {@link #getPoolStats(String)} and
+ * optionally logged at a fixed interval. The timeouts are taken from the restful client factory of the
+ * fhir context of the template client which is left untouched.
+ */
+@Slf4j
+@Component
+public class FhirHttpClientConfigurer implements DisposableBean {
+	
+	private int maxTotal;
+	
+	private int maxPerRoute;
+	
+	private long idleTimeout;
+	
+	private boolean gzipRequests;
+	
+	private boolean gzipResponses;
+	
+	private EncodingEnum encoding;
+	
+	private final Map<String, PoolingHttpClientConnectionManager> pools = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService statsExecutor;
+	
+	public FhirHttpClientConfigurer(@Value("${fhir.http.pool.max.total}") int maxTotal,
+	    @Value("${fhir.http.pool.max.per.route}") int maxPerRoute,
+	    @Value("${fhir.http.pool.idle.timeout.ms}") long idleTimeout,
+	    @Value("${fhir.http.gzip.requests}") boolean gzipRequests,
+	    @Value("${fhir.http.gzip.responses}") boolean gzipResponses,
+	    @Value("${fhir.encoding}") EncodingEnum encoding,
+	    @Value("${fhir.http.pool.stats.interval.ms}") long statsInterval) {
+		this.maxTotal = maxTotal;
+		this.maxPerRoute = maxPerRoute;
+		this.idleTimeout = idleTimeout;
+		this.gzipRequests = gzipRequests;
+		this.gzipResponses = gzipResponses;
+		this.encoding = encoding;
+		if (statsInterval > 0) {
+			statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "fhir-pool-stats");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			statsExecutor.scheduleWithFixedDelay(this::logStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Creates a copy of the specified fhir client on a dedicated fhir context whose http client is backed
+	 * by a pool sized according to the configuration, and applies the compression and encoding settings.
+	 * The server base, interceptors, timeouts and server validation mode are copied from the template.
+	 *
+	 * @param name the name to register the connection pool under
+	 * @param template the fhir client to copy
+	 * @return the new fhir client
+	 */
+	public IGenericClient newClient(String name, IGenericClient template) {
+		if (log.isDebugEnabled()) {
+			log.debug("Creating {} fhir client with pool max total: {}, max per route: {}", name, maxTotal,
+			    maxPerRoute);
+		}
+		
+		IRestfulClientFactory templateFactory = template.getFhirContext().getRestfulClientFactory();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(templateFactory.getConnectTimeout())
+		        .setConnectionRequestTimeout(templateFactory.getConnectionRequestTimeout())
+		        .setSocketTimeout(templateFactory.getSocketTimeout()).build();
+		HttpClientBuilder builder = HttpClients.custom().setConnectionManager(connectionManager)
+		        .setDefaultRequestConfig(requestConfig);
+		if (idleTimeout > 0) {
+			builder.evictExpiredConnections().evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}
+		
+		if (!gzipResponses) {
+			builder.disableContentCompression();
+		}
+		
+		FhirContext fhirContext = new FhirContext(template.getFhirContext().getVersion().getVersion());
+		IRestfulClientFactory factory = fhirContext.getRestfulClientFactory();
+		factory.setConnectTimeout(templateFactory.getConnectTimeout());
+		factory.setConnectionRequestTimeout(templateFactory.getConnectionRequestTimeout());
+		factory.setSocketTimeout(templateFactory.getSocketTimeout());
+		factory.setServerValidationMode(templateFactory.getServerValidationMode());
+		factory.setHttpClient(builder.build());
+		IGenericClient fhirClient = fhirContext.newRestfulGenericClient(template.getServerBase());
+		template.getInterceptorService().getAllRegisteredInterceptors().forEach(fhirClient::registerInterceptor);
+		if (gzipRequests) {
+			fhirClient.registerInterceptor(new GZipContentInterceptor());
+		}
+		
+		fhirClient.setEncoding(encoding);
+		pools.put(name, connectionManager);
+		return fhirClient;
+	}
+	
+	/**
+	 * Gets the usage of the connection pool of the fhir client registered with the specified name.
+	 *
+	 * @param name the name the pool was registered under
+	 * @return the PoolStats with the leased, pending, available and max connections or null if no
+	 *         pool is registered with the name
+	 */
+	public PoolStats getPoolStats(String name) {
+		PoolingHttpClientConnectionManager connectionManager = pools.get(name);
+		return connectionManager == null ? null : connectionManager.getTotalStats();
+	}
+	
+	@Override
+	public void destroy() {
+		if (statsExecutor != null) {
+			statsExecutor.shutdownNow();
+		}
+		
+		pools.values().forEach(PoolingHttpClientConnectionManager::shutdown);
+	}
+	
+	private void logStats() {
+		pools.forEach((name, connectionManager) -> {
+			PoolStats stats = connectionManager.getTotalStats();
+			log.info("Fhir connection pool {} -> leased: {}, pending: {}, available: {}, max: {}", name,
+			    stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+		});
+	}
+	
+}
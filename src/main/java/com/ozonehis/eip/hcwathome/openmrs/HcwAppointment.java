@@ -0,0 +1,19 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Encounter;
+
+/**
+ * An invite in hcw@home and its associated consultation.
+ *
+ * @param appointment the fhir Appointment
+ * @param encounter the fhir Encounter or null if the invite has no consultation
+ */
+public record HcwAppointment(Appointment appointment, Encounter encounter) {}
@@ -0,0 +1,341 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes appointments to hcw@home, when batching is enabled pending creates, updates and deletes
+ * from all the event processing threads are gathered for a short window or until the maximum batch
+ * size is reached and then sent as a single batch {@link Bundle}. Each caller blocks until the
+ * response entry for its own write is available so that a failure is handled by the event that
+ * caused it, for at most the window plus the time the hcw@home client may take to get a connection
+ * and read a response. If hcw@home does not support batch bundles, the writer falls back to per
+ * resource calls for good, a batch rejected as a bad request is only sent one write at a time.
+ */
+@Slf4j
+@Component
+public class HcwBatchWriter implements DisposableBean {
+	
+	private static final String TYPE_APPOINTMENT = "Appointment";
+	
+	private HcwFhirClient hcwClient;
+	
+	private int maxSize;
+	
+	private long waitTimeout;
+	
+	private List<PendingWrite> pending = new ArrayList<>();
+	
+	private ScheduledExecutorService flusher;
+	
+	private volatile boolean bundlesRejected;
+	
+	public HcwBatchWriter(HcwFhirClient hcwClient, @Value("${hcwathome.fhir.batch.window.ms}") long window,
+	    @Value("${hcwathome.fhir.batch.max.size}") int maxSize) {
+		this.hcwClient = hcwClient;
+		this.maxSize = maxSize;
+		this.waitTimeout = window + HcwFhirClient.CONNECTION_REQUEST_TIMEOUT + HcwFhirClient.SOCKET_TIMEOUT;
+		if (window > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "hcw-batch-writer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			flusher.scheduleWithFixedDelay(this::flush, window, window, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Creates the specified appointment in hcw@home unless one already exists with an identifier
+	 * matching the specified openmrs appointment uuid.
+	 *
+	 * @param appointment the appointment to create
+	 * @param uuid the openmrs appointment uuid
+	 * @return the MethodOutcome
+	 * @see HcwFhirClient#createAppointmentIfNoneExist(Appointment, String)
+	 */
+	public MethodOutcome createAppointment(Appointment appointment, String uuid) {
+		if (!isBatching()) {
+			return hcwClient.createAppointmentIfNoneExist(appointment, uuid);
+		}
+		
+		BundleEntryComponent entry = new BundleEntryComponent().setResource(appointment);
+		entry.getRequest().setMethod(HTTPVerb.POST).setUrl(TYPE_APPOINTMENT).setIfNoneExist("identifier=" + uuid);
+		return submit(new PendingWrite(Operation.CREATE, appointment, uuid, entry));
+	}
+	
+	/**
+	 * Updates the specified appointment in hcw@home.
+	 *
+	 * @param appointment the appointment to update
+	 * @return the MethodOutcome
+	 */
+	public MethodOutcome updateAppointment(Appointment appointment) {
+		if (!isBatching()) {
+			return hcwClient.updateAppointment(appointment);
+		}
+		
+		final String id = appointment.getIdElement().getIdPart();
+		BundleEntryComponent entry = new BundleEntryComponent().setResource(appointment);
+		entry.getRequest().setMethod(HTTPVerb.PUT).setUrl(TYPE_APPOINTMENT + "/" + id)
+		        .setIfMatch(HcwFhirClient.getETag(appointment));
+		return submit(new PendingWrite(Operation.UPDATE, appointment, id, entry));
+	}
+	
+	/**
+	 * Deletes the appointment with the specified logical id from hcw@home.
+	 *
+	 * @param id the logical id of the appointment
+	 */
+	public void deleteAppointmentById(String id) {
+		if (!isBatching()) {
+			hcwClient.deleteAppointmentById(id);
+			return;
+		}
+		
+		BundleEntryComponent entry = new BundleEntryComponent();
+		entry.getRequest().setMethod(HTTPVerb.DELETE).setUrl(TYPE_APPOINTMENT + "/" + id);
+		submit(new PendingWrite(Operation.DELETE, null, id, entry));
+	}
+	
+	/**
+	 * Deletes the specified appointment from hcw@home.
+	 *
+	 * @param appointment the appointment to delete
+	 */
+	public void deleteAppointment(Appointment appointment) {
+		if (!isBatching()) {
+			hcwClient.deleteAppointment(appointment);
+			return;
+		}
+		
+		deleteAppointmentById(appointment.getIdElement().getIdPart());
+	}
+	
+	@Override
+	public void destroy() {
+		if (flusher != null) {
+			flusher.shutdown();
+			flush();
+		}
+	}
+	
+	private boolean isBatching() {
+		return flusher != null && !flusher.isShutdown() && !bundlesRejected;
+	}
+	
+	private MethodOutcome submit(PendingWrite write) {
+		List<PendingWrite> batch = null;
+		synchronized (this) {
+			pending.add(write);
+			if (pending.size() >= maxSize) {
+				batch = pending;
+				pending = new ArrayList<>();
+			}
+		}
+		
+		if (batch != null) {
+			send(batch);
+		}
+		
+		try {
+			return write.future.get(waitTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			throw new EIPException(
+			        "Timed out after " + waitTimeout + "ms waiting for the batch response from hcw@home");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EIPException("Interrupted while waiting for the batch response from hcw@home");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new EIPException(e.getCause().getMessage());
+		}
+	}
+	
+	protected void flush() {
+		List<PendingWrite> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			
+			batch = pending;
+			pending = new ArrayList<>();
+		}
+		
+		send(batch);
+	}
+	
+	private void send(List<PendingWrite> batch) {
+		try {
+			sendBatch(batch);
+		}
+		catch (Throwable t) {
+			//Never let the failure escape, it would cancel the scheduled flushes and leave the callers waiting
+			log.error("Failed to send batch of {} writes to hcw@home", batch.size(), t);
+			batch.forEach(w -> w.future.completeExceptionally(t));
+		}
+	}
+	
+	private void sendBatch(List<PendingWrite> batch) {
+		if (bundlesRejected) {
+			batch.forEach(this::sendSingle);
+			return;
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Sending batch of {} writes to hcw@home", batch.size());
+		}
+		
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.BATCH);
+		batch.forEach(w -> bundle.addEntry(w.entry));
+		Bundle response;
+		try {
+			response = hcwClient.executeBatch(bundle);
+		}
+		catch (BaseServerResponseException e) {
+			int statusCode = e.getStatusCode();
+			if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+				log.warn("hcw@home does not support batch bundles, status {}, falling back to per resource calls",
+				    statusCode);
+				bundlesRejected = true;
+				batch.forEach(this::sendSingle);
+			} else if (statusCode == 400) {
+				//Likely caused by one of the writes, sending them one by one isolates the failure to it
+				log.warn("hcw@home rejected batch bundle with status 400, sending its {} writes one by one",
+				    batch.size());
+				batch.forEach(this::sendSingle);
+			} else {
+				batch.forEach(w -> w.future.completeExceptionally(e));
+			}
+			
+			return;
+		}
+		catch (RuntimeException e) {
+			batch.forEach(w -> w.future.completeExceptionally(e));
+			return;
+		}
+		
+		List<BundleEntryComponent> entries = response.getEntry();
+		for (int i = 0; i < batch.size(); i++) {
+			PendingWrite write = batch.get(i);
+			if (i >= entries.size()) {
+				write.future.completeExceptionally(new EIPException("No batch response entry found for write"));
+				continue;
+			}
+			
+			BundleEntryResponseComponent entryResponse = entries.get(i).getResponse();
+			try {
+				write.future.complete(toOutcome(entryResponse));
+			}
+			catch (RuntimeException e) {
+				write.future.completeExceptionally(e);
+			}
+		}
+	}
+	
+	private void sendSingle(PendingWrite write) {
+		try {
+			MethodOutcome outcome = null;
+			switch (write.operation) {
+				case CREATE:
+					outcome = hcwClient.createAppointmentIfNoneExist(write.resource, write.id);
+					break;
+				case UPDATE:
+					outcome = hcwClient.updateAppointment(write.resource);
+					break;
+				case DELETE:
+					hcwClient.deleteAppointmentById(write.id);
+					break;
+			}
+			
+			write.future.complete(outcome);
+		}
+		catch (RuntimeException e) {
+			write.future.completeExceptionally(e);
+		}
+	}
+	
+	protected static MethodOutcome toOutcome(BundleEntryResponseComponent response) {
+		final String status = response.getStatus();
+		int statusCode = Integer.parseInt(StringUtils.substringBefore(status, " ").trim());
+		if (statusCode >= 300) {
+			throw BaseServerResponseException.newInstance(statusCode, "Batch entry failed with status " + status);
+		}
+		
+		MethodOutcome outcome = new MethodOutcome();
+		if (response.hasLocation()) {
+			outcome.setId(new IdType(response.getLocation()));
+		}
+		
+		outcome.setCreated(statusCode == 201);
+		outcome.setResponseStatusCode(statusCode);
+		return outcome;
+	}
+	
+	private enum Operation {
+		CREATE,
+		UPDATE,
+		DELETE
+	}
+	
+	private static class PendingWrite {
+		
+		private final Operation operation;
+		
+		private final Appointment resource;
+		
+		private final String id;
+		
+		private final BundleEntryComponent entry;
+		
+		private final CompletableFuture<MethodOutcome> future = new CompletableFuture<>();
+		
+		PendingWrite(Operation operation, Appointment resource, String id, BundleEntryComponent entry) {
+			this.operation = operation;
+			this.resource = resource;
+			this.id = id;
+			this.entry = entry;
+		}
+		
+	}
+	
+}
@@ -7,17 +7,34 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
 import org.openmrs.eip.EIPException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.extern.slf4j.Slf4j;
 
@@ -32,6 +49,12 @@ public class HcwFhirClient extends BaseFhirClient {
 	
 	private static final String SUB_PATH_FHIR = SUB_PATH_API_V1 + "fhir";
 	
+	private static final String TYPE_APPOINTMENT = "Appointment";
+	
+	protected static final int CONNECTION_REQUEST_TIMEOUT = 120000;
+	
+	protected static final int SOCKET_TIMEOUT = 120000;
+	
 	@Value("${hcwathome.backend.url}")
 	private String baseUrl;
 	
@@ -42,8 +65,11 @@ public class HcwFhirClient extends BaseFhirClient {
 	
 	private IGenericClient fhirClient;
 	
-	public HcwFhirClient() {
-		super("hcw@home");
+	private FhirHttpClientConfigurer clientConfigurer;
+	
+	public HcwFhirClient(FhirHttpClientConfigurer clientConfigurer, FhirClientExecutor executor) {
+		super("hcw@home", executor);
+		this.clientConfigurer = clientConfigurer;
 	}
 	
 	@Override
@@ -53,11 +79,12 @@ public class HcwFhirClient extends BaseFhirClient {
 				if (fhirClient == null) {
 					fhirContext = FhirContext.forR4();
 					fhirContext.getRestfulClientFactory().setConnectTimeout(30000);
-					fhirContext.getRestfulClientFactory().setConnectionRequestTimeout(120000);
-					fhirContext.getRestfulClientFactory().setSocketTimeout(120000);
+					fhirContext.getRestfulClientFactory().setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT);
+					fhirContext.getRestfulClientFactory().setSocketTimeout(SOCKET_TIMEOUT);
 					fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-					fhirClient = fhirContext.newRestfulGenericClient(baseUrl + SUB_PATH_FHIR);
-					fhirClient.registerInterceptor(new AuthInterceptor(token));
+					IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl + SUB_PATH_FHIR);
+					client.registerInterceptor(new AuthInterceptor(token));
+					fhirClient = clientConfigurer.newClient(getServerName(), client);
 				}
 			}
 		}
@@ -102,18 +129,88 @@ public class HcwFhirClient extends BaseFhirClient {
 	}
 	
 	/**
-	 * Updates an appointment in hcw@home matching the specified appointment.
+	 * Reads the appointment with the specified logical id from hcw@home.
+	 *
+	 * @param id the logical id of the appointment
+	 * @return the fhir Appointment
+	 * @throws ResourceNotFoundException if no appointment exists with the id
+	 * @throws ResourceGoneException if the appointment has been deleted
+	 */
+	public Appointment getAppointmentById(String id) {
+		if (log.isDebugEnabled()) {
+			log.debug("Reading appointment from hcw@home with id: {}", id);
+		}
+		
+		return getFhirClient().read().resource(Appointment.class).withId(id).execute();
+	}
+	
+	/**
+	 * Creates the specified appointment in hcw@home unless one already exists with an identifier
+	 * matching the specified openmrs appointment uuid, the check and the create happen in a single
+	 * conditional create request.
+	 *
+	 * @param appointment the appointment to create
+	 * @param uuid the openmrs appointment uuid
+	 * @return the MethodOutcome, {@link MethodOutcome#getCreated()} is false if the appointment already
+	 *         existed in which case the id is that of the existing appointment
+	 */
+	public MethodOutcome createAppointmentIfNoneExist(Appointment appointment, String uuid) {
+		if (log.isDebugEnabled()) {
+			log.debug("Creating appointment in hcw@home if none exists with identifier: {}", uuid);
+		}
+		
+		MethodOutcome outcome;
+		try {
+			outcome = getFhirClient().create().resource(appointment).conditional()
+			        .where(Appointment.IDENTIFIER.exactly().identifier(uuid)).execute();
+		}
+		catch (Exception e) {
+			throw new EIPException(getErrorMessage(e, "create"));
+		}
+		
+		int statusCode = outcome.getResponseStatusCode();
+		if (statusCode != 200 && statusCode != 201) {
+			throw new EIPException("Failed to create invite in hcw@home, status code " + statusCode);
+		}
+		
+		if (log.isDebugEnabled()) {
+			if (statusCode == 201) {
+				log.debug("Successfully created appointment in hcw@home with identifier: {}", uuid);
+			} else {
+				log.debug("Found existing appointment in hcw@home with identifier: {}", uuid);
+			}
+		}
+		
+		return outcome;
+	}
+	
+	/**
+	 * Updates an appointment in hcw@home matching the specified appointment, if the appointment has a
+	 * version id it is sent in an If-Match header so that hcw@home rejects the update if the
+	 * appointment was modified since it was read.
 	 * 
 	 * @param appointment the appointment to update
+	 * @return the MethodOutcome
+	 * @throws ResourceNotFoundException if the appointment no longer exists
+	 * @throws PreconditionFailedException if the appointment was modified by someone else
 	 */
-	public void updateAppointment(Appointment appointment) {
+	public MethodOutcome updateAppointment(Appointment appointment) {
 		if (log.isDebugEnabled()) {
 			log.debug("Updating appointment in hcw@home");
 		}
 		
 		MethodOutcome outcome;
 		try {
-			outcome = getFhirClient().update().resource(appointment).execute();
+			IUpdateExecutable update = getFhirClient().update().resource(appointment);
+			final String eTag = getETag(appointment);
+			if (eTag != null) {
+				update = update.withAdditionalHeader(Constants.HEADER_IF_MATCH, eTag);
+			}
+			
+			outcome = update.execute();
+		}
+		catch (ResourceNotFoundException | ResourceGoneException | PreconditionFailedException e) {
+			throw e;
 		}
 		catch (Exception e) {
 			throw new EIPException(getErrorMessage(e, "update"));
@@ -127,6 +224,27 @@ public class HcwFhirClient extends BaseFhirClient {
 		if (log.isDebugEnabled()) {
 			log.debug("Successfully updated appointment in hcw@home");
 		}
+		
+		return outcome;
+	}
+	
+	/**
+	 * Gets the weak ETag for the version of the specified appointment.
+	 *
+	 * @param appointment the appointment
+	 * @return the ETag or null if the appointment has no version id
+	 */
+	protected static String getETag(Appointment appointment) {
+		String version = appointment.getMeta().getVersionId();
+		if (StringUtils.isBlank(version)) {
+			version = appointment.getIdElement().getVersionIdPart();
+		}
+		
+		if (StringUtils.isBlank(version)) {
+			return null;
+		}
+		
+		return "W/\"" + version + "\"";
 	}
 	
 	/**
@@ -157,6 +275,52 @@ public class HcwFhirClient extends BaseFhirClient {
 		}
 	}
 	
+	/**
+	 * Deletes the appointment with the specified logical id from hcw@home.
+	 *
+	 * @param id the logical id of the appointment
+	 * @throws ResourceNotFoundException if no appointment exists with the id
+	 */
+	public void deleteAppointmentById(String id) {
+		if (log.isDebugEnabled()) {
+			log.debug("Deleting appointment from hcw@home with id: {}", id);
+		}
+		
+		MethodOutcome outcome;
+		try {
+			outcome = getFhirClient().delete().resourceById(TYPE_APPOINTMENT, id).execute();
+		}
+		catch (ResourceNotFoundException | ResourceGoneException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new EIPException(getErrorMessage(e, "delete"));
+		}
+		
+		int statusCode = outcome.getResponseStatusCode();
+		if (statusCode != 200) {
+			throw new EIPException("Failed to delete invite from hcw@home, status code " + statusCode);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Successfully deleted appointment from hcw@home with id: {}", id);
+		}
+	}
+	
+	/**
+	 * Sends the specified batch or transaction bundle to hcw@home.
+	 *
+	 * @param bundle the bundle to send
+	 * @return the response bundle
+	 */
+	public Bundle executeBatch(Bundle bundle) {
+		if (log.isDebugEnabled()) {
+			log.debug("Sending bundle with {} entries to hcw@home", bundle.getEntry().size());
+		}
+		
+		return getFhirClient().transaction().withBundle(bundle).execute();
+	}
+	
 	/**
 	 * Fetches the consultation from hcw@home associated to the invite matching the specified openmrs
 	 * appointment uuid.
@@ -195,4 +359,153 @@ public class HcwFhirClient extends BaseFhirClient {
 		return null;
 	}
 	
+	/**
+	 * Fetches the appointments from hcw@home with identifiers matching the specified openmrs appointment
+	 * uuids along with their associated consultations in a single search that includes the encounters
+	 * referencing the matched appointments, all pages of the results are fetched. Only a not found
+	 * response to the search itself is treated as no match, a failure to load any other page is thrown.
+	 *
+	 * @param uuids the openmrs appointment uuids to match
+	 * @return a map of openmrs appointment uuids to the matched hcw appointments, uuids with no match
+	 *         are not included
+	 * @throws EIPException if multiple appointments or encounters are found for the same uuid
+	 */
+	public Map<String, HcwAppointment> getAppointmentsWithEncounters(Collection<String> uuids) {
+		if (log.isDebugEnabled()) {
+			log.debug("Getting {} appointments and their encounters from hcw@home", uuids.size());
+		}
+		
+		Map<String, Appointment> appointments = new HashMap<>(uuids.size());
+		Map<String, Encounter> encounters = new HashMap<>();
+		final Set<String> uuidSet = new LinkedHashSet<>(uuids);
+		List<Encounter> allEncounters = new ArrayList<>();
+		Bundle bundle;
+		try {
+			bundle = getFhirClient().search().forResource(Appointment.class)
+			        .where(Appointment.IDENTIFIER.exactly().codes(uuidSet)).revInclude(Encounter.INCLUDE_APPOINTMENT)
+			        .returnBundle(Bundle.class).execute();
+		}
+		catch (ResourceNotFoundException e) {
+			bundle = null;
+		}
+		
+		while (bundle != null) {
+			for (BundleEntryComponent entry : bundle.getEntry()) {
+				if (entry.getResource() instanceof Appointment) {
+					final Appointment appointment = (Appointment) entry.getResource();
+					final String uuid = getMatchingIdentifier(appointment, uuidSet);
+					if (uuid != null && appointments.put(uuid, appointment) != null) {
+						throw new EIPException(
+						        "Found multiple appointments in hcw@home with external identifier " + uuid);
+					}
+				} else if (entry.getResource() instanceof Encounter) {
+					allEncounters.add((Encounter) entry.getResource());
+				}
+			}
+			
+			if (bundle.getLink(Bundle.LINK_NEXT) == null) {
+				break;
+			}
+			
+			//A failure to load a page is not ignored since it would silently drop the remaining results
+			bundle = getFhirClient().loadPage().next(bundle).execute();
+		}
+		
+		Map<String, String> idToUuid = new HashMap<>(appointments.size());
+		appointments.forEach((uuid, a) -> idToUuid.put(a.getIdElement().getIdPart(), uuid));
+		for (Encounter encounter : allEncounters) {
+			for (Reference ref : encounter.getAppointment()) {
+				final String uuid = idToUuid.get(ref.getReferenceElement().getIdPart());
+				if (uuid != null && encounters.put(uuid, encounter) != null) {
+					throw new EIPException("Found multiple encounters from hcw@home for appointment with external "
+					        + "identifier " + uuid);
+				}
+			}
+		}
+		
+		Map<String, HcwAppointment> results = new HashMap<>(appointments.size());
+		appointments.forEach((uuid, a) -> results.put(uuid, new HcwAppointment(a, encounters.get(uuid))));
+		if (log.isDebugEnabled()) {
+			log.debug("Found {} appointments and {} encounters in hcw@home", results.size(), encounters.size());
+		}
+		
+		return results;
+	}
+	
+	private static String getMatchingIdentifier(Appointment appointment, Set<String> uuids) {
+		for (Identifier identifier : appointment.getIdentifier()) {
+			if (uuids.contains(identifier.getValue())) {
+				return identifier.getValue();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getAppointmentByIdentifier(String)}.
+	 *
+	 * @param uuid the openmrs appointment uuid to match
+	 * @return a CompletableFuture that completes with the appointment or null if no match is found
+	 */
+	public CompletableFuture<Appointment> getAppointmentByIdentifierAsync(String uuid) {
+		return supplyAsync(() -> getAppointmentByIdentifier(uuid));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getAppointmentById(String)}.
+	 *
+	 * @param id the logical id of the appointment
+	 * @return a CompletableFuture that completes with the appointment
+	 */
+	public CompletableFuture<Appointment> getAppointmentByIdAsync(String id) {
+		return supplyAsync(() -> getAppointmentById(id));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #updateAppointment(Appointment)}.
+	 *
+	 * @param appointment the appointment to update
+	 * @return a CompletableFuture that completes with the MethodOutcome
+	 */
+	public CompletableFuture<MethodOutcome> updateAppointmentAsync(Appointment appointment) {
+		return supplyAsync(() -> updateAppointment(appointment));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #deleteAppointment(Appointment)}.
+	 *
+	 * @param appointment the appointment to delete
+	 * @return a CompletableFuture that completes when the appointment is deleted
+	 */
+	public CompletableFuture<Void> deleteAppointmentAsync(Appointment appointment) {
+		return supplyAsync(() -> {
+			deleteAppointment(appointment);
+			return null;
+		});
+	}
+	
+	/**
+	 * Asynchronous version of {@link #deleteAppointmentById(String)}.
+	 *
+	 * @param id the logical id of the appointment
+	 * @return a CompletableFuture that completes when the appointment is deleted
+	 */
+	public CompletableFuture<Void> deleteAppointmentByIdAsync(String id) {
+		return supplyAsync(() -> {
+			deleteAppointmentById(id);
+			return null;
+		});
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getEncounterByAppointment(String)}.
+	 *
+	 * @param appointmentUuid the openmrs appointment uuid to match
+	 * @return a CompletableFuture that completes with the encounter or null if no match is found
+	 */
+	public CompletableFuture<Encounter> getEncounterByAppointmentAsync(String appointmentUuid) {
+		return supplyAsync(() -> getEncounterByAppointment(appointmentUuid));
+	}
+	
 }
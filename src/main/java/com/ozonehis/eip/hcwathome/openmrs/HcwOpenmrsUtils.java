@@ -7,8 +7,15 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 public class HcwOpenmrsUtils {
 	
 	private static final ObjectMapper MAPPER = new ObjectMapper();
@@ -17,4 +24,34 @@ public class HcwOpenmrsUtils {
 		return MAPPER;
 	}
 	
+	/**
+	 * Creates an executor that starts a virtual thread per task when requested and supported by the
+	 * JVM otherwise a fixed pool of daemon threads.
+	 *
+	 * @param name the prefix of the names of the pool threads
+	 * @param useVirtualThreads specifies whether to use virtual threads if supported
+	 * @param maxThreads the size of the pool if virtual threads are not used
+	 * @return the ExecutorService
+	 */
+	public static ExecutorService newExecutor(String name, boolean useVirtualThreads, int maxThreads) {
+		if (useVirtualThreads) {
+			try {
+				//Looked up reflectively because the code is compiled for a release without virtual threads
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Virtual threads are not supported by this JVM, using a pool of {} threads", maxThreads);
+				}
+			}
+		}
+		
+		final AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(maxThreads, r -> {
+			Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
 }
@@ -21,7 +21,7 @@ public class JwtUtils {
 	 */
 	public static Map<String, Object> parseToken(String jwt) throws Exception {
 		final String base64 = jwt.substring(jwt.indexOf(".") + 1, jwt.lastIndexOf("."));
-		return HcwOpenmrsUtils.getMapper().readValue(Base64.getDecoder().decode(base64), Map.class);
+		return HcwOpenmrsUtils.getMapper().readValue(Base64.getUrlDecoder().decode(base64), Map.class);
 	}
 	
 }
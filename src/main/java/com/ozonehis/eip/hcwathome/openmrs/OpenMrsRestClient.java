@@ -12,32 +12,36 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublisher;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandler;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.util.Base64;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
-import org.apache.camel.CamelContext;
-import org.apache.camel.Exchange;
-import org.apache.camel.builder.ExchangeBuilder;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
-import org.openmrs.eip.camel.OauthProcessor;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
- * Submits http requests to OpenMRS.
+ * Submits http requests to OpenMRS, requests can be sent blocking or asynchronously, the underlying
+ * {@link HttpClient} prefers HTTP/2 and falls back to HTTP/1.1 when the server does not support it,
+ * asynchronous requests are completed on virtual threads if enabled and supported by the JVM otherwise
+ * on a bounded pool of threads.
  */
 @Component
-public class OpenMrsRestClient {
+public class OpenMrsRestClient implements DisposableBean {
 	
 	protected static final String PATH = "/ws/rest/v1/";
 	
@@ -46,21 +50,32 @@ public class OpenMrsRestClient {
 	@Value("${openmrs.baseUrl}")
 	private String baseUrl;
 	
-	@Value("${openmrs.username}")
-	private String username;
+	private AuthTokenHolder authTokenHolder;
 	
-	@Value("${openmrs.password}")
-	private char[] password;
+	private ExecutorService executor;
 	
-	private OauthProcessor oauthProcessor;
+	private HttpClient client;
 	
-	private CamelContext camelContext;
+	private Duration requestTimeout;
 	
-	private HttpClient client = HttpClient.newHttpClient();
-	
-	public OpenMrsRestClient(OauthProcessor oauthProcessor, CamelContext camelContext) {
-		this.oauthProcessor = oauthProcessor;
-		this.camelContext = camelContext;
+	public OpenMrsRestClient(AuthTokenHolder authTokenHolder, @Value("${openmrs.http.version}") Version version,
+	    @Value("${openmrs.http.connect.timeout.ms}") long connectTimeout,
+	    @Value("${openmrs.http.request.timeout.ms}") long requestTimeout,
+	    @Value("${openmrs.http.virtual.threads}") boolean useVirtualThreads,
+	    @Value("${openmrs.http.max.threads}") int maxThreads) {
+		this.authTokenHolder = authTokenHolder;
+		executor = HcwOpenmrsUtils.newExecutor("openmrs-http", useVirtualThreads, maxThreads);
+		
+		HttpClient.Builder builder = HttpClient.newBuilder().version(version).executor(executor);
+		if (connectTimeout > 0) {
+			builder.connectTimeout(Duration.ofMillis(connectTimeout));
+		}
+		
+		if (requestTimeout > 0) {
+			this.requestTimeout = Duration.ofMillis(requestTimeout);
+		}
+		
+		client = builder.build();
 	}
 	
 	public byte[] search(String resource, Map<String, String> params) throws Exception {
@@ -68,8 +83,83 @@ public class OpenMrsRestClient {
 		return response.body();
 	}
 	
+	/**
+	 * Asynchronous version of {@link #search(String, Map)}.
+	 *
+	 * @param resource the resource name
+	 * @param params the query parameters
+	 * @return a CompletableFuture that completes with the response body
+	 */
+	public CompletableFuture<byte[]> searchAsync(String resource, Map<String, String> params) {
+		return sendAsync(resource, null, params, null, false, Set.of(HttpStatus.SC_OK)).thenApply(HttpResponse::body);
+	}
+	
 	public HttpResponse<byte[]> sendRequest(String resource, String uuid, Map<String, String> params, String body,
 	                                        boolean delete, Set<Integer> allowedStatuses)
+	    throws Exception {
+		HttpRequest request = buildRequest(resource, uuid, params, body, delete);
+		HttpResponse<byte[]> response;
+		try {
+			response = client.send(request, BODY_HANDLER);
+		}
+		catch (Exception e) {
+			throw new Exception("An error occurred while submitting resource to OpenMRS: " + resource, e);
+		}
+		
+		checkResponse(response, allowedStatuses);
+		return response;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #sendRequest(String, String, Map, String, boolean, Set)}, the
+	 * calling thread is not blocked while waiting for the response, the returned future completes
+	 * exceptionally with a {@link CompletionException} wrapping the same exceptions the blocking
+	 * method would throw.
+	 *
+	 * @param resource the resource name
+	 * @param uuid the resource uuid
+	 * @param params the query parameters
+	 * @param body the request body
+	 * @param delete specifies if the request is a delete
+	 * @param allowedStatuses the response statuses to treat as successful
+	 * @return a CompletableFuture that completes with the response
+	 */
+	public CompletableFuture<HttpResponse<byte[]>> sendAsync(String resource, String uuid, Map<String, String> params,
+	                                                         String body, boolean delete,
+	                                                         Set<Integer> allowedStatuses) {
+		HttpRequest request;
+		try {
+			request = buildRequest(resource, uuid, params, body, delete);
+		}
+		catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		return client.sendAsync(request, BODY_HANDLER).handle((response, t) -> {
+			if (t != null) {
+				Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+				throw new CompletionException(
+				        new Exception("An error occurred while submitting resource to OpenMRS: " + resource, cause));
+			}
+			
+			try {
+				checkResponse(response, allowedStatuses);
+			}
+			catch (Exception e) {
+				throw new CompletionException(e);
+			}
+			
+			return response;
+		});
+	}
+	
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+	
+	private HttpRequest buildRequest(String resource, String uuid, Map<String, String> params, String body,
+	                                 boolean delete)
 	    throws Exception {
 		String uri = baseUrl + PATH + resource;
 		if (uuid != null) {
@@ -84,6 +174,9 @@ public class OpenMrsRestClient {
 		}
 		
 		reqBuilder.uri(URI.create(uri));
+		if (requestTimeout != null) {
+			reqBuilder.timeout(requestTimeout);
+		}
 		
 		if (body != null) {
 			reqBuilder.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
@@ -95,14 +188,10 @@ public class OpenMrsRestClient {
 			reqBuilder.GET();
 		}
 		
-		HttpResponse<byte[]> response;
-		try {
-			response = client.send(reqBuilder.build(), BODY_HANDLER);
-		}
-		catch (Exception e) {
-			throw new Exception("An error occurred while submitting resource to OpenMRS: " + resource, e);
-		}
-		
+		return reqBuilder.build();
+	}
+	
+	private void checkResponse(HttpResponse<byte[]> response, Set<Integer> allowedStatuses) throws Exception {
 		if (!allowedStatuses.contains(response.statusCode())) {
 			String msg = " with status code: " + response.statusCode();
 			if (response.body() != null) {
@@ -111,21 +200,10 @@ public class OpenMrsRestClient {
 			
 			throw new Exception("Request to OpenMRS failed" + msg);
 		}
-		
-		return response;
 	}
 	
 	protected String getAuthHeader() throws Exception {
-		Exchange exchange = ExchangeBuilder.anExchange(camelContext).build();
-		oauthProcessor.process(exchange);
-		String oauthHeader = exchange.getMessage().getBody(String.class);
-		if (oauthHeader != null) {
-			return oauthHeader;
-		}
-		
-		final String userAndPass = username + ":" + new String(password);
-		byte[] auth = Base64.getEncoder().encode(userAndPass.getBytes(UTF_8));
-		return "Basic " + new String(auth, UTF_8);
+		return authTokenHolder.getAuthHeader();
 	}
 	
 }
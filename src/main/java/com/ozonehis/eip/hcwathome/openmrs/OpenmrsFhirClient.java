@@ -7,21 +7,80 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.IdType;
+import org.openmrs.eip.EIPException;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * An instance of this class is used to communicate with an OpenMRS server using fhir.
  */
+@Slf4j
 @Component("openmrsFhirClientWrapper")
 public class OpenmrsFhirClient extends BaseFhirClient {
 	
 	private IGenericClient openmrsClient;
 	
-	public OpenmrsFhirClient(IGenericClient openmrsClient) {
-		super("OpenMRS");
-		this.openmrsClient = openmrsClient;
+	public OpenmrsFhirClient(IGenericClient openmrsClient, FhirHttpClientConfigurer clientConfigurer,
+	    FhirClientExecutor executor) {
+		super("OpenMRS", executor);
+		this.openmrsClient = clientConfigurer.newClient(getServerName(), openmrsClient);
+	}
+	
+	/**
+	 * Sends the specified entries to OpenMRS in a single transaction bundle, entries can reference
+	 * resources created by other entries in the bundle via the urn:uuid full url of the entries.
+	 *
+	 * @param entries the bundle entries
+	 * @return the ids of the resources in the order of the entries, read from the locations in the
+	 *         response
+	 * @throws EIPException if the transaction fails or the response does not match the entries
+	 */
+	public List<IdType> executeTransaction(List<BundleEntryComponent> entries) {
+		if (log.isDebugEnabled()) {
+			log.debug("Sending transaction bundle with {} entries to {}", entries.size(), getServerName());
+		}
+		
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.TRANSACTION);
+		entries.forEach(bundle::addEntry);
+		Bundle response;
+		try {
+			response = getFhirClient().transaction().withBundle(bundle).execute();
+		}
+		catch (Exception e) {
+			throw new EIPException(getErrorMessage(e, "create"));
+		}
+		
+		if (response.getEntry().size() != entries.size()) {
+			throw new EIPException("Expected " + entries.size() + " entries in the transaction response from "
+			        + getServerName() + " but found " + response.getEntry().size());
+		}
+		
+		List<IdType> ids = new ArrayList<>(entries.size());
+		for (BundleEntryComponent entry : response.getEntry()) {
+			final String status = entry.getResponse().getStatus();
+			if (!StringUtils.startsWithAny(status, "200", "201") || !entry.getResponse().hasLocation()) {
+				throw new EIPException("Unexpected transaction entry status " + status + " from " + getServerName());
+			}
+			
+			ids.add(new IdType(entry.getResponse().getLocation()));
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Successfully sent transaction bundle to {}, resource ids: {}", getServerName(), ids);
+		}
+		
+		return ids;
 	}
 	
 	@Override
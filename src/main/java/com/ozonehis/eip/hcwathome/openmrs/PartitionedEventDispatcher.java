@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.openmrs.eip.mysql.watcher.Event;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dispatches events to a fixed number of single threaded lanes, the lane is picked by hashing the
+ * table name and row uuid so that events for different appointments are processed in parallel while
+ * events for the same appointment are processed in the order they were received. When a lane's
+ * queue is full the caller blocks until there is space. The lanes are drained when the event listener
+ * route stops and on destroy. Note that queued events only live in memory and the watcher considers an
+ * event handled once it is queued, so delivery is at most once: queued events are lost if the process
+ * dies or if a lane does not finish draining within {@link #DRAIN_TIMEOUT_SECONDS} seconds.
+ */
+@Slf4j
+@Component("partitionedEventDispatcher")
+public class PartitionedEventDispatcher implements Processor, DisposableBean {
+	
+	protected static final long DRAIN_TIMEOUT_SECONDS = 30;
+	
+	private final List<Lane> lanes = new ArrayList<>();
+	
+	private ProducerTemplate producerTemplate;
+	
+	private ScheduledExecutorService statsExecutor;
+	
+	public PartitionedEventDispatcher(ProducerTemplate producerTemplate,
+	    @Value("${hcwathome.event.dispatcher.lanes}") int laneCount,
+	    @Value("${hcwathome.event.dispatcher.queue.depth}") int queueDepth,
+	    @Value("${hcwathome.event.dispatcher.stats.interval.ms}") long statsInterval) {
+		this.producerTemplate = producerTemplate;
+		for (int i = 0; i < laneCount; i++) {
+			lanes.add(new Lane(i, queueDepth));
+		}
+		
+		if (laneCount > 0 && statsInterval > 0) {
+			statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "event-lane-stats");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			statsExecutor.scheduleWithFixedDelay(this::logStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Checks whether events should be dispatched to lanes instead of being processed on the calling
+	 * thread.
+	 *
+	 * @return true if at least one lane is configured otherwise false
+	 */
+	public boolean isEnabled() {
+		return !lanes.isEmpty();
+	}
+	
+	@Override
+	public void process(Exchange exchange) throws Exception {
+		Event event = exchange.getIn().getBody(Event.class);
+		final String key = event.getTableName() + ":" + event.getIdentifier();
+		Lane lane = lanes.get(Math.floorMod(key.hashCode(), lanes.size()));
+		if (log.isDebugEnabled()) {
+			log.debug("Dispatching {} event to lane {}", key, lane.index);
+		}
+		
+		lane.submit(exchange.copy());
+	}
+	
+	public int getLaneCount() {
+		return lanes.size();
+	}
+	
+	public int getQueueSize(int lane) {
+		return lanes.get(lane).executor.getQueue().size();
+	}
+	
+	public long getProcessedCount(int lane) {
+		return lanes.get(lane).processed.get();
+	}
+	
+	public long getFailedCount(int lane) {
+		return lanes.get(lane).failed.get();
+	}
+	
+	@Override
+	public void destroy() throws InterruptedException {
+		if (statsExecutor != null) {
+			statsExecutor.shutdownNow();
+		}
+		
+		drain();
+	}
+	
+	/**
+	 * Stops accepting events and waits for the events already queued in the lanes to be processed, this
+	 * method does nothing if the lanes are already drained.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void drain() throws InterruptedException {
+		for (Lane lane : lanes) {
+			lane.executor.shutdown();
+		}
+		
+		for (Lane lane : lanes) {
+			if (lane.executor.isTerminated()) {
+				continue;
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Draining {} queued events from lane {}", lane.executor.getQueue().size(), lane.index);
+			}
+			
+			if (!lane.executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("Lane {} did not terminate, {} events were not processed", lane.index,
+				    lane.executor.shutdownNow().size());
+			}
+		}
+	}
+	
+	private static void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Event lane is shutdown");
+		}
+		
+		try {
+			executor.getQueue().put(task);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	}
+	
+	private void logStats() {
+		for (Lane lane : lanes) {
+			log.info("Event lane {} -> queued: {}, processed: {}, failed: {}", lane.index,
+			    lane.executor.getQueue().size(), lane.processed.get(), lane.failed.get());
+		}
+	}
+	
+	private class Lane {
+		
+		private final int index;
+		
+		private final ThreadPoolExecutor executor;
+		
+		private final AtomicLong processed = new AtomicLong();
+		
+		private final AtomicLong failed = new AtomicLong();
+		
+		Lane(int index, int queueDepth) {
+			this.index = index;
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueDepth),
+			        r -> new Thread(r, "event-lane-" + index), PartitionedEventDispatcher::waitForSpace);
+		}
+		
+		void submit(Exchange exchange) {
+			executor.execute(() -> {
+				Exchange result = producerTemplate.send(EventListener.PROCESSOR_ENDPOINT, exchange);
+				processed.incrementAndGet();
+				if (result.getException() != null) {
+					failed.incrementAndGet();
+					log.error("Failed to process event on lane " + index, result.getException());
+				}
+			});
+		}
+		
+	}
+	
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded least recently used cache of {@link PersonDetails} keyed by person id, it also holds the
+ * resolved id of the email person attribute type. Entries are invalidated by the
+ * {@link PersonEventProcessor} when the person, person_name or person_attribute tables change, loaded
+ * persons are not cached if an invalidation happened while they were being loaded since they may
+ * predate the change. The hit, miss and eviction counts can be logged at a fixed interval.
+ */
+@Slf4j
+@Component
+public class PersonCache implements DisposableBean {
+	
+	protected static final String QUERY_ATTR_TYPE_ID = "SELECT person_attribute_type_id FROM person_attribute_type "
+	        + "WHERE uuid = ?";
+	
+	protected static final String QUERY_PERSONS = "SELECT p.person_id,p.gender,n.given_name,n.family_name,(SELECT "
+	        + "pa.value FROM person_attribute pa WHERE pa.person_id = p.person_id AND pa.person_attribute_type_id = ? "
+	        + "AND pa.voided != 1 LIMIT 1) AS email FROM person p LEFT JOIN person_name n ON n.person_name_id = "
+	        + "(SELECT pn.person_name_id FROM person_name pn WHERE pn.person_id = p.person_id AND pn.voided = 0 "
+	        + "ORDER BY pn.preferred DESC LIMIT 1) WHERE p.person_id IN (%s)";
+	
+	protected static final RowMapper<PersonDetails> PERSON_MAPPER = r -> new PersonDetails(
+	        r.getObject(1, Integer.class), r.getString(2), r.getString(3), r.getString(4), r.getString(5));
+	
+	private final Map<Integer, PersonDetails> persons;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final AtomicLong evictions = new AtomicLong();
+	
+	private long invalidations;
+	
+	private ScheduledExecutorService statsExecutor;
+	
+	private volatile Integer emailAttrTypeId;
+	
+	@Value("${openmrs.email.person.attr.type.uuid}")
+	private String emailPersonAttTypeUuid;
+	
+	public PersonCache(@Value("${hcwathome.person.cache.max.size}") int maxSize,
+	    @Value("${hcwathome.person.cache.stats.interval.ms}") long statsInterval) {
+		persons = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, PersonDetails> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				
+				return false;
+			}
+			
+		});
+		
+		if (statsInterval > 0) {
+			statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "person-cache-stats");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			statsExecutor.scheduleWithFixedDelay(this::logStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Gets the details of the persons with the specified ids, any persons that are not cached are
+	 * loaded from the database with a single query.
+	 *
+	 * @param personIds the person ids
+	 * @param session the {@link QuerySession} of the current unit of work
+	 * @return Map of person ids to their details, persons that do not exist are not included
+	 * @throws SQLException
+	 */
+	public Map<Integer, PersonDetails> getPersons(Collection<Integer> personIds, QuerySession session)
+	    throws SQLException {
+		Map<Integer, PersonDetails> result = new HashMap<>();
+		List<Integer> missing = new ArrayList<>();
+		for (Integer personId : Set.copyOf(personIds)) {
+			PersonDetails person = persons.get(personId);
+			if (person != null) {
+				result.put(personId, person);
+			} else {
+				missing.add(personId);
+			}
+		}
+		
+		hits.addAndGet(result.size());
+		misses.addAndGet(missing.size());
+		if (!missing.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("Loading details of persons with ids: {}", missing);
+			}
+			
+			List<Object> args = new ArrayList<>();
+			args.add(getEmailAttributeTypeId(session));
+			args.addAll(missing);
+			String placeholders = missing.stream().map(id -> "?").collect(Collectors.joining(","));
+			String query = String.format(QUERY_PERSONS, placeholders);
+			final long invalidationsBefore = getInvalidations();
+			List<PersonDetails> loaded = session.executeQuery(query, args, PERSON_MAPPER);
+			loaded.forEach(p -> result.put(p.personId(), p));
+			synchronized (persons) {
+				if (invalidations == invalidationsBefore) {
+					loaded.forEach(p -> persons.put(p.personId(), p));
+				} else if (log.isDebugEnabled()) {
+					log.debug("Not caching persons with ids {} because the cache was invalidated while loading them",
+					    missing);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Removes the person with the specified id from the cache.
+	 *
+	 * @param personId the person id
+	 */
+	public void invalidate(Integer personId) {
+		final PersonDetails removed;
+		synchronized (persons) {
+			invalidations++;
+			removed = persons.remove(personId);
+		}
+		
+		if (removed != null && log.isDebugEnabled()) {
+			log.debug("Removed person with id {} from the cache", personId);
+		}
+	}
+	
+	/**
+	 * Removes all the persons from the cache.
+	 */
+	public void invalidateAll() {
+		if (log.isDebugEnabled()) {
+			log.debug("Clearing person cache");
+		}
+		
+		synchronized (persons) {
+			invalidations++;
+			persons.clear();
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if (statsExecutor != null) {
+			statsExecutor.shutdownNow();
+		}
+	}
+	
+	protected Integer getEmailAttributeTypeId(QuerySession session) throws SQLException {
+		if (emailAttrTypeId == null) {
+			synchronized (this) {
+				if (emailAttrTypeId == null) {
+					List<Object> args = List.of(emailPersonAttTypeUuid);
+					Integer id = session.querySingleValue(QUERY_ATTR_TYPE_ID, args, Integer.class);
+					if (id == null) {
+						throw new EIPException("No person attribute type found with uuid " + emailPersonAttTypeUuid);
+					}
+					
+					emailAttrTypeId = id;
+				}
+			}
+		}
+		
+		return emailAttrTypeId;
+	}
+	
+	private long getInvalidations() {
+		synchronized (persons) {
+			return invalidations;
+		}
+	}
+	
+	private void logStats() {
+		log.info("Person cache -> size: {}, hits: {}, misses: {}, evictions: {}", size(), hits.get(), misses.get(),
+		    evictions.get());
+	}
+	
+	public int size() {
+		return persons.size();
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+}
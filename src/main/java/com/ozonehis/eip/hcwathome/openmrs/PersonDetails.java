@@ -0,0 +1,19 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+/**
+ * The details of an OpenMRS person that get synced to hcw@home.
+ *
+ * @param personId the person id
+ * @param gender the person gender
+ * @param givenName the given name from the person's preferred name
+ * @param familyName the family name from the person's preferred name
+ * @param email the email address
+ */
+public record PersonDetails(Integer personId, String gender, String givenName, String familyName, String email) {}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.util.Map;
+
+import org.openmrs.eip.mysql.watcher.Event;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Processes person, person_name and person_attribute events by invalidating the affected entries in
+ * the {@link PersonCache}.
+ */
+@Slf4j
+@Component
+public class PersonEventProcessor implements EventProcessor {
+	
+	private static final String COLUMN_PERSON_ID = "person_id";
+	
+	private PersonCache personCache;
+	
+	public PersonEventProcessor(PersonCache personCache) {
+		this.personCache = personCache;
+	}
+	
+	@Override
+	public void process(Event event) {
+		Integer personId = getPersonId(event);
+		if (personId == null) {
+			log.info("Cannot resolve person id for {} event, clearing the person cache", event.getTableName());
+			personCache.invalidateAll();
+			return;
+		}
+		
+		personCache.invalidate(personId);
+	}
+	
+	/**
+	 * Retrieves the id of the affected person from the specified database event.
+	 *
+	 * @param event Event object
+	 * @return the person id or null if it can't be resolved
+	 */
+	protected Integer getPersonId(Event event) {
+		if ("person".equals(event.getTableName())) {
+			return Integer.valueOf(event.getPrimaryKeyId().toString());
+		}
+		
+		Object personId = getPersonId(event.getCurrentState());
+		if (personId == null) {
+			personId = getPersonId(event.getPreviousState());
+		}
+		
+		return personId == null ? null : Integer.valueOf(personId.toString());
+	}
+	
+	private Object getPersonId(Map<String, Object> state) {
+		return state == null ? null : state.get(COLUMN_PERSON_ID);
+	}
+	
+}
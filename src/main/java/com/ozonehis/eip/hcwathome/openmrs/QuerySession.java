@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Executes queries for a single unit of work on one connection, the connection is only checked out
+ * from the {@link DataSource} when the first statement is executed and prepared statements are
+ * cached by sql so that they are prepared once for the lifetime of the session. Instances are not
+ * thread safe and must be closed when the unit of work is done.
+ */
+@Slf4j
+public class QuerySession implements AutoCloseable {
+	
+	private DataSource dataSource;
+	
+	private Connection connection;
+	
+	private Map<String, PreparedStatement> statements = new HashMap<>();
+	
+	private boolean inTransaction;
+	
+	public QuerySession(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+	
+	/**
+	 * Executes the specified query and maps each row with the specified {@link RowMapper}.
+	 *
+	 * @param query the query to execute
+	 * @param values the values to set for the prepared statement
+	 * @param mapper the {@link RowMapper} to apply to each row
+	 * @return List of mapped rows
+	 * @throws SQLException
+	 */
+	public <T> List<T> executeQuery(String query, List<Object> values, RowMapper<T> mapper) throws SQLException {
+		List<T> rows = new ArrayList<>();
+		try (ResultSet r = prepare(query, values).executeQuery()) {
+			while (r.next()) {
+				rows.add(mapper.mapRow(r));
+			}
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Executes the specified query and returns the value of the first column in the first row.
+	 *
+	 * @param query the query to execute
+	 * @param values the values to set for the prepared statement
+	 * @param type the java type of the value
+	 * @return the value or null if the query returns no rows
+	 * @throws SQLException
+	 */
+	public <T> T querySingleValue(String query, List<Object> values, Class<T> type) throws SQLException {
+		try (ResultSet r = prepare(query, values).executeQuery()) {
+			return r.next() ? r.getObject(1, type) : null;
+		}
+	}
+	
+	/**
+	 * Executes the specified insert, update or delete statement.
+	 *
+	 * @param sql the statement to execute
+	 * @param values the values to set for the prepared statement
+	 * @return the number of affected rows
+	 * @throws SQLException
+	 */
+	public int executeUpdate(String sql, List<Object> values) throws SQLException {
+		return prepare(sql, values).executeUpdate();
+	}
+	
+	/**
+	 * Executes the specified insert, update or delete statement once for each of the specified lists of
+	 * values as a single JDBC batch.
+	 *
+	 * @param sql the statement to execute
+	 * @param batch the values to set for the prepared statement for each execution
+	 * @return the number of affected rows for each execution, an element can be
+	 *         {@link java.sql.Statement#SUCCESS_NO_INFO} if the driver does not report the count
+	 * @throws SQLException
+	 */
+	public int[] executeBatch(String sql, List<List<Object>> batch) throws SQLException {
+		PreparedStatement statement = prepare(sql, List.of());
+		for (List<Object> values : batch) {
+			for (int i = 0; i < values.size(); i++) {
+				statement.setObject(i + 1, values.get(i));
+			}
+			
+			statement.addBatch();
+		}
+		
+		return statement.executeBatch();
+	}
+	
+	/**
+	 * Starts a transaction, the statements executed until {@link #commit()} or {@link #rollback()} is
+	 * called are part of it. An uncommitted transaction is rolled back when the session is closed.
+	 *
+	 * @throws SQLException
+	 */
+	public void beginTransaction() throws SQLException {
+		getConnection().setAutoCommit(false);
+		inTransaction = true;
+	}
+	
+	/**
+	 * Commits the current transaction.
+	 *
+	 * @throws SQLException
+	 */
+	public void commit() throws SQLException {
+		connection.commit();
+		endTransaction();
+	}
+	
+	/**
+	 * Rolls back the current transaction.
+	 *
+	 * @throws SQLException
+	 */
+	public void rollback() throws SQLException {
+		try {
+			connection.rollback();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+	
+	private void endTransaction() throws SQLException {
+		inTransaction = false;
+		connection.setAutoCommit(true);
+	}
+	
+	/**
+	 * Closes all the cached prepared statements, rolls back any uncommitted transaction and returns the
+	 * connection to the pool.
+	 *
+	 * @throws SQLException
+	 */
+	@Override
+	public void close() throws SQLException {
+		SQLException error = null;
+		for (PreparedStatement s : statements.values()) {
+			try {
+				s.close();
+			}
+			catch (SQLException e) {
+				error = e;
+			}
+		}
+		
+		statements.clear();
+		if (connection != null) {
+			if (inTransaction) {
+				try {
+					rollback();
+				}
+				catch (SQLException e) {
+					error = e;
+				}
+			}
+			
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {
+				error = e;
+			}
+			
+			connection = null;
+		}
+		
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	protected PreparedStatement prepare(String sql, List<Object> values) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			if (log.isTraceEnabled()) {
+				log.trace("Preparing statement: {}", sql);
+			}
+			
+			statement = getConnection().prepareStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearParameters();
+		}
+		
+		for (int i = 0; i < values.size(); i++) {
+			statement.setObject(i + 1, values.get(i));
+		}
+		
+		return statement;
+	}
+	
+	protected Connection getConnection() throws SQLException {
+		if (connection == null) {
+			connection = dataSource.getConnection();
+		}
+		
+		return connection;
+	}
+	
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a {@link ResultSet} to an object, implementations should read columns by
+ * index and must not move the cursor.
+ *
+ * @param <T> the type of the mapped object
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+	
+	/**
+	 * Maps the current row of the specified {@link ResultSet}
+	 *
+	 * @param resultSet the ResultSet positioned at the row to map
+	 * @return the mapped object
+	 * @throws SQLException
+	 */
+	T mapRow(ResultSet resultSet) throws SQLException;
+	
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+/**
+ * The last known state of an OpenMRS appointment in hcw@home.
+ *
+ * @param appointmentUuid the OpenMRS appointment uuid
+ * @param hcwId the logical id of the appointment in hcw@home
+ * @param versionId the version id of the last appointment written to hcw@home if it was built from
+ *            OpenMRS data alone, null if the appointment has to be read and merged before it is updated
+ * @param contentHash the hash of the last content pushed to hcw@home
+ */
+public record SyncState(String appointmentUuid, String hcwId, String versionId, String contentHash) {}
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists the {@link SyncState} of each synced appointment in the management database so that the
+ * appointment can be addressed directly by its logical id in hcw@home instead of searching for it by
+ * identifier, and updated with its last known version without reading it first.
+ */
+@Slf4j
+@Component
+public class SyncStateStore implements InitializingBean {
+	
+	protected static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS hcw_appointment_sync_state ("
+	        + "appointment_uuid VARCHAR(38) NOT NULL PRIMARY KEY, hcw_id VARCHAR(255) NOT NULL, version_id "
+	        + "VARCHAR(50), content_hash VARCHAR(64), date_changed BIGINT NOT NULL)";
+	
+	protected static final String QUERY = "SELECT appointment_uuid,hcw_id,version_id,content_hash FROM "
+	        + "hcw_appointment_sync_state WHERE appointment_uuid = ?";
+	
+	protected static final String SQL_INSERT = "INSERT INTO hcw_appointment_sync_state (hcw_id,version_id,"
+	        + "content_hash,date_changed,appointment_uuid) VALUES (?,?,?,?,?)";
+	
+	protected static final String SQL_UPDATE = "UPDATE hcw_appointment_sync_state SET hcw_id = ?,version_id = ?,"
+	        + "content_hash = ?,date_changed = ? WHERE appointment_uuid = ?";
+	
+	protected static final String SQL_DELETE = "DELETE FROM hcw_appointment_sync_state WHERE appointment_uuid = ?";
+	
+	protected static final RowMapper<SyncState> STATE_MAPPER = r -> new SyncState(r.getString(1), r.getString(2),
+	        r.getString(3), r.getString(4));
+	
+	private DataSource dataSource;
+	
+	public SyncStateStore(@Qualifier("mngtDataSource") DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws SQLException {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(SQL_CREATE_TABLE, List.of());
+		}
+	}
+	
+	/**
+	 * Gets the sync state of the appointment with the specified uuid.
+	 *
+	 * @param appointmentUuid the appointment uuid
+	 * @return the SyncState or null if none exists
+	 * @throws SQLException
+	 */
+	public SyncState get(String appointmentUuid) throws SQLException {
+		List<SyncState> states;
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			states = session.executeQuery(QUERY, List.of(appointmentUuid), STATE_MAPPER);
+		}
+		
+		return states.isEmpty() ? null : states.get(0);
+	}
+	
+	/**
+	 * Inserts or updates the specified sync state.
+	 *
+	 * @param state the state to save
+	 * @throws SQLException
+	 */
+	public void save(SyncState state) throws SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("Saving sync state: {}", state);
+		}
+		
+		List<Object> args = new ArrayList<>();
+		args.add(state.hcwId());
+		args.add(state.versionId());
+		args.add(state.contentHash());
+		args.add(System.currentTimeMillis());
+		args.add(state.appointmentUuid());
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			if (session.executeUpdate(SQL_UPDATE, args) == 0) {
+				session.executeUpdate(SQL_INSERT, args);
+			}
+		}
+	}
+	
+	/**
+	 * Removes the sync state of the appointment with the specified uuid.
+	 *
+	 * @param appointmentUuid the appointment uuid
+	 * @throws SQLException
+	 */
+	public void remove(String appointmentUuid) throws SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("Removing sync state of appointment with uuid: {}", appointmentUuid);
+		}
+		
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(SQL_DELETE, List.of(appointmentUuid));
+		}
+	}
+	
+}
@@ -7,19 +7,18 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
-import static com.ozonehis.eip.hcwathome.openmrs.DbUtils.executeQuery;
 import static org.hl7.fhir.r4.model.Appointment.ParticipationStatus.NEEDSACTION;
 
-import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
-import javax.sql.DataSource;
-
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Appointment.AppointmentStatus;
@@ -34,9 +33,6 @@ import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.Reference;
 import org.openmrs.eip.EIPException;
 
-import lombok.extern.slf4j.Slf4j;
-
-@Slf4j
 public class Utils {
 	
 	protected static final String ID_PATIENT = "patient";
@@ -47,25 +43,6 @@ public class Utils {
 	
 	private static final String REF_PRACTITIONER = "#" + ID_PRACTITIONER;
 	
-	protected static final String QUERY_PERSON = "SELECT gender FROM person WHERE person_id = ?";
-	
-	protected static final String QUERY_NAME = "SELECT given_name,family_name FROM person_name WHERE person_id = ? AND "
-	        + "voided = 0 ORDER BY preferred DESC LIMIT 1";
-	
-	private static final String QUERY_PERSON_ATTR_TYPE_ID = "SELECT person_attribute_type_id FROM "
-	        + "person_attribute_type WHERE uuid = ?";
-	
-	protected static final String QUERY_EMAIL = "SELECT value FROM person_attribute WHERE person_id = ? AND "
-	        + "person_attribute_type_id = ? AND voided != 1";
-	
-	protected static final String QUERY_PROVIDER_ID = "SELECT provider_id FROM patient_appointment_provider WHERE "
-	        + "patient_appointment_id = ? AND (voided = 0 OR voided IS NULL)";
-	
-	protected static final String QUERY_PROV_PERSON_ID = "SELECT person_id FROM provider WHERE provider_id = ("
-	        + QUERY_PROVIDER_ID + ")";
-	
-	private static Integer emailPersonAttrTypeId = null;
-	
 	/**
 	 * Converts the specified gender value to the fhir {@link AdministrativeGender}
 	 *
@@ -128,47 +105,29 @@ public class Utils {
 	 * Create {@link Appointment} instance from the specified OpenMRS appointment data.
 	 * 
 	 * @param uuid the uuid of the appointment
-	 * @param appointmentData Map of column names and values of the OpenMRS appointment
-	 * @param emailPersonAttTypeUuid the uuid of the email person attribute type uuid.
-	 * @param dataSource OpenMRS {@link DataSource}
+	 * @param snapshot {@link AppointmentSnapshot} of the OpenMRS appointment
+	 * @param idSystem the identifier system to set on the appointment identifier
 	 * @return Appointment
-	 * @throws SQLException
 	 */
-	public static Appointment buildFhirAppointment(String uuid, Map<String, Object> appointmentData,
-	                                               String emailPersonAttTypeUuid, String idSystem, DataSource dataSource)
-	    throws SQLException {
-		Integer patientId = getPatientId(appointmentData);
-		AppointmentStatus status = getStatus(appointmentData);
-		List<Map<String, Object>> patientData = getPatient(patientId, dataSource);
+	public static Appointment buildFhirAppointment(String uuid, AppointmentSnapshot snapshot, String idSystem) {
 		Appointment appointment = new Appointment();
 		Identifier identifier = new Identifier();
 		identifier.setUse(Identifier.IdentifierUse.SECONDARY);
 		identifier.setSystem(idSystem);
 		identifier.setValue(uuid);
 		appointment.setIdentifier(List.of(identifier));
-		appointment.setStatus(status);
-		appointment.setStart(getStartDate(appointmentData));
-		appointment.setEnd(getEndDate(appointmentData));
+		appointment.setStatus(convertStatus(snapshot.status()));
+		appointment.setStart(convertToDate(snapshot.start()));
+		appointment.setEnd(convertToDate(snapshot.end()));
 		Patient patient = new Patient();
 		patient.setId(ID_PATIENT);
-		patient.setGender(getGender(patientData));
-		List<Map<String, Object>> names = getPatientNames(patientId, dataSource);
-		patient.addName().setUse(NameUse.USUAL).addGiven(getGivenName(names)).setFamily(getFamilyName(names));
-		Integer emailAttTypeId = getEmailPersonAttrTypeId(emailPersonAttTypeUuid, dataSource);
-		final String patientEmail = getEmail(patientId, emailAttTypeId, dataSource);
-		if (StringUtils.isBlank(patientEmail)) {
-			throw new EIPException("Patient email address not found");
-		}
-		
+		patient.setGender(convertGender(snapshot.gender()));
+		patient.addName().setUse(NameUse.USUAL).addGiven(snapshot.givenName()).setFamily(snapshot.familyName());
+		final String patientEmail = getPatientEmail(snapshot);
 		patient.addTelecom().setSystem(ContactPointSystem.EMAIL).setValue(patientEmail);
 		Practitioner practitioner = new Practitioner();
 		practitioner.setId(ID_PRACTITIONER);
-		final Object provPersonId = getProviderPersonId(appointmentData, dataSource);
-		final String providerEmail = getEmail(provPersonId, emailAttTypeId, dataSource);
-		if (StringUtils.isBlank(providerEmail)) {
-			throw new EIPException("Provider email address not found");
-		}
-		
+		final String providerEmail = getProviderEmail(snapshot);
 		practitioner.addTelecom().setSystem(ContactPointSystem.EMAIL).setValue(providerEmail)
 		        .setUse(ContactPoint.ContactPointUse.WORK);
 		appointment.addParticipant().setStatus(NEEDSACTION).setActor(new Reference(REF_PATIENT));
@@ -183,26 +142,20 @@ public class Utils {
 	 * and returns true if any changes have been applied otherwise false.
 	 * 
 	 * @param hcwAppointment {@link Appointment} from hcw@home
-	 * @param openmrsAppointment Map of column names and values of the OpenMRS appointment
-	 * @param emailPersonAttTypeUuid the uuid of the email person attribute type uuid.
-	 * @param dataSource OpenMRS {@link DataSource}
+	 * @param snapshot {@link AppointmentSnapshot} of the OpenMRS appointment
 	 * @return true if the hcwAppointment has been modified otherwise false
-	 * @throws SQLException
 	 */
-	public static boolean updateFhirAppointment(Appointment hcwAppointment, Map<String, Object> openmrsAppointment,
-	                                            String emailPersonAttTypeUuid, DataSource dataSource)
-	    throws SQLException {
-		
+	public static boolean updateFhirAppointment(Appointment hcwAppointment, AppointmentSnapshot snapshot) {
 		boolean isModified = false;
 		//TODO if appointment kind has changed from Virtual, cancel it delete it from hcw@home.
-		AppointmentStatus status = getStatus(openmrsAppointment);
+		AppointmentStatus status = convertStatus(snapshot.status());
 		if (hcwAppointment.getStatus() != status) {
 			hcwAppointment.setStatus(status);
 			isModified = true;
 		}
 		
-		Date openmrsStart = getStartDate(openmrsAppointment);
-		Date openmrsEnd = getEndDate(openmrsAppointment);
+		Date openmrsStart = convertToDate(snapshot.start());
+		Date openmrsEnd = convertToDate(snapshot.end());
 		if (!hcwAppointment.getStart().equals(openmrsStart)) {
 			hcwAppointment.setStart(openmrsStart);
 			isModified = true;
@@ -223,19 +176,13 @@ public class Utils {
 			hcwPatient = (Patient) hcwAppointment.getContained().get(1);
 		}
 		
-		Integer patientId = getPatientId(openmrsAppointment);
-		AdministrativeGender openmrsGender = getGender(getPatient(patientId, dataSource));
+		AdministrativeGender openmrsGender = convertGender(snapshot.gender());
 		if (hcwPatient.getGender() != openmrsGender) {
 			hcwPatient.setGender(openmrsGender);
 			isModified = true;
 		}
 		
-		Integer emailAttTypeId = getEmailPersonAttrTypeId(emailPersonAttTypeUuid, dataSource);
-		final String openmrsPatientEmail = getEmail(patientId, emailAttTypeId, dataSource);
-		if (StringUtils.isBlank(openmrsPatientEmail)) {
-			throw new EIPException("Patient email address not found");
-		}
-		
+		final String openmrsPatientEmail = getPatientEmail(snapshot);
 		Optional<ContactPoint> patientEmailContactOpt = hcwPatient.getTelecom().stream()
 		        .filter(t -> t.getSystem() == ContactPointSystem.EMAIL).findFirst();
 		if (!openmrsPatientEmail.equals(patientEmailContactOpt.get().getValue())) {
@@ -243,9 +190,8 @@ public class Utils {
 			isModified = true;
 		}
 		
-		List<Map<String, Object>> patientNames = getPatientNames(patientId, dataSource);
-		final String givenName = getGivenName(patientNames);
-		final String familyName = getFamilyName(patientNames);
+		final String givenName = snapshot.givenName();
+		final String familyName = snapshot.familyName();
 		HumanName hcwPatientName = hcwPatient.getName().get(0);
 		if (!hcwPatientName.getGiven().get(0).getValue().equals(givenName)) {
 			hcwPatientName.getGiven().get(0).setValue(givenName);
@@ -257,12 +203,7 @@ public class Utils {
 			isModified = true;
 		}
 		
-		final Object provPersonId = getProviderPersonId(openmrsAppointment, dataSource);
-		final String openmrsProviderEmail = getEmail(provPersonId, emailAttTypeId, dataSource);
-		if (StringUtils.isBlank(openmrsProviderEmail)) {
-			throw new EIPException("Provider email address not found");
-		}
-		
+		final String openmrsProviderEmail = getProviderEmail(snapshot);
 		Optional<ContactPoint> provEmailContactOpt = hcwPractitioner.getTelecom().stream()
 		        .filter(t -> t.getSystem() == ContactPointSystem.EMAIL).findFirst();
 		if (!openmrsProviderEmail.equals(provEmailContactOpt.get().getValue())) {
@@ -273,74 +214,53 @@ public class Utils {
 		return isModified;
 	}
 	
-	protected static AppointmentStatus getStatus(Map<String, Object> appointmentData) {
-		return Utils.convertStatus(appointmentData.get("status"));
+	/**
+	 * Computes a SHA-256 hash of the fields of the specified appointment snapshot that are synced to
+	 * hcw@home, the fields are length prefixed so that the hash of different values can't collide by
+	 * concatenation.
+	 *
+	 * @param snapshot {@link AppointmentSnapshot} of the OpenMRS appointment
+	 * @return the hex encoded hash
+	 */
+	public static String computeContentHash(AppointmentSnapshot snapshot) {
+		StringBuilder canonical = new StringBuilder();
+		for (Object value : new Object[] { snapshot.status(), snapshot.start(), snapshot.end(), snapshot.gender(),
+		        snapshot.givenName(), snapshot.familyName(), snapshot.patientEmail(), snapshot.providerEmail() }) {
+			if (value == null) {
+				canonical.append("-;");
+			} else {
+				String str = value.toString();
+				canonical.append(str.length()).append(':').append(str).append(';');
+			}
+		}
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new EIPException("Failed to compute appointment content hash", e);
+		}
 	}
 	
 	protected static Date convertToDate(LocalDateTime localDateTime) {
 		return Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
 	}
 	
-	protected static Integer getPatientId(Map<String, Object> appointmentData) {
-		return (Integer) appointmentData.get("patient_id");
-	}
-	
-	private static Date getStartDate(Map<String, Object> appointmentData) {
-		return convertToDate((LocalDateTime) appointmentData.get("start_date_time"));
-	}
-	
-	private static Date getEndDate(Map<String, Object> appointmentData) {
-		return convertToDate((LocalDateTime) appointmentData.get("end_date_time"));
-	}
-	
-	private static List<Map<String, Object>> getPatient(Integer patientId, DataSource dataSource) throws SQLException {
-		return executeQuery(QUERY_PERSON, dataSource, List.of(patientId));
-	}
-	
-	private static String getEmail(Object personId, Integer emailAttTypeId, DataSource dataSource) throws SQLException {
-		List<Map<String, Object>> rows = executeQuery(QUERY_EMAIL, dataSource, List.of(personId, emailAttTypeId));
-		if (!rows.isEmpty()) {
-			return rows.get(0).get("value").toString();
+	private static String getPatientEmail(AppointmentSnapshot snapshot) {
+		if (StringUtils.isBlank(snapshot.patientEmail())) {
+			throw new EIPException("Patient email address not found");
 		}
 		
-		return null;
+		return snapshot.patientEmail();
 	}
 	
-	private static Object getProviderPersonId(Map<String, Object> appointmentData, DataSource dataSource)
-	    throws SQLException {
-		Object appointmentId = appointmentData.get("patient_appointment_id");
-		return executeQuery(QUERY_PROV_PERSON_ID, dataSource, List.of(appointmentId)).get(0).get("person_id");
-	}
-	
-	private static AdministrativeGender getGender(List<Map<String, Object>> patientData) {
-		return Utils.convertGender(patientData.get(0).get("gender"));
-	}
-	
-	private static List<Map<String, Object>> getPatientNames(Integer patientId, DataSource dataSource) throws SQLException {
-		return executeQuery(QUERY_NAME, dataSource, List.of(patientId));
-	}
-	
-	private static String getGivenName(List<Map<String, Object>> names) {
-		return names.get(0).get("given_name").toString();
-	}
-	
-	private static String getFamilyName(List<Map<String, Object>> names) {
-		return names.get(0).get("family_name").toString();
-	}
-	
-	private static Integer getEmailPersonAttrTypeId(String emailPersonAttTypeUuid, DataSource dataSource)
-	    throws SQLException {
-		if (emailPersonAttrTypeId == null) {
-			if (log.isDebugEnabled()) {
-				log.debug("Loading the id for email person attribute type");
-			}
-			
-			List<Map<String, Object>> row = executeQuery(QUERY_PERSON_ATTR_TYPE_ID, dataSource,
-			    List.of(emailPersonAttTypeUuid));
-			emailPersonAttrTypeId = (Integer) row.get(0).get("person_attribute_type_id");
+	private static String getProviderEmail(AppointmentSnapshot snapshot) {
+		if (StringUtils.isBlank(snapshot.providerEmail())) {
+			throw new EIPException("Provider email address not found");
 		}
 		
-		return emailPersonAttrTypeId;
+		return snapshot.providerEmail();
 	}
 	
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolves the active visit of a patient via the OpenMRS rest API, only the visit uuid is requested
+ * and the response is read with a streaming parser. Results are cached per patient for the duration
+ * of a run of the {@link AppointmentsTask}, and optionally across runs for a configured time to
+ * live.
+ */
+@Slf4j
+@Component
+public class VisitResolver {
+	
+	protected static final String RESOURCE = "visit";
+	
+	protected static final String REPRESENTATION = "custom:(uuid)";
+	
+	private OpenMrsRestClient openmrsClient;
+	
+	private long ttl;
+	
+	private final Map<String, CachedVisit> cache = new ConcurrentHashMap<>();
+	
+	private final AtomicLong restCallCount = new AtomicLong();
+	
+	private final AtomicLong savedCallCount = new AtomicLong();
+	
+	public VisitResolver(OpenMrsRestClient openmrsClient, @Value("${openmrs.visit.cache.ttl.ms}") long ttl) {
+		this.openmrsClient = openmrsClient;
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Marks the start of a new run, cached visits fetched before the time to live are discarded, all
+	 * cached visits are discarded if no time to live is configured.
+	 */
+	public void beginRun() {
+		if (ttl <= 0) {
+			cache.clear();
+		} else {
+			final long cutOff = System.currentTimeMillis() - ttl;
+			cache.values().removeIf(v -> v.fetchedAt() < cutOff);
+		}
+	}
+	
+	/**
+	 * Gets the uuid of the active visit of the patient with the specified uuid.
+	 *
+	 * @param patientUuid the patient uuid
+	 * @return the visit uuid or null if the patient has no or multiple active visits
+	 * @throws Exception
+	 */
+	public String getActiveVisitUuid(String patientUuid) throws Exception {
+		CachedVisit cached = cache.get(patientUuid);
+		if (cached != null) {
+			savedCallCount.incrementAndGet();
+			return cached.visitUuid().orElse(null);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Fetching active visit for patient with uuid: {}", patientUuid);
+		}
+		
+		restCallCount.incrementAndGet();
+		final byte[] data = openmrsClient.search(RESOURCE,
+		    Map.of("patient", patientUuid, "includeInactive", "false", "v", REPRESENTATION));
+		final String visitUuid = parseVisitUuid(data);
+		cache.put(patientUuid, new CachedVisit(Optional.ofNullable(visitUuid), System.currentTimeMillis()));
+		return visitUuid;
+	}
+	
+	/**
+	 * Reads the visit uuid from the specified visit search response.
+	 *
+	 * @param data the response body
+	 * @return the uuid of the visit if the response contains exactly one visit otherwise null
+	 * @throws IOException
+	 */
+	protected static String parseVisitUuid(byte[] data) throws IOException {
+		String uuid = null;
+		int count = 0;
+		try (JsonParser parser = HcwOpenmrsUtils.getMapper().getFactory().createParser(data)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.currentName();
+				if (parser.nextToken() != JsonToken.START_ARRAY || !"results".equals(field)) {
+					parser.skipChildren();
+					continue;
+				}
+				
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					count++;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						final String name = parser.currentName();
+						parser.nextToken();
+						if ("uuid".equals(name)) {
+							uuid = parser.getValueAsString();
+						} else {
+							parser.skipChildren();
+						}
+					}
+				}
+			}
+		}
+		
+		return count == 1 ? uuid : null;
+	}
+	
+	/**
+	 * Gets the number of visit lookups that were sent to OpenMRS.
+	 *
+	 * @return the count
+	 */
+	public long getRestCallCount() {
+		return restCallCount.get();
+	}
+	
+	/**
+	 * Gets the number of visit lookups that were served from the cache instead of calling OpenMRS.
+	 *
+	 * @return the count
+	 */
+	public long getSavedCallCount() {
+		return savedCallCount.get();
+	}
+	
+	private record CachedVisit(Optional<String> visitUuid, long fetchedAt) {}
+	
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.WATERMARK_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Checkpoint;
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Stage;
+
+public class AppointmentCheckpointStoreTest {
+	
+	private static final long RETRY_INTERVAL = 1000;
+	
+	private static final long MAX_RETRY_INTERVAL = 5000;
+	
+	private static final long RETRY_HORIZON = 3600000;
+	
+	private JdbcDataSource dataSource;
+	
+	private AppointmentCheckpointStore store;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:checkpoint;DB_CLOSE_DELAY=-1");
+		store = new AppointmentCheckpointStore(dataSource, RETRY_INTERVAL, MAX_RETRY_INTERVAL, RETRY_HORIZON);
+		store.afterPropertiesSet();
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE hcw_appointment_task_checkpoint");
+			s.execute("DROP TABLE hcw_appointment_task_watermark");
+		}
+	}
+	
+	private void setColumn(String column, Object value, Integer appointmentId) throws Exception {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate(
+			    "UPDATE hcw_appointment_task_checkpoint SET " + column + " = ? WHERE appointment_id = ?",
+			    List.of(value, appointmentId));
+		}
+	}
+	
+	private Long getNextCheck(Integer appointmentId) throws Exception {
+		return DbUtils.querySingleValue(
+		    "SELECT next_check FROM hcw_appointment_task_checkpoint WHERE appointment_id = ?", dataSource,
+		    List.of(appointmentId), Long.class);
+	}
+	
+	private Integer getAttempts(Integer appointmentId) throws Exception {
+		return DbUtils.querySingleValue("SELECT attempts FROM hcw_appointment_task_checkpoint WHERE appointment_id = ?",
+		    dataSource, List.of(appointmentId), Integer.class);
+	}
+	
+	@Test
+	public void afterPropertiesSet_shouldNotFailIfTheTablesAlreadyExist() throws Exception {
+		store.afterPropertiesSet();
+	}
+	
+	@Test
+	public void saveWatermark_shouldInsertAndThenUpdateTheWatermark() throws Exception {
+		final LocalDateTime watermark1 = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		final LocalDateTime watermark2 = LocalDateTime.of(2025, 10, 21, 12, 5, 30);
+		assertNull(store.getWatermark(WATERMARK_NAME));
+		
+		store.saveWatermark(WATERMARK_NAME, watermark1);
+		assertEquals(watermark1, store.getWatermark(WATERMARK_NAME));
+		
+		store.saveWatermark(WATERMARK_NAME, watermark2);
+		assertEquals(watermark2, store.getWatermark(WATERMARK_NAME));
+	}
+	
+	@Test
+	public void saveWatermark_shouldKeepSeparateWatermarksPerName() throws Exception {
+		final LocalDateTime watermark1 = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		final LocalDateTime watermark2 = LocalDateTime.of(2025, 10, 21, 12, 5, 30);
+		
+		store.saveWatermark(WATERMARK_NAME + "_0_of_2", watermark1);
+		store.saveWatermark(WATERMARK_NAME + "_1_of_2", watermark2);
+		
+		assertEquals(watermark1, store.getWatermark(WATERMARK_NAME + "_0_of_2"));
+		assertEquals(watermark2, store.getWatermark(WATERMARK_NAME + "_1_of_2"));
+		assertNull(store.getWatermark(WATERMARK_NAME));
+	}
+	
+	@Test
+	public void record_shouldInsertNewCheckpointsAndIncrementTheAttemptsOfExistingOnes() throws Exception {
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.APPOINTMENT_NOT_FOUND)));
+		
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND),
+		    new Checkpoint(2, "uuid-2", Stage.FAILED)));
+		
+		assertEquals(2, getAttempts(1));
+		assertEquals(1, getAttempts(2));
+		assertEquals("ENCOUNTER_NOT_FOUND", DbUtils.querySingleValue(
+		    "SELECT stage FROM hcw_appointment_task_checkpoint WHERE appointment_id = ?", dataSource, List.of(1),
+		    String.class));
+	}
+	
+	@Test
+	public void getDue_shouldReturnTheIdsOfTheAppointmentsDueForAnotherCheckInPages() throws Exception {
+		store.record(List.of(new Checkpoint(3, "uuid-3", Stage.FAILED), new Checkpoint(1, "uuid-1", Stage.FAILED),
+		    new Checkpoint(2, "uuid-2", Stage.FAILED), new Checkpoint(4, "uuid-4", Stage.FAILED)));
+		setColumn("next_check", 1000L, 1);
+		setColumn("next_check", 5000L, 2);
+		setColumn("next_check", 1000L, 3);
+		setColumn("next_check", 1000L, 4);
+		
+		assertEquals(List.of(1, 3), store.getDue(2000, 0, 2));
+		assertEquals(List.of(4), store.getDue(2000, 3, 2));
+		assertEquals(List.of(1, 2, 3, 4), store.getDue(5000, 0, 10));
+	}
+	
+	@Test
+	public void remove_shouldRemoveTheCheckpoints() throws Exception {
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.FAILED), new Checkpoint(2, "uuid-2", Stage.FAILED)));
+		
+		store.remove(List.of(1));
+		
+		assertNull(getAttempts(1));
+		assertEquals(1, getAttempts(2));
+	}
+	
+	@Test
+	public void getCheckpointed_shouldReturnTheIdsWithACheckpoint() throws Exception {
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.FAILED), new Checkpoint(3, "uuid-3", Stage.FAILED)));
+		setColumn("parked", true, 3);
+		
+		assertEquals(Set.of(1, 3), store.getCheckpointed(List.of(1, 2, 3)));
+		assertTrue(store.getCheckpointed(List.of()).isEmpty());
+	}
+	
+	@Test
+	public void schedule_shouldAddDueCheckpointsAndLeaveExistingOnes() throws Exception {
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.FAILED)));
+		
+		store.schedule(List.of(new Checkpoint(1, "uuid-1", Stage.NEW), new Checkpoint(2, "uuid-2", Stage.NEW)));
+		
+		assertEquals(1, getAttempts(1));
+		assertEquals(0, getAttempts(2));
+		assertEquals(List.of(2), store.getDue(System.currentTimeMillis(), 0, 10));
+	}
+	
+	@Test
+	public void getRetryDelay_shouldDoubleTheDelayWithEachAttemptUpToTheMaximum() {
+		assertEquals(1000, store.getRetryDelay(1));
+		assertEquals(2000, store.getRetryDelay(2));
+		assertEquals(4000, store.getRetryDelay(3));
+		assertEquals(5000, store.getRetryDelay(4));
+		assertEquals(5000, store.getRetryDelay(100));
+	}
+	
+	@Test
+	public void record_shouldScheduleTheNextCheckWithBackoff() throws Exception {
+		final long start = System.currentTimeMillis();
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND)));
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND)));
+		
+		final long nextCheck = getNextCheck(1);
+		assertTrue(nextCheck >= start + 2000);
+		assertTrue(nextCheck <= System.currentTimeMillis() + 2000);
+	}
+	
+	@Test
+	public void record_shouldParkAnAppointmentOnceTheRetryHorizonHasElapsed() throws Exception {
+		store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND),
+		    new Checkpoint(2, "uuid-2", Stage.ENCOUNTER_NOT_FOUND)));
+		setColumn("first_checked", System.currentTimeMillis() - RETRY_HORIZON, 1);
+		assertEquals(0, store.getParkedCount());
+		
+		assertEquals(1, store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND))));
+		
+		assertEquals(1, store.getParkedCount());
+		assertEquals(List.of(2), store.getDue(Long.MAX_VALUE, 0, 10));
+		//Already parked appointments are not counted again
+		assertEquals(0, store.record(List.of(new Checkpoint(1, "uuid-1", Stage.ENCOUNTER_NOT_FOUND))));
+	}
+	
+}
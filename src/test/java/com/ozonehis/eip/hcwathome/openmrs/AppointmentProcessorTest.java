@@ -7,19 +7,20 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
-import static com.ozonehis.eip.hcwathome.openmrs.AppointmentProcessor.QUERY_APPOINTMENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import java.util.List;
-import java.util.Map;
-
 import javax.sql.DataSource;
 
 import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.IdType;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -27,74 +28,91 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.EIPException;
 import org.powermock.reflect.Whitebox;
 
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
 @ExtendWith(MockitoExtension.class)
 public class AppointmentProcessorTest {
 	
-	private final String EMAIL_ATTR_TYPE_UUID = "type-uuid";
-	
 	private final String ID_SYSTEM = "uuid:1234";
 	
-	private MockedStatic<DbUtils> mockDbUtils;
-	
 	private MockedStatic<Utils> mockUtils;
 	
 	private HcwFhirClient mockHcwClient;
 	
-	private DataSource mockDataSource;
+	private AppointmentSnapshotLoader mockLoader;
+	
+	private SyncStateStore mockSyncStateStore;
 	
 	private AppointmentProcessor processor;
 	
 	@BeforeEach
 	public void setUp() {
-		mockDbUtils = Mockito.mockStatic(DbUtils.class);
 		mockUtils = Mockito.mockStatic(Utils.class);
 		mockHcwClient = mock(HcwFhirClient.class);
-		mockDataSource = mock(DataSource.class);
-		processor = new AppointmentProcessor(mockHcwClient, mockDataSource);
-		Whitebox.setInternalState(processor, "emailPersonAttTypeUuid", EMAIL_ATTR_TYPE_UUID);
+		mockLoader = mock(AppointmentSnapshotLoader.class);
+		mockSyncStateStore = mock(SyncStateStore.class);
+		HcwBatchWriter writer = new HcwBatchWriter(mockHcwClient, 0, 50);
+		processor = new AppointmentProcessor(mockHcwClient, mockLoader, mockSyncStateStore, writer,
+		        mock(DataSource.class));
 		Whitebox.setInternalState(processor, "idSystem", ID_SYSTEM);
 	}
 	
 	@AfterEach
 	public void tearDown() {
-		mockDbUtils.close();
 		mockUtils.close();
 	}
 	
+	private AppointmentSnapshot createSnapshot(String status) {
+		return new AppointmentSnapshot(1, 2, status, null, null, false, null, null, null, null, null, null);
+	}
+	
+	private MethodOutcome createdOutcome(IdType id) {
+		MethodOutcome outcome = new MethodOutcome(id);
+		outcome.setCreated(true);
+		return outcome;
+	}
+	
+	private MethodOutcome existingOutcome(String id) {
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", id));
+		outcome.setCreated(false);
+		return outcome;
+	}
+	
 	@Test
 	public void process_ShouldCreateAppointmentIfNotExistingAndScheduledForCreateAction() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.CREATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Scheduled");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		Appointment mockAppointment = Mockito.mock(Appointment.class);
-		when(Utils.buildFhirAppointment(uuid, data, EMAIL_ATTR_TYPE_UUID, ID_SYSTEM, mockDataSource))
-		        .thenReturn(mockAppointment);
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(mockAppointment);
+		when(mockHcwClient.createAppointmentIfNoneExist(mockAppointment, uuid)).thenReturn(createdOutcome(null));
 		
 		processor.process(uuid, action);
 		
-		verify(mockHcwClient).create(mockAppointment);
+		verify(mockHcwClient).createAppointmentIfNoneExist(mockAppointment, uuid);
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
 	}
 	
 	@Test
 	public void process_ShouldCreateAppointmentIfNotExistingAndScheduledForUpdateAction() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.UPDATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Scheduled");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		Appointment mockAppointment = Mockito.mock(Appointment.class);
-		when(Utils.buildFhirAppointment(uuid, data, EMAIL_ATTR_TYPE_UUID, ID_SYSTEM, mockDataSource))
-		        .thenReturn(mockAppointment);
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(mockAppointment);
+		when(mockHcwClient.createAppointmentIfNoneExist(mockAppointment, uuid)).thenReturn(createdOutcome(null));
 		
 		processor.process(uuid, action);
 		
-		verify(mockHcwClient).create(mockAppointment);
+		verify(mockHcwClient).createAppointmentIfNoneExist(mockAppointment, uuid);
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
 	}
 	
 	@Test
@@ -102,29 +120,25 @@ public class AppointmentProcessorTest {
 		String uuid = "test-uuid";
 		Action action = Action.CREATE;
 		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Requested");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		when(mockLoader.load(eq(uuid), any())).thenReturn(createSnapshot("Requested"));
 		
 		processor.process(uuid, action);
 		
-		verify(mockHcwClient, never()).create(any());
+		verify(mockHcwClient, never()).createAppointmentIfNoneExist(any(), any());
 	}
 	
 	@Test
 	public void process_ShouldNotUpdateAppointmentIfCompleted() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.UPDATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Completed");
-		List<Map<String, Object>> appointments = List.of(data);
+		AppointmentSnapshot snapshot = createSnapshot("Completed");
 		Appointment mockAppointment = Mockito.mock(Appointment.class);
 		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(mockAppointment);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
-		when(Utils.updateFhirAppointment(mockAppointment, data, EMAIL_ATTR_TYPE_UUID, mockDataSource)).thenReturn(true);
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		
 		processor.process(uuid, action);
 		
+		mockUtils.verify(() -> Utils.updateFhirAppointment(any(), any()), never());
 		verify(mockHcwClient, never()).updateAppointment(any());
 	}
 	
@@ -132,13 +146,13 @@ public class AppointmentProcessorTest {
 	public void process_ShouldUpdateAModifiedAppointmentForCreateAction() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.CREATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Scheduled");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		Appointment mockAppointment = Mockito.mock(Appointment.class);
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(mockAppointment);
-		when(Utils.updateFhirAppointment(mockAppointment, data, EMAIL_ATTR_TYPE_UUID, mockDataSource)).thenReturn(true);
+		when(mockHcwClient.createAppointmentIfNoneExist(any(), eq(uuid))).thenReturn(existingOutcome("15"));
+		when(mockHcwClient.getAppointmentById("15")).thenReturn(mockAppointment);
+		when(Utils.updateFhirAppointment(mockAppointment, snapshot)).thenReturn(true);
+		when(mockHcwClient.updateAppointment(mockAppointment)).thenReturn(new MethodOutcome());
 		
 		processor.process(uuid, action);
 		
@@ -149,13 +163,13 @@ public class AppointmentProcessorTest {
 	public void process_ShouldUpdateAModifiedAppointmentForUpdateAction() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.UPDATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Scheduled");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		Appointment mockAppointment = Mockito.mock(Appointment.class);
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(mockAppointment);
-		when(Utils.updateFhirAppointment(mockAppointment, data, EMAIL_ATTR_TYPE_UUID, mockDataSource)).thenReturn(true);
+		when(mockHcwClient.createAppointmentIfNoneExist(any(), eq(uuid))).thenReturn(existingOutcome("15"));
+		when(mockHcwClient.getAppointmentById("15")).thenReturn(mockAppointment);
+		when(Utils.updateFhirAppointment(mockAppointment, snapshot)).thenReturn(true);
+		when(mockHcwClient.updateAppointment(mockAppointment)).thenReturn(new MethodOutcome());
 		
 		processor.process(uuid, action);
 		
@@ -166,16 +180,15 @@ public class AppointmentProcessorTest {
 	public void process_ShouldSkipUpdateIfNoChangesAreDetected() throws Exception {
 		String uuid = "test-uuid";
 		Action action = Action.UPDATE;
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(null);
-		Map<String, Object> data = Map.of("status", "Scheduled");
-		List<Map<String, Object>> appointments = List.of(data);
-		when(DbUtils.executeQuery(QUERY_APPOINTMENT, mockDataSource, List.of(uuid))).thenReturn(appointments);
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
 		Appointment mockApp = Mockito.mock(Appointment.class);
-		when(mockHcwClient.getAppointmentByIdentifier(uuid)).thenReturn(mockApp);
+		when(mockHcwClient.createAppointmentIfNoneExist(any(), eq(uuid))).thenReturn(existingOutcome("15"));
+		when(mockHcwClient.getAppointmentById("15")).thenReturn(mockApp);
 		
 		processor.process(uuid, action);
 		
-		mockUtils.verify(() -> Utils.updateFhirAppointment(mockApp, data, EMAIL_ATTR_TYPE_UUID, mockDataSource));
+		mockUtils.verify(() -> Utils.updateFhirAppointment(mockApp, snapshot));
 		verify(mockHcwClient, never()).updateAppointment(any());
 	}
 	
@@ -189,6 +202,7 @@ public class AppointmentProcessorTest {
 		processor.process(uuid, action);
 		
 		verify(mockHcwClient).deleteAppointment(appointment);
+		verify(mockLoader, never()).load(any(), any());
 	}
 	
 	@Test
@@ -202,4 +216,211 @@ public class AppointmentProcessorTest {
 		verify(mockHcwClient, never()).deleteAppointment(any());
 	}
 	
+	@Test
+	public void process_ShouldSaveTheSyncStateOfACreatedAppointment() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		Appointment appointment = new Appointment();
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(appointment);
+		MethodOutcome outcome = createdOutcome(new IdType("Appointment", "12", "1"));
+		when(mockHcwClient.createAppointmentIfNoneExist(appointment, uuid)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.CREATE);
+		
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", "1", null));
+	}
+	
+	@Test
+	public void process_ShouldUpdateTheAppointmentByIdIfASyncStateExists() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, null));
+		Appointment appointment = new Appointment();
+		when(mockHcwClient.getAppointmentById("12")).thenReturn(appointment);
+		when(Utils.updateFhirAppointment(appointment, snapshot)).thenReturn(true);
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", "12", "2"));
+		when(mockHcwClient.updateAppointment(appointment)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", null, null));
+	}
+	
+	@Test
+	public void process_ShouldUpdateTheAppointmentWithTheStoredVersionWithoutReadingIt() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", "1", null));
+		Appointment appointment = new Appointment();
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(appointment);
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", "12", "2"));
+		when(mockHcwClient.updateAppointment(appointment)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		assertEquals("12", appointment.getIdElement().getIdPart());
+		assertEquals("W/\"1\"", HcwFhirClient.getETag(appointment));
+		verify(mockHcwClient, never()).getAppointmentById(any());
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", "2", null));
+		assertEquals(1, processor.getPushedCount());
+	}
+	
+	@Test
+	public void process_ShouldReadAndMergeTheAppointmentIfTheStoredVersionIsStale() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", "1", null));
+		Appointment rebuilt = new Appointment();
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(rebuilt);
+		when(mockHcwClient.updateAppointment(rebuilt)).thenThrow(new PreconditionFailedException("Conflict"));
+		Appointment current = new Appointment();
+		current.setId(new IdType("Appointment", "12", "2"));
+		when(mockHcwClient.getAppointmentById("12")).thenReturn(current);
+		when(Utils.updateFhirAppointment(current, snapshot)).thenReturn(true);
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", "12", "3"));
+		when(mockHcwClient.updateAppointment(current)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockSyncStateStore, never()).remove(any());
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", null, null));
+		assertEquals(1, processor.getPushedCount());
+	}
+	
+	@Test
+	public void process_ShouldLookUpTheAppointmentByIdentifierIfItIsNotFoundWithTheStoredVersion() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", "1", null));
+		Appointment rebuilt = new Appointment();
+		when(Utils.buildFhirAppointment(uuid, snapshot, ID_SYSTEM)).thenReturn(rebuilt);
+		when(mockHcwClient.updateAppointment(rebuilt)).thenThrow(new ResourceNotFoundException("Not found"));
+		when(mockHcwClient.createAppointmentIfNoneExist(rebuilt, uuid))
+		        .thenReturn(createdOutcome(new IdType("Appointment", "15", "1")));
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockSyncStateStore).remove(uuid);
+		verify(mockSyncStateStore).save(new SyncState(uuid, "15", "1", null));
+		verify(mockHcwClient, never()).getAppointmentById(any());
+	}
+	
+	@Test
+	public void process_ShouldDeleteTheAppointmentByIdIfASyncStateExists() throws Exception {
+		String uuid = "test-uuid";
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, null));
+		
+		processor.process(uuid, Action.DELETE);
+		
+		verify(mockHcwClient).deleteAppointmentById("12");
+		verify(mockSyncStateStore).remove(uuid);
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
+	}
+	
+	@Test
+	public void process_ShouldRemoveAStaleSyncStateAndConditionallyCreateTheAppointment() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, null));
+		when(mockHcwClient.getAppointmentById("12")).thenThrow(new ResourceNotFoundException("Not found"));
+		Appointment appointment = new Appointment();
+		appointment.setId(new IdType("Appointment", "15", "3"));
+		MethodOutcome outcome = existingOutcome("15");
+		outcome.setResource(appointment);
+		when(mockHcwClient.createAppointmentIfNoneExist(any(), eq(uuid))).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockSyncStateStore).remove(uuid);
+		verify(mockSyncStateStore).save(new SyncState(uuid, "15", null, null));
+		mockUtils.verify(() -> Utils.updateFhirAppointment(appointment, snapshot));
+	}
+	
+	@Test
+	public void process_ShouldSkipTheAppointmentIfTheContentHashHasNotChanged() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(Utils.computeContentHash(snapshot)).thenReturn("hash");
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, "hash"));
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		Mockito.verifyNoInteractions(mockHcwClient);
+		assertEquals(1, processor.getSkippedCount());
+		assertEquals(0, processor.getPushedCount());
+	}
+	
+	@Test
+	public void process_ShouldPushAndSaveTheNewContentHashIfTheContentHashHasChanged() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(Utils.computeContentHash(snapshot)).thenReturn("new-hash");
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, "old-hash"));
+		Appointment appointment = new Appointment();
+		when(mockHcwClient.getAppointmentById("12")).thenReturn(appointment);
+		when(Utils.updateFhirAppointment(appointment, snapshot)).thenReturn(true);
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", "12", "2"));
+		when(mockHcwClient.updateAppointment(appointment)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", null, "new-hash"));
+		assertEquals(0, processor.getSkippedCount());
+		assertEquals(1, processor.getPushedCount());
+	}
+	
+	@Test
+	public void process_ShouldReloadAndRetryTheUpdateIfTheAppointmentWasModifiedConcurrently() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, null));
+		Appointment stale = new Appointment();
+		stale.setId(new IdType("Appointment", "12", "1"));
+		Appointment fresh = new Appointment();
+		fresh.setId(new IdType("Appointment", "12", "2"));
+		when(mockHcwClient.getAppointmentById("12")).thenReturn(stale, fresh);
+		when(Utils.updateFhirAppointment(any(Appointment.class), eq(snapshot))).thenReturn(true);
+		when(mockHcwClient.updateAppointment(stale)).thenThrow(new PreconditionFailedException("Version conflict"));
+		MethodOutcome outcome = new MethodOutcome(new IdType("Appointment", "12", "3"));
+		when(mockHcwClient.updateAppointment(fresh)).thenReturn(outcome);
+		
+		processor.process(uuid, Action.UPDATE);
+		
+		verify(mockHcwClient, never()).getAppointmentByIdentifier(any());
+		verify(mockSyncStateStore, never()).remove(any());
+		verify(mockSyncStateStore).save(new SyncState(uuid, "12", null, null));
+		assertEquals(1, processor.getPushedCount());
+	}
+	
+	@Test
+	public void process_ShouldFailIfTheUpdateKeepsFailingWithAVersionConflict() throws Exception {
+		String uuid = "test-uuid";
+		AppointmentSnapshot snapshot = createSnapshot("Scheduled");
+		when(mockLoader.load(eq(uuid), any())).thenReturn(snapshot);
+		when(mockSyncStateStore.get(uuid)).thenReturn(new SyncState(uuid, "12", null, null));
+		Appointment appointment = new Appointment();
+		appointment.setId(new IdType("Appointment", "12", "1"));
+		when(mockHcwClient.getAppointmentById("12")).thenReturn(appointment);
+		when(Utils.updateFhirAppointment(appointment, snapshot)).thenReturn(true);
+		when(mockHcwClient.updateAppointment(appointment)).thenThrow(new PreconditionFailedException("Conflict"));
+		
+		EIPException e = assertThrows(EIPException.class, () -> processor.process(uuid, Action.UPDATE));
+		
+		assertEquals("Failed to update appointment with uuid " + uuid + " in hcw@home after "
+		        + AppointmentProcessor.MAX_UPDATE_ATTEMPTS + " attempts because it was modified by someone else",
+		    e.getMessage());
+		verify(mockHcwClient, times(AppointmentProcessor.MAX_UPDATE_ATTEMPTS)).updateAppointment(appointment);
+	}
+	
 }
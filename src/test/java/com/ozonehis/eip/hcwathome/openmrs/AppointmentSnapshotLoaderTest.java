@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentSnapshotLoader.APPOINTMENT_MAPPER;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentSnapshotLoader.QUERY_APPOINTMENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentSnapshotLoader.AppointmentRow;
+
+@ExtendWith(MockitoExtension.class)
+public class AppointmentSnapshotLoaderTest {
+	
+	@Mock
+	private QuerySession mockSession;
+	
+	@Mock
+	private PersonCache mockPersonCache;
+	
+	private AppointmentSnapshotLoader loader;
+	
+	@BeforeEach
+	public void setUp() {
+		loader = new AppointmentSnapshotLoader(mockPersonCache);
+	}
+	
+	@Test
+	public void load_shouldLoadTheAppointmentAndGetThePersonDetailsFromTheCache() throws Exception {
+		final String uuid = "test-uuid";
+		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
+		LocalDateTime end = LocalDateTime.of(2025, 11, 15, 10, 30, 00);
+		AppointmentRow row = new AppointmentRow(3, 7, "Scheduled", start, end, false, 9);
+		when(mockSession.executeQuery(QUERY_APPOINTMENT, List.of(uuid), APPOINTMENT_MAPPER)).thenReturn(List.of(row));
+		PersonDetails patient = new PersonDetails(7, "F", "Jane", "Smith", "patient@test.com");
+		PersonDetails provider = new PersonDetails(9, "M", "John", "Doe", "provider@test.com");
+		when(mockPersonCache.getPersons(List.of(7, 9), mockSession)).thenReturn(Map.of(7, patient, 9, provider));
+		
+		AppointmentSnapshot snapshot = loader.load(uuid, mockSession);
+		
+		assertEquals(new AppointmentSnapshot(3, 7, "Scheduled", start, end, false, "F", "Jane", "Smith",
+		        "patient@test.com", 9, "provider@test.com"), snapshot);
+	}
+	
+	@Test
+	public void load_shouldSetNoProviderDetailsIfTheAppointmentHasNoProvider() throws Exception {
+		final String uuid = "test-uuid";
+		AppointmentRow row = new AppointmentRow(3, 7, "Scheduled", null, null, false, null);
+		when(mockSession.executeQuery(QUERY_APPOINTMENT, List.of(uuid), APPOINTMENT_MAPPER)).thenReturn(List.of(row));
+		PersonDetails patient = new PersonDetails(7, "F", "Jane", "Smith", "patient@test.com");
+		when(mockPersonCache.getPersons(List.of(7), mockSession)).thenReturn(Map.of(7, patient));
+		
+		AppointmentSnapshot snapshot = loader.load(uuid, mockSession);
+		
+		assertEquals("patient@test.com", snapshot.patientEmail());
+		assertNull(snapshot.providerPersonId());
+		assertNull(snapshot.providerEmail());
+	}
+	
+	@Test
+	public void load_shouldReturnNullIfNoAppointmentIsFound() throws Exception {
+		final String uuid = "test-uuid";
+		when(mockSession.executeQuery(QUERY_APPOINTMENT, List.of(uuid), APPOINTMENT_MAPPER)).thenReturn(List.of());
+		
+		assertNull(loader.load(uuid, mockSession));
+		verifyNoInteractions(mockPersonCache);
+	}
+	
+	@Test
+	public void appointmentMapper_shouldMapTheColumnsByIndex() throws Exception {
+		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
+		LocalDateTime end = LocalDateTime.of(2025, 11, 15, 10, 30, 00);
+		ResultSet rs = Mockito.mock(ResultSet.class);
+		when(rs.getObject(1, Integer.class)).thenReturn(3);
+		when(rs.getObject(2, Integer.class)).thenReturn(7);
+		when(rs.getString(3)).thenReturn("Scheduled");
+		when(rs.getObject(4, LocalDateTime.class)).thenReturn(start);
+		when(rs.getObject(5, LocalDateTime.class)).thenReturn(end);
+		when(rs.getBoolean(6)).thenReturn(true);
+		when(rs.getObject(7, Integer.class)).thenReturn(9);
+		
+		AppointmentRow row = APPOINTMENT_MAPPER.mapRow(rs);
+		
+		assertEquals(3, row.id());
+		assertEquals(7, row.patientId());
+		assertEquals("Scheduled", row.status());
+		assertEquals(start, row.start());
+		assertEquals(end, row.end());
+		assertTrue(row.voided());
+		assertEquals(9, row.providerPersonId());
+	}
+	
+}
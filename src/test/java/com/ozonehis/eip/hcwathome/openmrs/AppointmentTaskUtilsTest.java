@@ -7,14 +7,20 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.ENCOUNTER_MAPPER;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.QUERY_ENCOUNTER;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.QUERY_OBS;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEntries;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsObs;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.getOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.openMrsObsExists;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.ENC_TYPE_SYSTEM;
-import static com.ozonehis.eip.hcwathome.openmrs.DbUtils.executeQuery;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -22,46 +28,32 @@ import static org.mockito.Mockito.when;
 
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
-
-import javax.sql.DataSource;
 
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Observation;
-import org.junit.jupiter.api.AfterEach;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
-import org.mockito.MockedStatic;
-import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.openmrs.eip.EIPException;
 
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
 @ExtendWith(MockitoExtension.class)
 public class AppointmentTaskUtilsTest {
 	
-	private static MockedStatic<DbUtils> mockDbUtils;
-	
 	@Mock
-	private DataSource mockDataSource;
+	private QuerySession mockSession;
 	
 	@Mock
 	private OpenmrsFhirClient mockOpenmrsClient;
 	
-	@BeforeEach
-	public void setUp() {
-		mockDbUtils = Mockito.mockStatic(DbUtils.class);
-	}
-	
-	@AfterEach
-	public void tearDown() {
-		mockDbUtils.close();
-	}
-	
 	@Test
-	public void createOpenMrsEncounter_shouldCreateNewEncounterWhenNoneExists() throws Exception {
+	public void createOpenMrsEncounter_shouldCreateNewEncounter() throws Exception {
 		String appointmentUuid = "test-uuid";
 		String encTypeUuid = "enc-type-uuid";
 		String patientUuid = "pat-uuid";
@@ -69,16 +61,15 @@ public class AppointmentTaskUtilsTest {
 		String visitUuid = "visit-uuid";
 		Date startDate = new Date();
 		Date endDate = new Date();
-		Map<String, Object> createdEnc = Map.of("encounter_id", 1, "uuid", "enc_uuid");
-		when(executeQuery(QUERY_ENCOUNTER, mockDataSource, List.of(patientUuid, startDate))).thenReturn(List.of())
-		        .thenReturn(List.of(createdEnc));
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, appointmentUuid, patientUuid, providerUuid);
 		Encounter encounter = new Encounter();
+		when(mockOpenmrsClient.create(encounter)).thenReturn(new MethodOutcome(new IdType("Encounter", "enc_uuid")));
 		
-		Map<String, Object> result = createOpenMrsEncounter(encounter, appointmentUuid, encTypeUuid, patientUuid, visitUuid,
-		    providerUuid, startDate, endDate, mockDataSource, mockOpenmrsClient);
+		EncounterRef result = createOpenMrsEncounter(encounter, appointment, encTypeUuid, visitUuid, startDate, endDate,
+		    mockOpenmrsClient);
 		
 		verify(mockOpenmrsClient).create(encounter);
-		assertEquals(createdEnc, result);
+		assertEquals(new EncounterRef(null, "enc_uuid"), result);
 		assertEquals(1, encounter.getType().size());
 		assertEquals(1, encounter.getTypeFirstRep().getCoding().size());
 		assertEquals(ENC_TYPE_SYSTEM, encounter.getTypeFirstRep().getCodingFirstRep().getSystem());
@@ -92,57 +83,52 @@ public class AppointmentTaskUtilsTest {
 	}
 	
 	@Test
-	public void createOpenMrsEncounter_shouldReturnExistingEncounterIfItExists() throws Exception {
-		String appointmentUuid = "uuid-2";
-		String patientUuid = "pat-uuid";
+	public void getOpenMrsEncounter_shouldReturnNullIfNoneExists() throws Exception {
 		Date startDate = new Date();
-		Date endDate = new Date();
-		Map<String, Object> existingEnc = Map.of("encounter_id", 1, "uuid", "enc_uuid");
-		when(executeQuery(QUERY_ENCOUNTER, mockDataSource, List.of(patientUuid, startDate)))
-		        .thenReturn(List.of(existingEnc));
-		Encounter encounter = new Encounter();
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "uuid-1", "pat-uuid", "prov-uuid");
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER)).thenReturn(List.of());
 		
-		Map<String, Object> result = createOpenMrsEncounter(encounter, appointmentUuid, "enc-type-uuid", patientUuid, null,
-		    "prov-uuid", startDate, endDate, mockDataSource, mockOpenmrsClient);
+		assertNull(getOpenMrsEncounter(appointment, startDate, mockSession));
+	}
+	
+	@Test
+	public void getOpenMrsEncounter_shouldReturnExistingEncounterIfItExists() throws Exception {
+		Date startDate = new Date();
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "uuid-2", "pat-uuid", "prov-uuid");
+		EncounterRef existingEnc = new EncounterRef(1, "enc_uuid");
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER))
+		        .thenReturn(List.of(existingEnc));
 		
-		verify(mockOpenmrsClient, never()).create(any());
-		assertEquals(existingEnc, result);
+		assertEquals(existingEnc, getOpenMrsEncounter(appointment, startDate, mockSession));
 	}
 	
 	@Test
-	public void createOpenMrsEncounter_shouldThrowExceptionWhenMultipleEncountersExist() throws Exception {
+	public void getOpenMrsEncounter_shouldThrowExceptionWhenMultipleEncountersExist() throws Exception {
 		String uuid = "tst-uuid";
-		String patientUuid = "pat-uuid";
 		Date startDate = new Date();
-		Map<String, Object> existingEnc = Map.of("encounter_id", 1, "uuid", "enc_uuid");
-		when(executeQuery(QUERY_ENCOUNTER, mockDataSource, List.of(patientUuid, startDate)))
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, uuid, "pat-uuid", "prov-uuid");
+		EncounterRef existingEnc = new EncounterRef(1, "enc_uuid");
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER))
 		        .thenReturn(List.of(existingEnc, existingEnc));
-		Encounter encounter = new Encounter();
 		
-		Exception e = assertThrows(EIPException.class, () -> createOpenMrsEncounter(encounter, uuid, "enc-type-uuid",
-		    patientUuid, null, "prov-uuid", startDate, null, mockDataSource, mockOpenmrsClient));
+		Exception e = assertThrows(EIPException.class, () -> getOpenMrsEncounter(appointment, startDate, mockSession));
 		
 		assertEquals("Found 2 associated to appointment with uuid " + uuid, e.getMessage());
 	}
 	
 	@Test
-	public void createOpenMrsObs_shouldCreateNewOpenmrsObsIfNoneExists() throws Exception {
+	public void createOpenMrsObs_shouldCreateNewOpenmrsObs() throws Exception {
 		String appointmentUuid = "test-obs-uuid";
 		String patientUuid = "pat-uuid";
 		String encUuid = "enc-uuid";
-		Integer encId = 4;
-		Map<String, Object> encData = Map.of("encounter_id", encId, "uuid", encUuid);
+		EncounterRef encData = new EncounterRef(4, encUuid);
 		String qnConceptUuid = "concept-uuid";
 		String value = "test-value";
 		Date obsDate = new Date();
-		List<Object> queryValues = List.of(patientUuid, encId, obsDate);
-		
-		when(executeQuery(QUERY_OBS, mockDataSource, queryValues)).thenReturn(List.of());
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, appointmentUuid, patientUuid, "prov-uuid");
 		
-		createOpenMrsObs(appointmentUuid, patientUuid, encData, qnConceptUuid, value, obsDate, mockDataSource,
-		    mockOpenmrsClient);
+		createOpenMrsObs(appointment, encData, qnConceptUuid, value, obsDate, mockOpenmrsClient);
 		
-		mockDbUtils.verify(() -> executeQuery(QUERY_OBS, mockDataSource, queryValues));
 		ArgumentCaptor<Observation> obsCaptor = ArgumentCaptor.forClass(Observation.class);
 		verify(mockOpenmrsClient).create(obsCaptor.capture());
 		Observation createdObs = obsCaptor.getValue();
@@ -156,21 +142,113 @@ public class AppointmentTaskUtilsTest {
 	}
 	
 	@Test
-	public void createOpenMrsObs_shouldNotCreateOpenmrsObsIfItAlreadyExists() throws Exception {
-		String appointmentUuid = "obs-uuid";
-		String patientUuid = "patient-uuid";
+	public void openMrsObsExists_shouldNotCheckForAnExistingObsIfTheEncounterWasJustCreated() throws Exception {
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "obs-uuid", "pat-uuid", "prov-uuid");
+		
+		assertFalse(openMrsObsExists(appointment, new EncounterRef(null, "enc-uuid"), new Date(), mockSession));
+		
+		verify(mockSession, never()).querySingleValue(any(), any(), any());
+	}
+	
+	@Test
+	public void openMrsObsExists_shouldReturnTrueIfTheObsAlreadyExists() throws Exception {
 		Integer encId = 42;
-		Map<String, Object> encData = Map.of("encounter_id", encId, "uuid", "enc-uuid");
+		EncounterRef encData = new EncounterRef(encId, "enc-uuid");
 		Date obsDate = new Date();
-		List<Object> queryValues = List.of(patientUuid, encId, obsDate);
-		when(executeQuery(QUERY_OBS, mockDataSource, queryValues)).thenReturn(List.of(Map.of("obs_id", 7)));
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "obs-uuid", "patient-uuid", "prov-uuid");
+		List<Object> queryValues = List.of(2, encId, obsDate);
+		when(mockSession.querySingleValue(QUERY_OBS, queryValues, Integer.class)).thenReturn(7);
 		
-		createOpenMrsObs(appointmentUuid, patientUuid, encData, "qn-concept", "some-value", obsDate, mockDataSource,
-		    mockOpenmrsClient);
+		assertTrue(openMrsObsExists(appointment, encData, obsDate, mockSession));
+	}
+	
+	@Test
+	public void openMrsObsExists_shouldReturnFalseIfNoObsExists() throws Exception {
+		Integer encId = 4;
+		EncounterRef encData = new EncounterRef(encId, "enc-uuid");
+		Date obsDate = new Date();
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "obs-uuid", "patient-uuid", "prov-uuid");
+		List<Object> queryValues = List.of(2, encId, obsDate);
+		when(mockSession.querySingleValue(QUERY_OBS, queryValues, Integer.class)).thenReturn(null);
+		
+		assertFalse(openMrsObsExists(appointment, encData, obsDate, mockSession));
+	}
+	
+	@Test
+	public void createOpenMrsEntries_shouldAddEntriesForANewEncounterAndAnObsReferencingIt() throws Exception {
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "appt-uuid", "pat-uuid", "prov-uuid");
+		Date startDate = new Date();
+		Date endDate = new Date();
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER)).thenReturn(List.of());
+		Encounter encounter = new Encounter();
+		
+		List<BundleEntryComponent> entries = createOpenMrsEntries(encounter, appointment, "enc-type-uuid",
+		    "visit-uuid", startDate, endDate, "concept-uuid", "test-notes", mockSession);
+		
+		assertEquals(2, entries.size());
+		BundleEntryComponent encEntry = entries.get(0);
+		assertEquals(encounter, encEntry.getResource());
+		assertTrue(encEntry.getFullUrl().startsWith("urn:uuid:"));
+		assertEquals(HTTPVerb.POST, encEntry.getRequest().getMethod());
+		assertEquals("Encounter", encEntry.getRequest().getUrl());
+		assertEquals("Patient/pat-uuid", encounter.getSubject().getReference());
+		assertEquals("Practitioner/prov-uuid", encounter.getParticipantFirstRep().getIndividual().getReference());
+		assertEquals("Encounter/visit-uuid", encounter.getPartOf().getReference());
+		BundleEntryComponent obsEntry = entries.get(1);
+		assertEquals("Observation", obsEntry.getRequest().getUrl());
+		Observation obs = (Observation) obsEntry.getResource();
+		assertEquals(encEntry.getFullUrl(), obs.getEncounter().getReference());
+		assertEquals("test-notes", obs.getValueStringType().getValue());
+		assertEquals(endDate, obs.getEffectiveDateTimeType().getValue());
+		verify(mockSession, never()).querySingleValue(any(), any(), any());
+		verify(mockOpenmrsClient, never()).create(any());
+	}
+	
+	@Test
+	public void createOpenMrsEntries_shouldOnlyAddAnObsEntryIfTheEncounterAlreadyExists() throws Exception {
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "appt-uuid", "pat-uuid", "prov-uuid");
+		Date startDate = new Date();
+		Date endDate = new Date();
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER))
+		        .thenReturn(List.of(new EncounterRef(4, "enc-uuid")));
+		
+		List<BundleEntryComponent> entries = createOpenMrsEntries(new Encounter(), appointment, "enc-type-uuid", null,
+		    startDate, endDate, "concept-uuid", "test-notes", mockSession);
+		
+		assertEquals(1, entries.size());
+		Observation obs = (Observation) entries.get(0).getResource();
+		assertEquals("Encounter/enc-uuid", obs.getEncounter().getReference());
+		verify(mockSession).querySingleValue(QUERY_OBS, List.of(2, 4, endDate), Integer.class);
+	}
+	
+	@Test
+	public void createOpenMrsEntries_shouldReturnNoEntriesIfTheEncounterAndObsAlreadyExist() throws Exception {
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "appt-uuid", "pat-uuid", "prov-uuid");
+		Date startDate = new Date();
+		Date endDate = new Date();
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER))
+		        .thenReturn(List.of(new EncounterRef(4, "enc-uuid")));
+		when(mockSession.querySingleValue(QUERY_OBS, List.of(2, 4, endDate), Integer.class)).thenReturn(7);
+		
+		List<BundleEntryComponent> entries = createOpenMrsEntries(new Encounter(), appointment, "enc-type-uuid", null,
+		    startDate, endDate, "concept-uuid", "test-notes", mockSession);
+		
+		assertTrue(entries.isEmpty());
+	}
+	
+	@Test
+	public void createOpenMrsEntries_shouldNotAddAParticipantIfTheAppointmentHasNoProvider() throws Exception {
+		AppointmentCandidate appointment = new AppointmentCandidate(1, 2, "appt-uuid", "pat-uuid", null);
+		Date startDate = new Date();
+		Date endDate = new Date();
+		when(mockSession.executeQuery(QUERY_ENCOUNTER, List.of(2, startDate), ENCOUNTER_MAPPER)).thenReturn(List.of());
+		Encounter encounter = new Encounter();
 		
-		verify(mockOpenmrsClient, never()).create(any(Observation.class));
-		mockDbUtils.verify(() -> executeQuery(QUERY_OBS, mockDataSource, queryValues));
+		createOpenMrsEntries(encounter, appointment, "enc-type-uuid", null, startDate, endDate, "concept-uuid", null,
+		    mockSession);
 		
+		assertTrue(encounter.getParticipant().isEmpty());
+		assertEquals("Patient/pat-uuid", encounter.getSubject().getReference());
 	}
 	
 }
@@ -7,31 +7,50 @@
  */
 package com.ozonehis.eip.hcwathome.openmrs;
 
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.WATERMARK_NAME;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsEntries;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.createOpenMrsObs;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.getOpenMrsEncounter;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentTaskUtils.openMrsObsExists;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.CANDIDATE_MAPPER;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.MIN_END_DATE;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.QUERY;
-import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.QUERY_PATIENT_UUID;
-import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.QUERY_PROV_UUID;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.QUERY_BY_IDS;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.QUERY_BY_UUID;
 import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.SQL_UPDATE_APPT;
-import static com.ozonehis.eip.hcwathome.openmrs.DbUtils.executeQuery;
+import static com.ozonehis.eip.hcwathome.openmrs.AppointmentsTask.WATERMARK_OVERLAP_MINUTES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.lenient;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
+import org.h2.jdbcx.JdbcDataSource;
 import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.StringType;
 import org.junit.jupiter.api.AfterEach;
@@ -41,9 +60,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
+import org.mockito.invocation.Invocation;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.EIPException;
 import org.powermock.reflect.Whitebox;
 
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Checkpoint;
+import com.ozonehis.eip.hcwathome.openmrs.AppointmentCheckpointStore.Stage;
+
 @ExtendWith(MockitoExtension.class)
 public class AppointmentsTaskTest {
 	
@@ -53,6 +77,8 @@ public class AppointmentsTaskTest {
 	
 	private static final String NOTES_EXT_URL = "test-system-url";
 	
+	private static final int PAGE_SIZE = 100;
+	
 	private MockedStatic<DbUtils> mockDbUtils;
 	
 	private MockedStatic<LocalDateTimeUtils> mockDateTimeUtils;
@@ -63,10 +89,7 @@ public class AppointmentsTaskTest {
 	private DataSource mockDataSource;
 	
 	@Mock
-	private Connection mockConnection;
-	
-	@Mock
-	private PreparedStatement mockStatement;
+	private QuerySession mockSession;
 	
 	@Mock
 	private HcwFhirClient mockHcwClient;
@@ -75,7 +98,13 @@ public class AppointmentsTaskTest {
 	private OpenmrsFhirClient mockOpenMrsClient;
 	
 	@Mock
-	private OpenMrsRestClient mockOpenMrsRestClient;
+	private VisitResolver mockVisitResolver;
+	
+	@Mock
+	private AppointmentCheckpointStore mockCheckpointStore;
+	
+	@Mock
+	private ClusterCoordinator mockCoordinator;
 	
 	private AppointmentsTask task;
 	
@@ -84,12 +113,23 @@ public class AppointmentsTaskTest {
 		mockDbUtils = Mockito.mockStatic(DbUtils.class);
 		mockDateTimeUtils = Mockito.mockStatic(LocalDateTimeUtils.class);
 		mockTaskUtils = Mockito.mockStatic(AppointmentTaskUtils.class);
-		task = new AppointmentsTask(mockHcwClient, mockOpenMrsClient, mockOpenMrsRestClient, mockDataSource);
+		task = new AppointmentsTask(mockHcwClient, mockOpenMrsClient, mockVisitResolver, mockCheckpointStore,
+		    mockCoordinator, mockDataSource);
 		Whitebox.setInternalState(task, "encounterTypeUuid", ENC_TYPE_UUID);
 		Whitebox.setInternalState(task, "questionConceptUuid", QN_CONCEPT_UUID);
 		Whitebox.setInternalState(task, "notesExtensionUrl", NOTES_EXT_URL);
-		lenient().when(mockDataSource.getConnection()).thenReturn(mockConnection);
-		lenient().when(mockConnection.prepareStatement(SQL_UPDATE_APPT)).thenReturn(mockStatement);
+		Whitebox.setInternalState(task, "queryPageSize", PAGE_SIZE);
+		Whitebox.setInternalState(task, "hcwLookupChunkSize", 50);
+		Whitebox.setInternalState(task, "concurrency", 1);
+		Whitebox.setInternalState(task, "useVirtualThreads", false);
+		Whitebox.setInternalState(task, "maxConcurrentHcw", 4);
+		Whitebox.setInternalState(task, "maxConcurrentOpenmrsRest", 4);
+		Whitebox.setInternalState(task, "maxConcurrentOpenmrsFhir", 4);
+		Whitebox.setInternalState(task, "transactionMaxEntries", 0);
+		Mockito.lenient().when(DbUtils.openSession(mockDataSource)).thenReturn(mockSession);
+		Mockito.lenient().when(mockCoordinator.getAssignment()).thenReturn(ClusterCoordinator.ALL);
+		Mockito.lenient().when(mockCoordinator.holdsLease()).thenReturn(true);
+		Mockito.lenient().when(mockCoordinator.claim(anyInt())).thenReturn(true);
 	}
 	
 	@AfterEach
@@ -134,41 +174,81 @@ public class AppointmentsTaskTest {
 		when(mockEnc2.getExtensionByUrl(NOTES_EXT_URL)).thenReturn(mockExt2);
 		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
 		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
-		Map<String, Object> a1 = Map.of("patient_appointment_id", appId1, "uuid", appUuid1, "patient_id", patientId1,
-		    "provider_uuid", providerUuid1);
-		Map<String, Object> a2 = Map.of("patient_appointment_id", appId2, "uuid", appUuid2, "patient_id", patientId2,
-		    "provider_uuid", providerUuid2);
-		List<Object> args = List.of("Virtual", "Scheduled", asOf, 0);
-		when(executeQuery(QUERY, mockDataSource, args)).thenReturn(List.of(a1, a2));
-		when(executeQuery(QUERY_PATIENT_UUID, mockDataSource, List.of(patientId1)))
-		        .thenReturn(List.of(Map.of("uuid", patientUuid1)));
-		when(executeQuery(QUERY_PROV_UUID, mockDataSource, List.of(appId1)))
-		        .thenReturn(List.of(Map.of("uuid", providerUuid1)));
-		when(executeQuery(QUERY_PATIENT_UUID, mockDataSource, List.of(patientId2)))
-		        .thenReturn(List.of(Map.of("uuid", patientUuid2)));
-		when(executeQuery(QUERY_PROV_UUID, mockDataSource, List.of(appId2)))
-		        .thenReturn(List.of(Map.of("uuid", providerUuid2)));
-		when(mockHcwClient.getAppointmentByIdentifier(appUuid1)).thenReturn(Mockito.mock(Appointment.class));
-		when(mockHcwClient.getAppointmentByIdentifier(appUuid2)).thenReturn(Mockito.mock(Appointment.class));
-		when(mockHcwClient.getEncounterByAppointment(appUuid1)).thenReturn(mockEnc1);
-		when(mockHcwClient.getEncounterByAppointment(appUuid2)).thenReturn(mockEnc2);
-		when(AppointmentTaskUtils.getActiveVisitUuid(patientUuid1, mockOpenMrsRestClient)).thenReturn(visitUuid1);
-		Map<String, Object> encData1 = Map.of("uuid", "enc-uuid-1");
-		Map<String, Object> encData2 = Map.of("uuid", "enc-uuid-2");
-		when(createOpenMrsEncounter(mockEnc1, appUuid1, ENC_TYPE_UUID, patientUuid1, visitUuid1, providerUuid1, startDate1,
-		    endDate1, mockDataSource, mockOpenMrsClient)).thenReturn(encData1);
-		when(createOpenMrsEncounter(mockEnc2, appUuid2, ENC_TYPE_UUID, patientUuid2, null, providerUuid2, startDate2,
-		    endDate2, mockDataSource, mockOpenMrsClient)).thenReturn(encData2);
+		AppointmentCandidate a1 = new AppointmentCandidate(appId1, patientId1, appUuid1, patientUuid1, providerUuid1);
+		AppointmentCandidate a2 = new AppointmentCandidate(appId2, patientId2, appUuid2, patientUuid2, providerUuid2);
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1, a2));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(appUuid1, appUuid2)))
+		        .thenReturn(Map.of(appUuid1, new HcwAppointment(Mockito.mock(Appointment.class), mockEnc1), appUuid2,
+		            new HcwAppointment(Mockito.mock(Appointment.class), mockEnc2)));
+		when(mockVisitResolver.getActiveVisitUuid(patientUuid1)).thenReturn(visitUuid1);
+		EncounterRef encData1 = new EncounterRef(1, "enc-uuid-1");
+		EncounterRef encData2 = new EncounterRef(2, "enc-uuid-2");
+		when(createOpenMrsEncounter(mockEnc1, a1, ENC_TYPE_UUID, visitUuid1, startDate1, endDate1, mockOpenMrsClient))
+		        .thenReturn(encData1);
+		when(createOpenMrsEncounter(mockEnc2, a2, ENC_TYPE_UUID, null, startDate2, endDate2, mockOpenMrsClient))
+		        .thenReturn(encData2);
+		
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(appId1), List.of(appId2))))
+		        .thenReturn(new int[] { 1, 1 });
 		
 		task.execute();
 		
 		//Only appointment 1 had clinical notes
-		mockTaskUtils.verify(() -> createOpenMrsObs(any(), any(), any(), any(), any(), any(), any(), any()));
-		mockTaskUtils.verify(() -> createOpenMrsObs(appUuid1, patientUuid1, encData1, QN_CONCEPT_UUID, clinicalNotes1,
-		    endDate1, mockDataSource, mockOpenMrsClient));
-		Mockito.verify(mockStatement).setInt(1, appId1);
-		Mockito.verify(mockStatement).setInt(1, appId2);
-		Mockito.verify(mockStatement, times(2)).executeUpdate();
+		mockTaskUtils.verify(() -> createOpenMrsObs(any(), any(), any(), any(), any(), any()));
+		mockTaskUtils.verify(
+		    () -> createOpenMrsObs(a1, encData1, QN_CONCEPT_UUID, clinicalNotes1, endDate1, mockOpenMrsClient));
+		mockTaskUtils.verify(() -> getOpenMrsEncounter(a1, startDate1, mockSession));
+		mockTaskUtils.verify(() -> getOpenMrsEncounter(a2, startDate2, mockSession));
+		Mockito.verify(mockSession).beginTransaction();
+		Mockito.verify(mockSession).executeBatch(SQL_UPDATE_APPT, List.of(List.of(appId1), List.of(appId2)));
+		Mockito.verify(mockSession).commit();
+		Mockito.verify(mockSession, Mockito.times(4)).close();
+		assertEquals(2, task.getLastRunSummary().completed());
+		Mockito.verify(mockVisitResolver).beginRun();
+		Mockito.verify(mockHcwClient, never()).getAppointmentByIdentifier(anyString());
+		Mockito.verify(mockHcwClient, never()).getEncounterByAppointment(anyString());
+	}
+	
+	@Test
+	public void execute_shouldOnlyAddTheMissingObsAfterClosingTheQuerySession() throws Exception {
+		final int appId = 1;
+		final String appUuid = "appointment-uuid-1";
+		final String notes = "Some notes";
+		Date startDate = new Date();
+		Date endDate = new Date();
+		Period period = new Period();
+		period.setStart(startDate);
+		period.setEnd(endDate);
+		final Encounter mockEnc = Mockito.mock(Encounter.class);
+		when(mockEnc.getPeriod()).thenReturn(period);
+		final Extension mockExt = Mockito.mock(Extension.class);
+		when(mockExt.getValue()).thenReturn(new StringType(notes));
+		when(mockEnc.getExtensionByUrl(NOTES_EXT_URL)).thenReturn(mockExt);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(appId, 3, appUuid);
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(appUuid)))
+		        .thenReturn(Map.of(appUuid, new HcwAppointment(Mockito.mock(Appointment.class), mockEnc)));
+		EncounterRef encRef = new EncounterRef(1, "enc-uuid-1");
+		when(getOpenMrsEncounter(a1, startDate, mockSession)).thenReturn(encRef);
+		when(openMrsObsExists(a1, encRef, endDate, mockSession)).thenReturn(false);
+		List<String> lastSessionCalls = new ArrayList<>();
+		mockTaskUtils.when(() -> createOpenMrsObs(a1, encRef, QN_CONCEPT_UUID, notes, endDate, mockOpenMrsClient))
+		        .thenAnswer(invocation -> {
+			        List<Invocation> calls = new ArrayList<>(Mockito.mockingDetails(mockSession).getInvocations());
+			        lastSessionCalls.add(calls.get(calls.size() - 1).getMethod().getName());
+			        return null;
+		        });
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(appId)))).thenReturn(new int[] { 1 });
+		
+		task.execute();
+		
+		assertEquals(List.of("close"), lastSessionCalls);
+		mockTaskUtils.verify(() -> createOpenMrsEncounter(any(), any(), any(), any(), any(), any(), any()), never());
+		assertEquals(1, task.getLastRunSummary().completed());
 	}
 	
 	@Test
@@ -177,15 +257,16 @@ public class AppointmentsTaskTest {
 		final String appUuid = "appointment-uuid-1";
 		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
 		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
-		Map<String, Object> a1 = Map.of("patient_appointment_id", appId, "uuid", appUuid);
-		List<Object> args = List.of("Virtual", "Scheduled", asOf, 0);
-		when(executeQuery(QUERY, mockDataSource, args)).thenReturn(List.of(a1));
-		when(mockHcwClient.getAppointmentByIdentifier(appUuid)).thenReturn(Mockito.mock(Appointment.class));
+		AppointmentCandidate a1 = newCandidate(appId, 3, appUuid);
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(appUuid)))
+		        .thenReturn(Map.of(appUuid, new HcwAppointment(Mockito.mock(Appointment.class), null)));
 		
 		task.execute();
 		
-		Mockito.verifyNoInteractions(mockConnection);
-		Mockito.verifyNoInteractions(mockStatement);
+		Mockito.verify(mockSession, never()).querySingleValue(anyString(), anyList(), any());
+		Mockito.verify(mockSession, never()).executeBatch(anyString(), anyList());
 		mockTaskUtils.verifyNoInteractions();
 	}
 	
@@ -195,16 +276,569 @@ public class AppointmentsTaskTest {
 		final String appUuid = "appointment-uuid-1";
 		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
 		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
-		Map<String, Object> a1 = Map.of("patient_appointment_id", appId, "uuid", appUuid);
-		List<Object> args = List.of("Virtual", "Scheduled", asOf, 0);
-		when(executeQuery(QUERY, mockDataSource, args)).thenReturn(List.of(a1));
+		AppointmentCandidate a1 = newCandidate(appId, 3, appUuid);
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1));
 		
 		task.execute();
 		
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(appUuid));
 		Mockito.verify(mockHcwClient, never()).getEncounterByAppointment(appUuid);
-		Mockito.verifyNoInteractions(mockConnection);
-		Mockito.verifyNoInteractions(mockStatement);
+		Mockito.verify(mockSession, never()).querySingleValue(anyString(), anyList(), any());
+		Mockito.verify(mockSession, never()).executeBatch(anyString(), anyList());
 		mockTaskUtils.verifyNoInteractions();
 	}
 	
+	@Test
+	public void execute_shouldIsolateFailuresPerAppointmentAndReportASummary() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1, a2));
+		when(mockHcwClient.getAppointmentsWithEncounters(anyList())).thenThrow(new EIPException("test"));
+		when(mockHcwClient.getAppointmentByIdentifier(a1.uuid())).thenThrow(new EIPException("test"));
+		
+		task.execute();
+		
+		Mockito.verify(mockHcwClient).getAppointmentByIdentifier(a2.uuid());
+		AppointmentsTask.RunSummary summary = task.getLastRunSummary();
+		assertEquals(2, summary.total());
+		assertEquals(0, summary.completed());
+		assertEquals(1, summary.skipped());
+		assertEquals(1, summary.failed());
+	}
+	
+	@Test
+	public void execute_shouldProcessAppointmentsInParallelIfConcurrencyIsEnabled() throws Exception {
+		Whitebox.setInternalState(task, "concurrency", 3);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		AppointmentCandidate a3 = newCandidate(3, 5, "appointment-uuid-3");
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1, a2, a3));
+		when(mockHcwClient.getAppointmentsWithEncounters(anyList())).thenThrow(new EIPException("test"));
+		when(mockHcwClient.getAppointmentByIdentifier(a1.uuid())).thenThrow(new EIPException("test"));
+		when(mockHcwClient.getAppointmentByIdentifier(a3.uuid())).thenReturn(Mockito.mock(Appointment.class));
+		
+		task.execute();
+		
+		Mockito.verify(mockHcwClient).getAppointmentByIdentifier(a2.uuid());
+		Mockito.verify(mockHcwClient).getEncounterByAppointment(a3.uuid());
+		AppointmentsTask.RunSummary summary = task.getLastRunSummary();
+		assertEquals(3, summary.total());
+		assertEquals(0, summary.completed());
+		assertEquals(2, summary.skipped());
+		assertEquals(1, summary.failed());
+	}
+	
+	@Test
+	public void execute_shouldLimitTheConcurrentCallsToHcwAtHome() throws Exception {
+		Whitebox.setInternalState(task, "concurrency", 4);
+		Whitebox.setInternalState(task, "maxConcurrentHcw", 1);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		List<AppointmentCandidate> candidates = List.of(newCandidate(1, 3, "appointment-uuid-1"),
+		    newCandidate(2, 4, "appointment-uuid-2"), newCandidate(3, 5, "appointment-uuid-3"),
+		    newCandidate(4, 6, "appointment-uuid-4"));
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(candidates);
+		when(mockHcwClient.getAppointmentsWithEncounters(anyList())).thenThrow(new EIPException("test"));
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		when(mockHcwClient.getAppointmentByIdentifier(anyString())).thenAnswer(invocation -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			Thread.sleep(20);
+			inFlight.decrementAndGet();
+			return null;
+		});
+		
+		task.execute();
+		
+		Mockito.verify(mockHcwClient, Mockito.times(4)).getAppointmentByIdentifier(anyString());
+		assertEquals(1, maxInFlight.get());
+		assertEquals(4, task.getLastRunSummary().skipped());
+	}
+	
+	@Test
+	public void execute_shouldLookUpTheAppointmentsInHcwAtHomeInChunks() throws Exception {
+		Whitebox.setInternalState(task, "hcwLookupChunkSize", 2);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		AppointmentCandidate a3 = newCandidate(3, 5, "appointment-uuid-3");
+		List<Object> args = queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE);
+		when(mockSession.executeQuery(QUERY, args, CANDIDATE_MAPPER)).thenReturn(List.of(a1, a2, a3));
+		
+		task.execute();
+		
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a1.uuid(), a2.uuid()));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a3.uuid()));
+		Mockito.verify(mockHcwClient, never()).getAppointmentByIdentifier(anyString());
+		assertEquals(3, task.getLastRunSummary().skipped());
+	}
+	
+	@Test
+	public void execute_shouldFetchTheCandidatesInPagesOrderedById() throws Exception {
+		Whitebox.setInternalState(task, "queryPageSize", 2);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(5, 4, "appointment-uuid-2");
+		AppointmentCandidate a3 = newCandidate(8, 5, "appointment-uuid-3");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, 2), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a1, a2));
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 5, 2), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a3));
+		
+		task.execute();
+		
+		Mockito.verify(mockSession, Mockito.times(2)).executeQuery(anyString(), anyList(), any());
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a1.uuid(), a2.uuid()));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a3.uuid()));
+		assertEquals(3, task.getLastRunSummary().total());
+	}
+	
+	@Test
+	public void execute_shouldFetchTheNextPageIfTheCurrentPageIsFull() throws Exception {
+		Whitebox.setInternalState(task, "queryPageSize", 1);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, 1), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a1));
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 1, 1), CANDIDATE_MAPPER))
+		        .thenReturn(List.of());
+		
+		task.execute();
+		
+		Mockito.verify(mockSession, Mockito.times(2)).executeQuery(anyString(), anyList(), any());
+		assertEquals(1, task.getLastRunSummary().total());
+	}
+	
+	private static List<Object> queryArgs(LocalDateTime from, LocalDateTime to, int afterId, int pageSize) {
+		return List.of("Virtual", "Scheduled", to, from, from, from, 0, afterId, pageSize);
+	}
+	
+	private static AppointmentCandidate newCandidate(Integer id, Integer patientId, String uuid) {
+		return new AppointmentCandidate(id, patientId, uuid, "patient-uuid-" + patientId, "provider-uuid-" + id);
+	}
+	
+	private AppointmentCandidate setUpProcessedCandidate(LocalDateTime asOf) throws Exception {
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		final Encounter mockEnc = Mockito.mock(Encounter.class);
+		when(mockEnc.getPeriod()).thenReturn(new Period());
+		when(mockEnc.getExtensionByUrl(NOTES_EXT_URL)).thenReturn(Mockito.mock(Extension.class));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(a.uuid())))
+		        .thenReturn(Map.of(a.uuid(), new HcwAppointment(Mockito.mock(Appointment.class), mockEnc)));
+		return a;
+	}
+	
+	@Test
+	public void execute_shouldSkipAnAppointmentWhoseStatusWasChangedBeforeItIsMarkedAsCompleted() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = setUpProcessedCandidate(asOf);
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a.id())))).thenReturn(new int[] { 0 });
+		
+		task.execute();
+		
+		Mockito.verify(mockSession).commit();
+		assertEquals(0, task.getLastRunSummary().completed());
+		assertEquals(1, task.getLastRunSummary().skipped());
+	}
+	
+	@Test
+	public void execute_shouldCountTheAppointmentsAsFailedIfMarkingThemAsCompletedFails() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = setUpProcessedCandidate(asOf);
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a.id())))).thenThrow(new SQLException("test"));
+		
+		task.execute();
+		
+		Mockito.verify(mockSession, never()).commit();
+		assertEquals(0, task.getLastRunSummary().completed());
+		assertEquals(1, task.getLastRunSummary().failed());
+		Mockito.verify(mockCheckpointStore).record(List.of(new Checkpoint(a.id(), a.uuid(), Stage.FAILED)));
+	}
+	
+	@Test
+	public void execute_shouldOnlyScanAppointmentsChangedOrEndedAfterTheWatermarkAndThenAdvanceIt() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		final LocalDateTime watermark = LocalDateTime.of(2025, 10, 21, 11, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		when(mockCheckpointStore.getWatermark(WATERMARK_NAME)).thenReturn(watermark);
+		
+		task.execute();
+		
+		final LocalDateTime from = watermark.minusMinutes(WATERMARK_OVERLAP_MINUTES);
+		Mockito.verify(mockSession).executeQuery(QUERY, queryArgs(from, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER);
+		Mockito.verify(mockCheckpointStore).saveWatermark(WATERMARK_NAME, asOf);
+	}
+	
+	@Test
+	public void execute_shouldRecordACheckpointForAnAppointmentThatCouldNotBeCompleted() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore)
+		        .record(List.of(new Checkpoint(a.id(), a.uuid(), Stage.APPOINTMENT_NOT_FOUND)));
+		Mockito.verify(mockCheckpointStore).remove(List.of());
+	}
+	
+	@Test
+	public void execute_shouldRemoveTheCheckpointOfACompletedAppointment() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = setUpProcessedCandidate(asOf);
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a.id())))).thenReturn(new int[] { 1 });
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore).remove(List.of(a.id()));
+		Mockito.verify(mockCheckpointStore).record(List.of());
+		assertEquals(1, task.getLastRunSummary().completed());
+	}
+	
+	@Test
+	public void execute_shouldProcessTheAppointmentsDueForAnotherCheck() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = newCandidate(7, 3, "appointment-uuid-7");
+		when(mockCheckpointStore.getDue(anyLong(), eq(0), eq(PAGE_SIZE))).thenReturn(List.of(7, 9));
+		when(mockSession.executeQuery(String.format(QUERY_BY_IDS, "?,?"), List.of(7, 9, "Virtual", "Scheduled", 0),
+		    CANDIDATE_MAPPER)).thenReturn(List.of(a));
+		
+		task.execute();
+		
+		//Appointment 9 is no longer scheduled
+		Mockito.verify(mockCheckpointStore).remove(List.of(9));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a.uuid()));
+		Mockito.verify(mockCheckpointStore)
+		        .record(List.of(new Checkpoint(a.id(), a.uuid(), Stage.APPOINTMENT_NOT_FOUND)));
+		assertEquals(1, task.getLastRunSummary().total());
+	}
+	
+	@Test
+	public void execute_shouldNotAdvanceTheWatermarkIfACheckpointFailsToBeSaved() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		Mockito.doThrow(new SQLException("test")).when(mockCheckpointStore).record(anyList());
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore, never()).saveWatermark(any(), any());
+	}
+	
+	@Test
+	public void execute_shouldReportTheParkedAppointmentsInTheRunSummary() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		when(mockCheckpointStore.record(List.of(new Checkpoint(a.id(), a.uuid(), Stage.APPOINTMENT_NOT_FOUND))))
+		        .thenReturn(1);
+		when(mockCheckpointStore.getParkedCount()).thenReturn(5);
+		
+		task.execute();
+		
+		assertEquals(1, task.getLastRunSummary().newlyParked());
+		assertEquals(5, task.getLastRunSummary().parked());
+	}
+	
+	@Test
+	public void processAppointment_shouldProcessTheScheduledAppointmentWithTheUuid() throws Exception {
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY_BY_UUID, List.of(a.uuid(), "Virtual", "Scheduled", 0), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		final Encounter mockEnc = Mockito.mock(Encounter.class);
+		when(mockEnc.getPeriod()).thenReturn(new Period());
+		when(mockEnc.getExtensionByUrl(NOTES_EXT_URL)).thenReturn(Mockito.mock(Extension.class));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(a.uuid())))
+		        .thenReturn(Map.of(a.uuid(), new HcwAppointment(Mockito.mock(Appointment.class), mockEnc)));
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a.id())))).thenReturn(new int[] { 1 });
+		
+		AppointmentsTask.RunSummary summary = task.processAppointment(a.uuid());
+		
+		assertEquals(1, summary.total());
+		assertEquals(1, summary.completed());
+		Mockito.verify(mockCheckpointStore).remove(List.of(a.id()));
+		Mockito.verify(mockCheckpointStore, never()).saveWatermark(any(), any());
+	}
+	
+	@Test
+	public void processAppointment_shouldDoNothingIfNoScheduledAppointmentExistsWithTheUuid() throws Exception {
+		final String uuid = "appointment-uuid-1";
+		
+		AppointmentsTask.RunSummary summary = task.processAppointment(uuid);
+		
+		assertEquals(0, summary.total());
+		Mockito.verify(mockHcwClient, never()).getAppointmentsWithEncounters(anyList());
+	}
+	
+	@Test
+	public void processAppointment_shouldSkipAnAppointmentThatIsAlreadyBeingProcessed() throws Exception {
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY_BY_UUID, List.of(a.uuid(), "Virtual", "Scheduled", 0), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		final Encounter mockEnc = Mockito.mock(Encounter.class);
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(a.uuid())))
+		        .thenReturn(Map.of(a.uuid(), new HcwAppointment(Mockito.mock(Appointment.class), mockEnc)));
+		Set<String> inProgress = Whitebox.getInternalState(task, "inProgress");
+		inProgress.add(a.uuid());
+		
+		AppointmentsTask.RunSummary summary = task.processAppointment(a.uuid());
+		
+		assertEquals(0, summary.completed());
+		assertEquals(1, summary.skipped());
+		Mockito.verify(mockSession, never()).executeBatch(anyString(), anyList());
+	}
+	
+	@Test
+	public void processAppointment_shouldLeaveAnAppointmentOwnedByAnotherInstance() throws Exception {
+		when(mockCoordinator.getAssignment()).thenReturn(new ClusterCoordinator.Assignment(0, 2));
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY_BY_UUID, List.of(a.uuid(), "Virtual", "Scheduled", 0), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		
+		assertNull(task.processAppointment(a.uuid()));
+		
+		Mockito.verify(mockHcwClient, never()).getAppointmentsWithEncounters(anyList());
+		Mockito.verify(mockSession, never()).executeBatch(anyString(), anyList());
+	}
+	
+	@Test
+	public void processAppointment_shouldSkipAnAppointmentClaimedByAnotherMember() throws Exception {
+		AppointmentCandidate a = newCandidate(1, 3, "appointment-uuid-1");
+		when(mockSession.executeQuery(QUERY_BY_UUID, List.of(a.uuid(), "Virtual", "Scheduled", 0), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a));
+		when(mockCoordinator.claim(a.id())).thenReturn(false);
+		
+		AppointmentsTask.RunSummary summary = task.processAppointment(a.uuid());
+		
+		assertEquals(1, summary.skipped());
+		mockTaskUtils.verifyNoInteractions();
+		Mockito.verify(mockCheckpointStore).record(List.of());
+		Mockito.verify(mockCoordinator).release(List.of());
+		Set<String> inProgress = Whitebox.getInternalState(task, "inProgress");
+		assertTrue(inProgress.isEmpty());
+	}
+	
+	@Test
+	public void execute_shouldReleaseTheClaimsOnceTheChunkIsComplete() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a = setUpProcessedCandidate(asOf);
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a.id())))).thenReturn(new int[] { 1 });
+		
+		task.execute();
+		
+		Mockito.verify(mockCoordinator).claim(a.id());
+		Mockito.verify(mockCoordinator).release(List.of(a.id()));
+		Set<String> inProgress = Whitebox.getInternalState(task, "inProgress");
+		assertTrue(inProgress.isEmpty());
+	}
+	
+	private HcwAppointment setUpPendingImport(AppointmentCandidate a, List<BundleEntryComponent> entries)
+	    throws Exception {
+		final Encounter mockEnc = Mockito.mock(Encounter.class);
+		when(mockEnc.getPeriod()).thenReturn(new Period());
+		when(mockEnc.getExtensionByUrl(NOTES_EXT_URL)).thenReturn(Mockito.mock(Extension.class));
+		when(createOpenMrsEntries(mockEnc, a, ENC_TYPE_UUID, null, null, null, QN_CONCEPT_UUID, null, mockSession))
+		        .thenReturn(entries);
+		return new HcwAppointment(Mockito.mock(Appointment.class), mockEnc);
+	}
+	
+	@Test
+	public void execute_shouldCombineTheImportsOfMultipleAppointmentsInTransactionBundles() throws Exception {
+		Whitebox.setInternalState(task, "transactionMaxEntries", 4);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		AppointmentCandidate a3 = newCandidate(3, 5, "appointment-uuid-3");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a1, a2, a3));
+		List<BundleEntryComponent> entries1 = List.of(new BundleEntryComponent(), new BundleEntryComponent());
+		List<BundleEntryComponent> entries2 = List.of(new BundleEntryComponent(), new BundleEntryComponent());
+		List<BundleEntryComponent> entries3 = List.of(new BundleEntryComponent(), new BundleEntryComponent());
+		Map<String, HcwAppointment> found = Map.of(a1.uuid(), setUpPendingImport(a1, entries1), a2.uuid(),
+		    setUpPendingImport(a2, entries2), a3.uuid(), setUpPendingImport(a3, entries3));
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(a1.uuid(), a2.uuid(), a3.uuid()))).thenReturn(found);
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a1.id()), List.of(a2.id()), List.of(a3.id()))))
+		        .thenReturn(new int[] { 1, 1, 1 });
+		List<BundleEntryComponent> combined = new ArrayList<>(entries1);
+		combined.addAll(entries2);
+		when(mockOpenMrsClient.executeTransaction(combined)).thenReturn(List.of(new IdType("Encounter", "1"),
+		    new IdType("Observation", "2"), new IdType("Encounter", "3"), new IdType("Observation", "4")));
+		when(mockOpenMrsClient.executeTransaction(entries3))
+		        .thenReturn(List.of(new IdType("Encounter", "5"), new IdType("Observation", "6")));
+		
+		task.execute();
+		
+		Mockito.verify(mockOpenMrsClient).executeTransaction(combined);
+		Mockito.verify(mockOpenMrsClient).executeTransaction(entries3);
+		mockTaskUtils.verify(() -> createOpenMrsEncounter(any(), any(), any(), any(), any(), any(), any()),
+		    never());
+		assertEquals(3, task.getLastRunSummary().completed());
+	}
+	
+	@Test
+	public void execute_shouldSendTheImportsOneByOneIfACombinedTransactionBundleFails() throws Exception {
+		Whitebox.setInternalState(task, "transactionMaxEntries", 4);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a1, a2));
+		List<BundleEntryComponent> entries1 = List.of(new BundleEntryComponent(), new BundleEntryComponent());
+		List<BundleEntryComponent> entries2 = List.of(new BundleEntryComponent(), new BundleEntryComponent());
+		when(mockHcwClient.getAppointmentsWithEncounters(List.of(a1.uuid(), a2.uuid()))).thenReturn(
+		    Map.of(a1.uuid(), setUpPendingImport(a1, entries1), a2.uuid(), setUpPendingImport(a2, entries2)));
+		List<BundleEntryComponent> combined = new ArrayList<>(entries1);
+		combined.addAll(entries2);
+		when(mockOpenMrsClient.executeTransaction(combined)).thenThrow(new EIPException("test"));
+		when(mockOpenMrsClient.executeTransaction(entries2)).thenThrow(new EIPException("test"));
+		when(mockOpenMrsClient.executeTransaction(entries1))
+		        .thenReturn(List.of(new IdType("Encounter", "1"), new IdType("Observation", "2")));
+		when(mockSession.executeBatch(SQL_UPDATE_APPT, List.of(List.of(a1.id())))).thenReturn(new int[] { 1 });
+		
+		task.execute();
+		
+		Mockito.verify(mockOpenMrsClient).executeTransaction(entries1);
+		Mockito.verify(mockCheckpointStore).record(List.of(new Checkpoint(a2.id(), a2.uuid(), Stage.FAILED)));
+		assertEquals(1, task.getLastRunSummary().completed());
+		assertEquals(1, task.getLastRunSummary().failed());
+	}
+	
+	@Test
+	public void execute_shouldNotRunIfThisInstanceHasNoShareOfTheWork() throws Exception {
+		when(mockCoordinator.getAssignment()).thenReturn(null);
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore, never()).getWatermark(any());
+		Mockito.verify(mockSession, never()).executeQuery(any(), anyList(), any());
+		Mockito.verify(mockVisitResolver, never()).beginRun();
+	}
+	
+	@Test
+	public void execute_shouldStopTheRunIfThisInstanceLosesItsClusterLease() throws Exception {
+		when(mockCoordinator.holdsLease()).thenReturn(true, false);
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore).getDue(anyLong(), eq(0), eq(PAGE_SIZE));
+		Mockito.verify(mockSession, never()).executeQuery(eq(QUERY), anyList(), any());
+		Mockito.verify(mockCheckpointStore, never()).saveWatermark(any(), any());
+	}
+	
+	@Test
+	public void execute_shouldOnlyProcessTheAppointmentsInTheShardOfThisInstance() throws Exception {
+		when(mockCoordinator.getAssignment()).thenReturn(new ClusterCoordinator.Assignment(1, 3));
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		when(mockCheckpointStore.getDue(anyLong(), eq(0), eq(PAGE_SIZE))).thenReturn(List.of(3, 4, 6, 7));
+		AppointmentCandidate a = newCandidate(4, 3, "appointment-uuid-4");
+		when(mockSession.executeQuery(String.format(QUERY_BY_IDS, "?,?"), List.of(4, 7, "Virtual", "Scheduled", 0),
+		    CANDIDATE_MAPPER)).thenReturn(List.of(a));
+		
+		task.execute();
+		
+		//Appointment 7 is no longer scheduled, 3 and 6 belong to other shards
+		Mockito.verify(mockCheckpointStore).remove(List.of(7));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a.uuid()));
+		Mockito.verify(mockCheckpointStore).saveWatermark(WATERMARK_NAME, asOf);
+	}
+	
+	@Test
+	public void execute_shouldScheduleTheNewCandidatesOwnedByOtherMembers() throws Exception {
+		when(mockCoordinator.getAssignment()).thenReturn(new ClusterCoordinator.Assignment(1, 3));
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a3 = newCandidate(3, 3, "appointment-uuid-3");
+		AppointmentCandidate a4 = newCandidate(4, 5, "appointment-uuid-4");
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a3, a4));
+		
+		task.execute();
+		
+		Mockito.verify(mockCheckpointStore).schedule(List.of(new Checkpoint(a3.id(), a3.uuid(), Stage.NEW)));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a4.uuid()));
+		Mockito.verify(mockCheckpointStore).saveWatermark(WATERMARK_NAME, asOf);
+	}
+	
+	@Test
+	public void execute_shouldSkipNewCandidatesThatHaveACheckpointOrWereAlreadyHandledByTheRun() throws Exception {
+		final LocalDateTime asOf = LocalDateTime.of(2025, 10, 21, 12, 00, 00);
+		when(LocalDateTimeUtils.getCurrentTime()).thenReturn(asOf);
+		AppointmentCandidate a1 = newCandidate(1, 3, "appointment-uuid-1");
+		AppointmentCandidate a2 = newCandidate(2, 4, "appointment-uuid-2");
+		AppointmentCandidate a3 = newCandidate(3, 5, "appointment-uuid-3");
+		when(mockCheckpointStore.getDue(anyLong(), eq(0), eq(PAGE_SIZE))).thenReturn(List.of(1));
+		when(mockSession.executeQuery(String.format(QUERY_BY_IDS, "?"), List.of(1, "Virtual", "Scheduled", 0),
+		    CANDIDATE_MAPPER)).thenReturn(List.of(a1));
+		when(mockSession.executeQuery(QUERY, queryArgs(MIN_END_DATE, asOf, 0, PAGE_SIZE), CANDIDATE_MAPPER))
+		        .thenReturn(List.of(a1, a2, a3));
+		when(mockCheckpointStore.getCheckpointed(List.of(1, 2, 3))).thenReturn(Set.of(2));
+		
+		task.execute();
+		
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a1.uuid()));
+		Mockito.verify(mockHcwClient).getAppointmentsWithEncounters(List.of(a3.uuid()));
+		Mockito.verify(mockHcwClient, Mockito.times(2)).getAppointmentsWithEncounters(anyList());
+		assertEquals(2, task.getLastRunSummary().total());
+	}
+	
+	@Test
+	public void queryByUuid_shouldPickTheFirstActiveProviderIfTheAppointmentHasMany() throws Exception {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:candidates;DB_CLOSE_DELAY=-1");
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("CREATE TABLE person (person_id INT PRIMARY KEY, uuid VARCHAR(38))");
+			s.execute("CREATE TABLE provider (provider_id INT PRIMARY KEY, uuid VARCHAR(38))");
+			s.execute("CREATE TABLE patient_appointment (patient_appointment_id INT PRIMARY KEY, patient_id INT, "
+			        + "uuid VARCHAR(38), appointment_kind VARCHAR(45), status VARCHAR(45), voided INT)");
+			s.execute("CREATE TABLE patient_appointment_provider (patient_appointment_provider_id INT PRIMARY KEY, "
+			        + "patient_appointment_id INT, provider_id INT, voided INT)");
+			s.execute("INSERT INTO person VALUES (3, 'patient-uuid')");
+			s.execute("INSERT INTO provider VALUES (1, 'provider-uuid-1'), (2, 'provider-uuid-2'), "
+			        + "(3, 'provider-uuid-3')");
+			s.execute("INSERT INTO patient_appointment VALUES (5, 3, 'appointment-uuid', 'Virtual', 'Scheduled', 0)");
+			s.execute("INSERT INTO patient_appointment_provider VALUES (7, 5, 1, 1), (9, 5, 3, 0), (8, 5, 2, 0)");
+		}
+		
+		try (QuerySession session = new QuerySession(dataSource)) {
+			List<AppointmentCandidate> candidates = session.executeQuery(QUERY_BY_UUID,
+			    List.of("appointment-uuid", "Virtual", "Scheduled", 0), CANDIDATE_MAPPER);
+			
+			assertEquals(List.of(new AppointmentCandidate(5, 3, "appointment-uuid", "patient-uuid", "provider-uuid-2")),
+			    candidates);
+		}
+		finally {
+			try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+				s.execute("DROP ALL OBJECTS");
+			}
+		}
+	}
+	
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.openmrs.eip.camel.OauthProcessor;
+
+public class AuthTokenHolderTest {
+	
+	private AuthTokenHolder holder;
+	
+	@BeforeEach
+	public void setUp() {
+		OauthProcessor oauthProcessor = Mockito.mock(OauthProcessor.class);
+		holder = spy(new AuthTokenHolder(oauthProcessor, null, "user", "pass".toCharArray(), 60000));
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		holder.destroy();
+	}
+	
+	private String createHeader(long expiresAt) {
+		final String payload = "{\"exp\":" + (expiresAt / 1000) + "}";
+		return "Bearer eyJhbGciOiJIUzI1NiJ9." + Base64.getUrlEncoder().withoutPadding()
+		        .encodeToString(payload.getBytes(UTF_8)) + ".signature";
+	}
+	
+	@Test
+	public void getAuthHeader_shouldReturnTheBasicAuthHeaderIfOauthIsDisabled() throws Exception {
+		doReturn(null).when(holder).fetchOauthHeader();
+		
+		assertEquals("Basic dXNlcjpwYXNz", holder.getAuthHeader());
+		assertEquals("Basic dXNlcjpwYXNz", holder.getAuthHeader());
+		
+		verify(holder, times(1)).fetchOauthHeader();
+	}
+	
+	@Test
+	public void getAuthHeader_shouldCacheTheTokenUntilItIsCloseToExpiry() throws Exception {
+		final String header = createHeader(System.currentTimeMillis() + 3600000);
+		doReturn(header).when(holder).fetchOauthHeader();
+		
+		assertEquals(header, holder.getAuthHeader());
+		assertEquals(header, holder.getAuthHeader());
+		
+		verify(holder, times(1)).fetchOauthHeader();
+	}
+	
+	@Test
+	public void getAuthHeader_shouldRefreshTheTokenInTheBackgroundIfItIsCloseToExpiry() throws Exception {
+		final String expiring = createHeader(System.currentTimeMillis() + 30000);
+		final String fresh = createHeader(System.currentTimeMillis() + 3600000);
+		doReturn(expiring, fresh).when(holder).fetchOauthHeader();
+		assertEquals(expiring, holder.getAuthHeader());
+		
+		assertEquals(expiring, holder.getAuthHeader());
+		
+		long timeout = System.currentTimeMillis() + 5000;
+		while (!fresh.equals(holder.getAuthHeader()) && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		
+		assertEquals(fresh, holder.getAuthHeader());
+		verify(holder, times(2)).fetchOauthHeader();
+	}
+	
+	@Test
+	public void getAuthHeader_shouldNotCacheATokenWithoutAnExpiry() throws Exception {
+		doReturn("Bearer opaque-token").when(holder).fetchOauthHeader();
+		
+		assertEquals("Bearer opaque-token", holder.getAuthHeader());
+		assertEquals("Bearer opaque-token", holder.getAuthHeader());
+		
+		verify(holder, times(2)).fetchOauthHeader();
+	}
+	
+	@Test
+	public void getAuthHeader_shouldShareTheInFlightRefreshBetweenConcurrentCallers() throws Exception {
+		final String header = createHeader(System.currentTimeMillis() + 3600000);
+		CountDownLatch fetchStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			fetchStarted.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return header;
+		}).when(holder).fetchOauthHeader();
+		CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> getHeader());
+		fetchStarted.await(5, TimeUnit.SECONDS);
+		CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> getHeader());
+		
+		release.countDown();
+		
+		assertEquals(header, first.get(5, TimeUnit.SECONDS));
+		assertEquals(header, second.get(5, TimeUnit.SECONDS));
+		verify(holder, times(1)).fetchOauthHeader();
+	}
+	
+	private String getHeader() {
+		try {
+			return holder.getAuthHeader();
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
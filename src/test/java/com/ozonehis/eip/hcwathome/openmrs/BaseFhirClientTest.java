@@ -35,7 +35,8 @@ public class BaseFhirClientTest {
 	@Mock
 	private DomainResource resource;
 	
-	private BaseFhirClient client = new HcwFhirClient();
+	private BaseFhirClient client = new HcwFhirClient(Mockito.mock(FhirHttpClientConfigurer.class),
+	        new FhirClientExecutor(false, 2));
 	
 	@BeforeEach
 	public void setup() {
@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.ozonehis.eip.hcwathome.openmrs.ClusterCoordinator.Assignment;
+import com.ozonehis.eip.hcwathome.openmrs.ClusterCoordinator.Mode;
+
+public class ClusterCoordinatorTest {
+	
+	private static final long LEASE = 60000;
+	
+	private static final long CLAIM = 60000;
+	
+	private JdbcDataSource dataSource;
+	
+	private List<ClusterCoordinator> members = new ArrayList<>();
+	
+	@BeforeEach
+	public void setUp() {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:cluster;DB_CLOSE_DELAY=-1");
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		members.forEach(ClusterCoordinator::destroy);
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE IF EXISTS hcw_cluster_member");
+			s.execute("DROP TABLE IF EXISTS hcw_appointment_claim");
+		}
+	}
+	
+	private ClusterCoordinator join(Mode mode, String memberId) throws Exception {
+		ClusterCoordinator member = new ClusterCoordinator(dataSource, mode, memberId, LEASE, CLAIM);
+		member.afterPropertiesSet();
+		members.add(member);
+		//Ensures the members have distinct join times
+		Thread.sleep(5);
+		return member;
+	}
+	
+	private void expireLease(String memberId) throws Exception {
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate("UPDATE hcw_cluster_member SET expires = TIMESTAMPADD(SECOND, -1, "
+			        + "CURRENT_TIMESTAMP) WHERE member_id = ?",
+			    List.of(memberId));
+		}
+	}
+	
+	private Integer getMemberCount() throws Exception {
+		return DbUtils.querySingleValue("SELECT COUNT(*) FROM hcw_cluster_member", dataSource, List.of(),
+		    Integer.class);
+	}
+	
+	@Test
+	public void getAssignment_shouldAssignAllTheWorkWithoutTheDatabaseIfClusteringIsDisabled() throws Exception {
+		ClusterCoordinator coordinator = new ClusterCoordinator(null, Mode.NONE, "member-1", LEASE, CLAIM);
+		coordinator.afterPropertiesSet();
+		
+		assertEquals(ClusterCoordinator.ALL, coordinator.getAssignment());
+		coordinator.destroy();
+	}
+	
+	@Test
+	public void getAssignment_shouldOnlyAssignTheWorkToTheLeader() throws Exception {
+		ClusterCoordinator member1 = join(Mode.LEADER, "member-1");
+		ClusterCoordinator member2 = join(Mode.LEADER, "member-2");
+		ClusterCoordinator member3 = join(Mode.LEADER, "member-3");
+		
+		assertEquals(ClusterCoordinator.ALL, member1.getAssignment());
+		assertNull(member2.getAssignment());
+		assertNull(member3.getAssignment());
+	}
+	
+	@Test
+	public void getAssignment_shouldElectANewLeaderIfTheLeaseOfTheLeaderExpires() throws Exception {
+		ClusterCoordinator member1 = join(Mode.LEADER, "member-1");
+		ClusterCoordinator member2 = join(Mode.LEADER, "member-2");
+		ClusterCoordinator member3 = join(Mode.LEADER, "member-3");
+		expireLease(member1.getMemberId());
+		
+		assertEquals(ClusterCoordinator.ALL, member2.getAssignment());
+		assertNull(member3.getAssignment());
+		assertEquals(2, getMemberCount());
+	}
+	
+	@Test
+	public void getAssignment_shouldAssignAShardToEachLiveMember() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		ClusterCoordinator member3 = join(Mode.SHARDED, "member-3");
+		
+		assertEquals(new Assignment(0, 3), member1.getAssignment());
+		assertEquals(new Assignment(1, 3), member2.getAssignment());
+		assertEquals(new Assignment(2, 3), member3.getAssignment());
+	}
+	
+	@Test
+	public void getAssignment_shouldRebalanceTheShardsIfAMemberDies() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		ClusterCoordinator member3 = join(Mode.SHARDED, "member-3");
+		assertEquals(new Assignment(1, 3), member2.getAssignment());
+		expireLease(member2.getMemberId());
+		
+		assertEquals(new Assignment(0, 2), member1.getAssignment());
+		assertEquals(new Assignment(1, 2), member3.getAssignment());
+	}
+	
+	@Test
+	public void getAssignment_shouldRebalanceTheShardsIfAMemberLeaves() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		
+		member1.destroy();
+		
+		assertEquals(new Assignment(0, 1), member2.getAssignment());
+		assertEquals(1, getMemberCount());
+	}
+	
+	@Test
+	public void getAssignment_shouldRejoinAtTheEndIfTheLeaseOfThisMemberExpired() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		expireLease(member1.getMemberId());
+		assertEquals(new Assignment(0, 1), member2.getAssignment());
+		
+		assertEquals(new Assignment(1, 2), member1.getAssignment());
+	}
+	
+	@Test
+	public void holdsLease_shouldReturnFalseIfTheLeaseWasReacquiredSinceTheAssignment() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		assertEquals(new Assignment(0, 2), member1.getAssignment());
+		assertTrue(member1.holdsLease());
+		expireLease(member1.getMemberId());
+		assertEquals(new Assignment(0, 1), member2.getAssignment());
+		
+		member1.renewLease();
+		
+		assertFalse(member1.holdsLease());
+		assertEquals(new Assignment(1, 2), member1.getAssignment());
+		assertTrue(member1.holdsLease());
+	}
+	
+	@Test
+	public void holdsLease_shouldReturnFalseIfTheLeaseHasExpired() throws Exception {
+		ClusterCoordinator member = join(Mode.SHARDED, "member-1");
+		assertEquals(ClusterCoordinator.ALL, member.getAssignment());
+		
+		Whitebox.setInternalState(member, "leaseExpires", System.nanoTime() - 1);
+		
+		assertFalse(member.holdsLease());
+	}
+	
+	@Test
+	public void holdsLease_shouldReturnTrueIfClusteringIsDisabled() {
+		assertTrue(new ClusterCoordinator(null, Mode.NONE, "member-1", LEASE, CLAIM).holdsLease());
+	}
+	
+	@Test
+	public void claim_shouldOnlyLetOneMemberClaimAnAppointment() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		
+		assertTrue(member1.claim(5));
+		assertTrue(member1.claim(5));
+		assertFalse(member2.claim(5));
+		assertTrue(member2.claim(6));
+	}
+	
+	@Test
+	public void claim_shouldLetAnotherMemberClaimTheAppointmentOnceReleased() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		assertTrue(member1.claim(5));
+		
+		member2.release(List.of(5));
+		assertFalse(member2.claim(5));
+		member1.release(List.of(5));
+		
+		assertTrue(member2.claim(5));
+	}
+	
+	@Test
+	public void claim_shouldTakeOverAnExpiredClaim() throws Exception {
+		ClusterCoordinator member1 = join(Mode.SHARDED, "member-1");
+		ClusterCoordinator member2 = join(Mode.SHARDED, "member-2");
+		assertTrue(member1.claim(5));
+		try (QuerySession session = DbUtils.openSession(dataSource)) {
+			session.executeUpdate("UPDATE hcw_appointment_claim SET expires = TIMESTAMPADD(SECOND, -1, "
+			        + "CURRENT_TIMESTAMP) WHERE appointment_id = ?",
+			    List.of(5));
+		}
+		
+		assertTrue(member2.claim(5));
+		assertFalse(member1.claim(5));
+	}
+	
+	@Test
+	public void claim_shouldAlwaysSucceedWithoutTheDatabaseIfClusteringIsDisabled() throws Exception {
+		assertTrue(new ClusterCoordinator(null, Mode.NONE, "member-1", LEASE, CLAIM).claim(5));
+	}
+	
+	@Test
+	public void owns_shouldMatchTheAppointmentIdsInTheShard() {
+		Assignment assignment = new Assignment(1, 3);
+		
+		assertTrue(assignment.owns(1));
+		assertTrue(assignment.owns(4));
+		assertFalse(assignment.owns(3));
+		assertFalse(assignment.owns(5));
+		assertTrue(ClusterCoordinator.ALL.owns(5));
+	}
+	
+}
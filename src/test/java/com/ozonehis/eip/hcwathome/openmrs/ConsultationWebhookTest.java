@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Appointment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.EIPException;
+import org.powermock.reflect.Whitebox;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+@ExtendWith(MockitoExtension.class)
+public class ConsultationWebhookTest {
+	
+	private static final String PATH = "/hcw/webhook/consultation";
+	
+	private static final String TOKEN = "test-token";
+	
+	private static final String ID_SYSTEM = "test-id-system";
+	
+	@Mock
+	private AppointmentsTask mockTask;
+	
+	@Mock
+	private HcwFhirClient mockHcwClient;
+	
+	private ConsultationWebhook webhook;
+	
+	@BeforeEach
+	public void setUp() {
+		webhook = new ConsultationWebhook(mockTask, mockHcwClient, true, "localhost", 0, PATH, TOKEN, 1, 1);
+		Whitebox.setInternalState(webhook, "idSystem", ID_SYSTEM);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		webhook.destroy();
+	}
+	
+	private int post(String body, String token) {
+		Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getMessage().setBody(body);
+		if (token != null) {
+			exchange.getMessage().setHeader("Authorization", "Bearer " + token);
+		}
+		
+		webhook.handle(exchange);
+		
+		assertNull(exchange.getMessage().getHeader("Authorization"));
+		return exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+	}
+	
+	private static AppointmentsTask.RunSummary summary(int completed, int failed) {
+		return new AppointmentsTask.RunSummary(1, completed, 0, failed, 0, -1, 0);
+	}
+	
+	@Test
+	public void shouldProcessTheAppointmentWithTheIdentifierInTheRequest() throws Exception {
+		final String uuid = "appointment-uuid";
+		when(mockTask.processAppointment(uuid)).thenReturn(summary(1, 0));
+		
+		assertEquals(202, post("{\"identifier\":\"" + uuid + "\"}", TOKEN));
+		
+		Mockito.verify(mockTask, timeout(5000)).processAppointment(uuid);
+	}
+	
+	@Test
+	public void shouldProcessTheAppointmentReferencedByTheFinishedEncounterInTheRequest() throws Exception {
+		final String uuid = "appointment-uuid";
+		Appointment appointment = new Appointment();
+		appointment.addIdentifier().setSystem("other-system").setValue("other-value");
+		appointment.addIdentifier().setSystem(ID_SYSTEM).setValue(uuid);
+		when(mockHcwClient.getAppointmentById("hcw-appointment-id")).thenReturn(appointment);
+		when(mockTask.processAppointment(uuid)).thenReturn(summary(1, 0));
+		final String body = "{\"resourceType\":\"Encounter\",\"status\":\"finished\","
+		        + "\"appointment\":[{\"reference\":\"Appointment/hcw-appointment-id\"}]}";
+		
+		assertEquals(202, post(body, TOKEN));
+		
+		Mockito.verify(mockTask, timeout(5000)).processAppointment(uuid);
+	}
+	
+	@Test
+	public void shouldAcceptTheRequestIfTheAppointmentIsOwnedByAnotherInstance() throws Exception {
+		final String uuid = "appointment-uuid";
+		when(mockTask.processAppointment(uuid)).thenReturn(null);
+		
+		assertEquals(202, post("{\"identifier\":\"" + uuid + "\"}", TOKEN));
+		
+		Mockito.verify(mockTask, timeout(5000)).processAppointment(uuid);
+	}
+	
+	@Test
+	public void shouldIgnoreAnEncounterThatIsNotFinished() throws Exception {
+		final String body = "{\"resourceType\":\"Encounter\",\"status\":\"in-progress\","
+		        + "\"appointment\":[{\"reference\":\"Appointment/hcw-appointment-id\"}]}";
+		
+		assertEquals(202, post(body, TOKEN));
+		
+		Mockito.verify(mockTask, never()).processAppointment(anyString());
+		Mockito.verify(mockHcwClient, never()).getAppointmentById(anyString());
+	}
+	
+	@Test
+	public void shouldRejectARequestWithAnInvalidToken() throws Exception {
+		assertEquals(401, post("{\"identifier\":\"appointment-uuid\"}", "bad-token"));
+		assertEquals(401, post("{\"identifier\":\"appointment-uuid\"}", null));
+		
+		Mockito.verify(mockTask, never()).processAppointment(anyString());
+	}
+	
+	@Test
+	public void shouldRejectAnInvalidPayload() throws Exception {
+		assertEquals(400, post("not-json", TOKEN));
+		assertEquals(400, post("{}", TOKEN));
+		assertEquals(400, post("{\"resourceType\":\"Patient\"}", TOKEN));
+		
+		Mockito.verify(mockTask, never()).processAppointment(anyString());
+	}
+	
+	@Test
+	public void shouldAcceptTheRequestIfTheAppointmentFailsToBeProcessed() throws Exception {
+		when(mockTask.processAppointment("appointment-uuid-1")).thenReturn(summary(0, 1));
+		when(mockTask.processAppointment("appointment-uuid-2")).thenThrow(new EIPException("test"));
+		
+		assertEquals(202, post("{\"identifier\":\"appointment-uuid-1\"}", TOKEN));
+		assertEquals(202, post("{\"identifier\":\"appointment-uuid-2\"}", TOKEN));
+		
+		Mockito.verify(mockTask, timeout(5000)).processAppointment("appointment-uuid-2");
+	}
+	
+	@Test
+	public void shouldRespondWithUnavailableIfTooManyRequestsArePending() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		when(mockTask.processAppointment("appointment-uuid-1")).thenAnswer(invocation -> {
+			started.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return summary(1, 0);
+		});
+		
+		try {
+			assertEquals(202, post("{\"identifier\":\"appointment-uuid-1\"}", TOKEN));
+			started.await(5, TimeUnit.SECONDS);
+			assertEquals(202, post("{\"identifier\":\"appointment-uuid-2\"}", TOKEN));
+			assertEquals(503, post("{\"identifier\":\"appointment-uuid-3\"}", TOKEN));
+		}
+		finally {
+			release.countDown();
+		}
+		
+		Mockito.verify(mockTask, timeout(5000)).processAppointment("appointment-uuid-2");
+		Mockito.verify(mockTask, never()).processAppointment("appointment-uuid-3");
+	}
+	
+	@Test
+	public void shouldRespondWithNotFoundIfTheReferencedAppointmentDoesNotExistInHcw() throws Exception {
+		when(mockHcwClient.getAppointmentById("hcw-appointment-id")).thenThrow(new ResourceNotFoundException("test"));
+		final String body = "{\"resourceType\":\"Encounter\",\"status\":\"finished\","
+		        + "\"appointment\":[{\"reference\":\"Appointment/hcw-appointment-id\"}]}";
+		
+		assertEquals(404, post(body, TOKEN));
+		
+		Mockito.verify(mockTask, never()).processAppointment(anyString());
+	}
+	
+	@Test
+	public void shouldRespondWithABadGatewayOrUnavailableIfTheAppointmentCannotBeReadFromHcw() throws Exception {
+		when(mockHcwClient.getAppointmentById("hcw-appointment-id-1"))
+		        .thenThrow(new FhirClientConnectionException("test"));
+		when(mockHcwClient.getAppointmentById("hcw-appointment-id-2")).thenThrow(new InternalErrorException("test"));
+		final String body = "{\"resourceType\":\"Encounter\",\"status\":\"finished\","
+		        + "\"appointment\":[{\"reference\":\"Appointment/%s\"}]}";
+		
+		assertEquals(503, post(String.format(body, "hcw-appointment-id-1"), TOKEN));
+		assertEquals(502, post(String.format(body, "hcw-appointment-id-2"), TOKEN));
+		
+		Mockito.verify(mockTask, never()).processAppointment(anyString());
+	}
+	
+	@Test
+	public void shouldFailIfNoTokenIsConfiguredWhenEnabled() {
+		EIPException e = assertThrows(EIPException.class,
+		    () -> new ConsultationWebhook(mockTask, mockHcwClient, true, "localhost", 0, PATH, " ", 1, 1));
+		
+		assertEquals("A token is required when the consultation webhook is enabled", e.getMessage());
+	}
+	
+}
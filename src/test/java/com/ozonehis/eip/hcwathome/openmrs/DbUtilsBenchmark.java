@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares mapping each row to a map keyed by column label with the typed {@link RowMapper} and
+ * single value variants against an in-memory H2 database, run the main method from the test classpath
+ * to execute it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DbUtilsBenchmark {
+	
+	private static final String QUERY = "SELECT patient_appointment_id,patient_id,uuid,status FROM patient_appointment "
+	        + "WHERE patient_appointment_id <= ?";
+	
+	private static final String QUERY_SINGLE = "SELECT uuid FROM patient_appointment WHERE patient_appointment_id = ?";
+	
+	private static final RowMapper<Row> MAPPER = r -> new Row(r.getObject(1, Integer.class),
+	        r.getObject(2, Integer.class), r.getString(3), r.getString(4));
+	
+	private static final RowMapper<Map<String, Object>> MAP_MAPPER = r -> {
+		ResultSetMetaData rmd = r.getMetaData();
+		Map<String, Object> row = new HashMap<>();
+		for (int i = 1; i <= rmd.getColumnCount(); i++) {
+			row.put(rmd.getColumnLabel(i), r.getObject(i));
+		}
+		
+		return row;
+	};
+	
+	@Param({ "1", "100", "1000" })
+	public int rows;
+	
+	private JdbcDataSource dataSource;
+	
+	record Row(Integer id, Integer patientId, String uuid, String status) {}
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("CREATE TABLE patient_appointment (patient_appointment_id INT PRIMARY KEY, patient_id INT, "
+			        + "uuid VARCHAR(38), status VARCHAR(45))");
+			try (PreparedStatement ps = c.prepareStatement("INSERT INTO patient_appointment VALUES (?, ?, ?, ?)")) {
+				for (int i = 1; i <= 1000; i++) {
+					ps.setInt(1, i);
+					ps.setInt(2, i % 50);
+					ps.setString(3, UUID.randomUUID().toString());
+					ps.setString(4, "Scheduled");
+					ps.addBatch();
+				}
+				
+				ps.executeBatch();
+			}
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE patient_appointment");
+		}
+	}
+	
+	@Benchmark
+	public List<Map<String, Object>> mapBased() throws Exception {
+		return DbUtils.executeQuery(QUERY, dataSource, List.of(rows), MAP_MAPPER);
+	}
+	
+	@Benchmark
+	public List<Row> rowMapper() throws Exception {
+		return DbUtils.executeQuery(QUERY, dataSource, List.of(rows), MAPPER);
+	}
+	
+	@Benchmark
+	public Object singleValueMapBased() throws Exception {
+		return DbUtils.executeQuery(QUERY_SINGLE, dataSource, List.of(rows), MAP_MAPPER).get(0).get("UUID");
+	}
+	
+	@Benchmark
+	public String singleValue() throws Exception {
+		return DbUtils.querySingleValue(QUERY_SINGLE, dataSource, List.of(rows), String.class);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(DbUtilsBenchmark.class.getSimpleName()).build()).run();
+	}
+	
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DbUtilsTest {
+	
+	private JdbcDataSource dataSource;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:dbutils;DB_CLOSE_DELAY=-1");
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("CREATE TABLE person (person_id INT PRIMARY KEY, uuid VARCHAR(38), gender VARCHAR(1))");
+			s.execute("INSERT INTO person VALUES (1, 'uuid-1', 'M'), (2, 'uuid-2', 'F')");
+		}
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE person");
+		}
+	}
+	
+	@Test
+	public void executeQuery_shouldSetTheValuesOfThePreparedStatement() throws Exception {
+		final String query = "SELECT uuid AS person_uuid FROM person WHERE person_id = ?";
+		
+		List<String> rows = DbUtils.executeQuery(query, dataSource, List.of(2), r -> r.getString(1));
+		
+		assertEquals(List.of("uuid-2"), rows);
+	}
+	
+	@Test
+	public void executeQuery_shouldMapEachRowWithTheRowMapper() throws Exception {
+		RowMapper<String> mapper = r -> r.getObject(1, Integer.class) + ":" + r.getString(2);
+		
+		List<String> rows = DbUtils.executeQuery("SELECT person_id,gender FROM person ORDER BY person_id", dataSource,
+		    List.of(), mapper);
+		
+		assertEquals(List.of("1:M", "2:F"), rows);
+	}
+	
+	@Test
+	public void querySingleValue_shouldReturnTheValueOfTheFirstColumnInTheFirstRow() throws Exception {
+		String uuid = DbUtils.querySingleValue("SELECT uuid FROM person WHERE person_id = ?", dataSource, List.of(1),
+		    String.class);
+		
+		assertEquals("uuid-1", uuid);
+	}
+	
+	@Test
+	public void querySingleValue_shouldReturnNullIfNoRowIsFound() throws Exception {
+		assertNull(DbUtils.querySingleValue("SELECT uuid FROM person WHERE person_id = ?", dataSource, List.of(3),
+		    String.class));
+	}
+	
+}
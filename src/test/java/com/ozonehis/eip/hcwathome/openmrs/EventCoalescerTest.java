@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.mysql.watcher.Event;
+
+@ExtendWith(MockitoExtension.class)
+public class EventCoalescerTest {
+	
+	private EventCoalescer coalescer;
+	
+	@BeforeEach
+	public void setUp() {
+		coalescer = new EventCoalescer();
+	}
+	
+	private Exchange createExchange(String operation) {
+		Event event = Mockito.mock(Event.class);
+		Mockito.lenient().when(event.getOperation()).thenReturn(operation);
+		Message message = Mockito.mock(Message.class);
+		Mockito.lenient().when(message.getBody(Event.class)).thenReturn(event);
+		Exchange exchange = Mockito.mock(Exchange.class);
+		Mockito.lenient().when(exchange.getIn()).thenReturn(message);
+		return exchange;
+	}
+	
+	@Test
+	public void aggregate_shouldReturnTheNewExchangeIfThereIsNoPendingEvent() {
+		Exchange exchange = createExchange("c");
+		
+		assertSame(exchange, coalescer.aggregate(null, exchange));
+		assertEquals(0, coalescer.getCoalescedCount());
+	}
+	
+	@Test
+	public void aggregate_shouldKeepTheMostRecentEvent() {
+		Exchange create = createExchange("c");
+		Exchange update1 = createExchange("u");
+		Exchange update2 = createExchange("u");
+		
+		Exchange result = coalescer.aggregate(coalescer.aggregate(create, update1), update2);
+		
+		assertSame(update2, result);
+		assertEquals(2, coalescer.getCoalescedCount());
+	}
+	
+	@Test
+	public void aggregate_shouldAlwaysKeepADeleteEvent() {
+		Exchange update = createExchange("u");
+		Exchange delete = createExchange("d");
+		Exchange laterUpdate = createExchange("u");
+		
+		Exchange result = coalescer.aggregate(coalescer.aggregate(update, delete), laterUpdate);
+		
+		assertSame(delete, result);
+	}
+	
+}
@@ -12,6 +12,8 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
 import org.junit.jupiter.api.BeforeEach;
@@ -35,11 +37,14 @@ public class EventRoutingProcessorTest {
 	@Mock
 	private AppointmentEventProcessor mockAppointmentProcessor;
 	
+	@Mock
+	private PersonEventProcessor mockPersonProcessor;
+	
 	private EventRoutingProcessor processor;
 	
 	@BeforeEach
 	public void setup() {
-		processor = new EventRoutingProcessor(mockAppointmentProcessor);
+		processor = new EventRoutingProcessor(mockAppointmentProcessor, mockPersonProcessor);
 		when(mockExchange.getIn()).thenReturn(mockMessage);
 	}
 	
@@ -54,6 +59,21 @@ public class EventRoutingProcessorTest {
 		verify(mockAppointmentProcessor).process(event);
 	}
 	
+	@Test
+	public void process_shouldRoutePersonEventsToThePersonProcessor() throws Exception {
+		for (String table : List.of("person", "person_name", "person_attribute")) {
+			Event event = Mockito.mock(Event.class);
+			when(mockMessage.getBody()).thenReturn(event);
+			when(event.getTableName()).thenReturn(table);
+			
+			processor.process(mockExchange);
+			
+			verify(mockPersonProcessor).process(event);
+		}
+		
+		Mockito.verifyNoInteractions(mockAppointmentProcessor);
+	}
+	
 	@Test
 	public void process_shouldFailForAnInvalidPayload() {
 		final String payload = "InvalidPayload";
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.GZipContentInterceptor;
+
+public class FhirHttpClientConfigurerTest {
+	
+	@Test
+	public void newClient_shouldApplyThePoolCompressionAndEncodingSettings() {
+		FhirHttpClientConfigurer configurer = new FhirHttpClientConfigurer(40, 10, 30000, true, true,
+		        EncodingEnum.JSON, 0);
+		FhirContext fhirContext = FhirContext.forR4();
+		fhirContext.getRestfulClientFactory().setSocketTimeout(5000);
+		IGenericClient template = fhirContext.newRestfulGenericClient("http://localhost/fhir");
+		BasicAuthInterceptor authInterceptor = new BasicAuthInterceptor("user", "password");
+		template.registerInterceptor(authInterceptor);
+		
+		IGenericClient fhirClient = configurer.newClient("test", template);
+		
+		assertNotSame(fhirContext, fhirClient.getFhirContext());
+		assertEquals("http://localhost/fhir", fhirClient.getServerBase());
+		assertEquals(5000, fhirClient.getFhirContext().getRestfulClientFactory().getSocketTimeout());
+		assertTrue(fhirClient.getInterceptorService().getAllRegisteredInterceptors().contains(authInterceptor));
+		assertTrue(template.getInterceptorService().getAllRegisteredInterceptors().stream()
+		        .noneMatch(i -> i instanceof GZipContentInterceptor));
+		PoolStats stats = configurer.getPoolStats("test");
+		assertEquals(40, stats.getMax());
+		assertEquals(0, stats.getLeased());
+		assertEquals(0, stats.getPending());
+		assertEquals(0, stats.getAvailable());
+		assertEquals(EncodingEnum.JSON, fhirClient.getEncoding());
+		assertTrue(fhirClient.getInterceptorService().getAllRegisteredInterceptors().stream()
+		        .anyMatch(i -> i instanceof GZipContentInterceptor));
+	}
+	
+	@Test
+	public void getPoolStats_shouldReturnNullForAnUnknownClient() {
+		FhirHttpClientConfigurer configurer = new FhirHttpClientConfigurer(20, 20, 0, false, true, EncodingEnum.XML,
+		        0);
+		
+		assertNull(configurer.getPoolStats("test"));
+	}
+	
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.EIPException;
+import org.powermock.reflect.Whitebox;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+
+@ExtendWith(MockitoExtension.class)
+public class HcwBatchWriterTest {
+	
+	@Mock
+	private HcwFhirClient mockHcwClient;
+	
+	private HcwBatchWriter writer;
+	
+	@AfterEach
+	public void tearDown() {
+		writer.destroy();
+	}
+	
+	private Appointment createAppointment(String id) {
+		Appointment appointment = new Appointment();
+		appointment.setId(id);
+		return appointment;
+	}
+	
+	@Test
+	public void createAppointment_shouldCallTheClientDirectlyIfBatchingIsDisabled() {
+		writer = new HcwBatchWriter(mockHcwClient, 0, 50);
+		Appointment appointment = new Appointment();
+		MethodOutcome outcome = new MethodOutcome();
+		when(mockHcwClient.createAppointmentIfNoneExist(appointment, "test-uuid")).thenReturn(outcome);
+		
+		assertEquals(outcome, writer.createAppointment(appointment, "test-uuid"));
+		verify(mockHcwClient, never()).executeBatch(any());
+	}
+	
+	@Test
+	public void shouldSendPendingWritesAsABatchAndMapTheResponsesToEachWrite() throws Exception {
+		writer = new HcwBatchWriter(mockHcwClient, 60000, 2);
+		Bundle response = new Bundle();
+		response.addEntry().getResponse().setStatus("201 Created").setLocation("Appointment/1/_history/1");
+		response.addEntry().getResponse().setStatus("412 Precondition Failed");
+		when(mockHcwClient.executeBatch(any())).thenReturn(response);
+		Appointment newAppointment = new Appointment();
+		
+		CompletableFuture<MethodOutcome> created = CompletableFuture
+		        .supplyAsync(() -> writer.createAppointment(newAppointment, "test-uuid"));
+		//Wait for the first write to be queued so that the entries are in a known order
+		while (Whitebox.<List<?>> getInternalState(writer, "pending").isEmpty()) {
+			Thread.sleep(10);
+		}
+		
+		Appointment appointment = createAppointment("2/_history/4");
+		assertThrows(PreconditionFailedException.class, () -> writer.updateAppointment(appointment));
+		MethodOutcome outcome = created.get(5, TimeUnit.SECONDS);
+		assertEquals("1", outcome.getId().getIdPart());
+		assertEquals("1", outcome.getId().getVersionIdPart());
+		assertTrue(outcome.getCreated());
+		ArgumentCaptor<Bundle> bundleCaptor = ArgumentCaptor.forClass(Bundle.class);
+		verify(mockHcwClient).executeBatch(bundleCaptor.capture());
+		Bundle bundle = bundleCaptor.getValue();
+		assertEquals(BundleType.BATCH, bundle.getType());
+		assertEquals(2, bundle.getEntry().size());
+		assertEquals(HTTPVerb.POST, bundle.getEntry().get(0).getRequest().getMethod());
+		assertEquals("Appointment", bundle.getEntry().get(0).getRequest().getUrl());
+		assertEquals("identifier=test-uuid", bundle.getEntry().get(0).getRequest().getIfNoneExist());
+		assertEquals(HTTPVerb.PUT, bundle.getEntry().get(1).getRequest().getMethod());
+		assertEquals("Appointment/2", bundle.getEntry().get(1).getRequest().getUrl());
+		assertEquals("W/\"4\"", bundle.getEntry().get(1).getRequest().getIfMatch());
+	}
+	
+	@Test
+	public void shouldFallBackToPerResourceCallsIfTheServerRejectsBatchBundles() {
+		writer = new HcwBatchWriter(mockHcwClient, 60000, 1);
+		when(mockHcwClient.executeBatch(any())).thenThrow(new MethodNotAllowedException("Bundles not supported"));
+		Appointment appointment = createAppointment("3");
+		MethodOutcome outcome = new MethodOutcome();
+		when(mockHcwClient.updateAppointment(appointment)).thenReturn(outcome);
+		
+		assertEquals(outcome, writer.updateAppointment(appointment));
+		writer.deleteAppointmentById("4");
+		
+		verify(mockHcwClient).executeBatch(any());
+		verify(mockHcwClient).deleteAppointmentById("4");
+	}
+	
+	@Test
+	public void shouldSendTheWritesOfABadBatchOneByOneAndKeepBatching() {
+		writer = new HcwBatchWriter(mockHcwClient, 60000, 1);
+		when(mockHcwClient.executeBatch(any())).thenThrow(new InvalidRequestException("Invalid appointment"));
+		Appointment appointment = createAppointment("3");
+		InvalidRequestException error = new InvalidRequestException("Invalid appointment");
+		when(mockHcwClient.updateAppointment(appointment)).thenThrow(error);
+		
+		assertSame(error, assertThrows(InvalidRequestException.class, () -> writer.updateAppointment(appointment)));
+		writer.deleteAppointmentById("4");
+		
+		verify(mockHcwClient, times(2)).executeBatch(any());
+		verify(mockHcwClient).deleteAppointmentById("4");
+	}
+	
+	@Test
+	public void shouldFailTheWriteIfNoBatchResponseIsReceivedWithinTheTimeout() {
+		writer = new HcwBatchWriter(mockHcwClient, 60000, 10);
+		Whitebox.setInternalState(writer, "waitTimeout", 100L);
+		
+		EIPException e = assertThrows(EIPException.class, () -> writer.deleteAppointmentById("4"));
+		
+		assertEquals("Timed out after 100ms waiting for the batch response from hcw@home", e.getMessage());
+	}
+	
+	@Test
+	public void shouldKeepFlushingAndFailTheWritesOfABatchIfSendingItThrowsAnError() {
+		writer = new HcwBatchWriter(mockHcwClient, 50, 10);
+		Bundle response = new Bundle();
+		response.addEntry().getResponse().setStatus("204 No Content");
+		when(mockHcwClient.executeBatch(any())).thenThrow(new NoClassDefFoundError("test")).thenReturn(response);
+		
+		EIPException e = assertThrows(EIPException.class, () -> writer.deleteAppointmentById("4"));
+		assertEquals("test", e.getMessage());
+		writer.deleteAppointmentById("5");
+		
+		verify(mockHcwClient, times(2)).executeBatch(any());
+	}
+	
+	@Test
+	public void toOutcome_shouldMapASuccessfulDeleteResponse() {
+		BundleEntryResponseComponent response = new BundleEntryResponseComponent().setStatus("204 No Content");
+		
+		MethodOutcome outcome = HcwBatchWriter.toOutcome(response);
+		
+		assertEquals(204, outcome.getResponseStatusCode());
+	}
+	
+}
@@ -11,13 +11,23 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -27,16 +37,27 @@ import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.openmrs.eip.EIPException;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICreate;
+import ca.uhn.fhir.rest.gclient.ICreateTyped;
+import ca.uhn.fhir.rest.gclient.ICreateWithQuery;
+import ca.uhn.fhir.rest.gclient.ICreateWithQueryTyped;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.ICriterionInternal;
 import ca.uhn.fhir.rest.gclient.IDelete;
 import ca.uhn.fhir.rest.gclient.IDeleteTyped;
+import ca.uhn.fhir.rest.gclient.IGetPage;
+import ca.uhn.fhir.rest.gclient.IGetPageTyped;
 import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IRead;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.gclient.IReadTyped;
 import ca.uhn.fhir.rest.gclient.IUntypedQuery;
 import ca.uhn.fhir.rest.gclient.IUpdate;
 import ca.uhn.fhir.rest.gclient.IUpdateTyped;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 @ExtendWith(MockitoExtension.class)
@@ -45,7 +66,8 @@ public class HcwFhirClientTest {
 	@Mock
 	private IGenericClient mockFhirClient;
 	
-	private HcwFhirClient client = new HcwFhirClient();
+	private HcwFhirClient client = new HcwFhirClient(Mockito.mock(FhirHttpClientConfigurer.class),
+	        new FhirClientExecutor(false, 2));
 	
 	@BeforeEach
 	public void setUp() {
@@ -212,7 +234,7 @@ public class HcwFhirClientTest {
 		when(mockUpdateTyped.execute()).thenReturn(mockOutcome);
 		
 		EIPException e = assertThrows(EIPException.class, () -> client.updateAppointment(appointment));
-
+		
 		assertEquals("Failed to update invite in hcw@home, status code 500", e.getMessage());
 	}
 	
@@ -228,7 +250,7 @@ public class HcwFhirClientTest {
 		when(mockUpdateTyped.execute()).thenThrow(RuntimeException.class);
 		
 		EIPException exception = assertThrows(EIPException.class, () -> client.updateAppointment(appointment));
-
+		
 		assertEquals("Failed to update invite in hcw@home", exception.getMessage());
 	}
 	
@@ -260,7 +282,7 @@ public class HcwFhirClientTest {
 		when(mockDeleteTyped.execute()).thenReturn(mockOutcome);
 		
 		EIPException e = assertThrows(EIPException.class, () -> client.deleteAppointment(appointment));
-
+		
 		assertEquals("Failed to delete invite from hcw@home, status code 500", e.getMessage());
 	}
 	
@@ -276,8 +298,259 @@ public class HcwFhirClientTest {
 		when(mockDeleteTyped.execute()).thenThrow(RuntimeException.class);
 		
 		EIPException exception = assertThrows(EIPException.class, () -> client.deleteAppointment(appointment));
-
+		
 		assertEquals("Failed to delete invite in hcw@home", exception.getMessage());
 	}
 	
+	@Test
+	public void getAppointmentById_shouldReadTheAppointmentWithTheId() {
+		final String id = "12";
+		IRead mockRead = Mockito.mock(IRead.class);
+		IReadTyped mockReadTyped = Mockito.mock(IReadTyped.class);
+		IReadExecutable mockReadExecutable = Mockito.mock(IReadExecutable.class);
+		Appointment expected = new Appointment();
+		when(mockFhirClient.read()).thenReturn(mockRead);
+		when(mockRead.resource(Appointment.class)).thenReturn(mockReadTyped);
+		when(mockReadTyped.withId(id)).thenReturn(mockReadExecutable);
+		when(mockReadExecutable.execute()).thenReturn(expected);
+		
+		assertSame(expected, client.getAppointmentById(id));
+	}
+	
+	@Test
+	public void updateAppointment_shouldRethrowPreconditionFailedException() {
+		Appointment appointment = new Appointment();
+		IUpdate mockUpdate = Mockito.mock(IUpdate.class);
+		IUpdateTyped mockUpdateTyped = Mockito.mock(IUpdateTyped.class);
+		when(mockFhirClient.update()).thenReturn(mockUpdate);
+		when(mockUpdate.resource(appointment)).thenReturn(mockUpdateTyped);
+		when(mockUpdateTyped.execute()).thenThrow(new PreconditionFailedException("Version conflict"));
+		
+		assertThrows(PreconditionFailedException.class, () -> client.updateAppointment(appointment));
+	}
+	
+	@Test
+	public void deleteAppointmentById_shouldDeleteTheAppointmentWithTheId() {
+		IDelete mockDelete = Mockito.mock(IDelete.class);
+		IDeleteTyped mockDeleteTyped = Mockito.mock(IDeleteTyped.class);
+		when(mockFhirClient.delete()).thenReturn(mockDelete);
+		when(mockDelete.resourceById("Appointment", "12")).thenReturn(mockDeleteTyped);
+		MethodOutcome mockOutcome = Mockito.mock(MethodOutcome.class);
+		when(mockOutcome.getResponseStatusCode()).thenReturn(200);
+		when(mockDeleteTyped.execute()).thenReturn(mockOutcome);
+		
+		client.deleteAppointmentById("12");
+		
+		verify(mockDeleteTyped).execute();
+	}
+	
+	@Test
+	public void deleteAppointmentById_shouldRethrowResourceNotFoundException() {
+		IDelete mockDelete = Mockito.mock(IDelete.class);
+		IDeleteTyped mockDeleteTyped = Mockito.mock(IDeleteTyped.class);
+		when(mockFhirClient.delete()).thenReturn(mockDelete);
+		when(mockDelete.resourceById("Appointment", "12")).thenReturn(mockDeleteTyped);
+		when(mockDeleteTyped.execute()).thenThrow(new ResourceNotFoundException("Not found"));
+		
+		assertThrows(ResourceNotFoundException.class, () -> client.deleteAppointmentById("12"));
+	}
+	
+	@Test
+	public void createAppointmentIfNoneExist_shouldConditionallyCreateTheAppointmentByIdentifier() {
+		final String uuid = "test-uuid";
+		Appointment appointment = new Appointment();
+		ICreate mockCreate = Mockito.mock(ICreate.class);
+		ICreateTyped mockCreateTyped = Mockito.mock(ICreateTyped.class);
+		ICreateWithQuery mockCreateWithQuery = Mockito.mock(ICreateWithQuery.class);
+		ICreateWithQueryTyped mockCreateWithQueryTyped = Mockito.mock(ICreateWithQueryTyped.class);
+		when(mockFhirClient.create()).thenReturn(mockCreate);
+		when(mockCreate.resource(appointment)).thenReturn(mockCreateTyped);
+		when(mockCreateTyped.conditional()).thenReturn(mockCreateWithQuery);
+		when(mockCreateWithQuery.where(Mockito.any(ICriterion.class))).thenReturn(mockCreateWithQueryTyped);
+		MethodOutcome outcome = new MethodOutcome();
+		outcome.setResponseStatusCode(200);
+		when(mockCreateWithQueryTyped.execute()).thenReturn(outcome);
+		
+		assertSame(outcome, client.createAppointmentIfNoneExist(appointment, uuid));
+		
+		ArgumentCaptor<ICriterion> criterionCaptor = ArgumentCaptor.forClass(ICriterion.class);
+		verify(mockCreateWithQuery).where(criterionCaptor.capture());
+		ICriterionInternal criterion = (ICriterionInternal) criterionCaptor.getValue();
+		assertEquals("identifier", criterion.getParameterName());
+		assertEquals(uuid, criterion.getParameterValue(null));
+	}
+	
+	@Test
+	public void updateAppointment_shouldSendTheVersionInAnIfMatchHeader() {
+		Appointment appointment = new Appointment();
+		appointment.setId("Appointment/12/_history/3");
+		IUpdate mockUpdate = Mockito.mock(IUpdate.class);
+		IUpdateTyped mockUpdateTyped = Mockito.mock(IUpdateTyped.class);
+		when(mockFhirClient.update()).thenReturn(mockUpdate);
+		when(mockUpdate.resource(appointment)).thenReturn(mockUpdateTyped);
+		when(mockUpdateTyped.withAdditionalHeader("If-Match", "W/\"3\"")).thenReturn(mockUpdateTyped);
+		MethodOutcome outcome = new MethodOutcome();
+		outcome.setResponseStatusCode(200);
+		when(mockUpdateTyped.execute()).thenReturn(outcome);
+		
+		client.updateAppointment(appointment);
+		
+		verify(mockUpdateTyped).withAdditionalHeader("If-Match", "W/\"3\"");
+	}
+	
+	@Test
+	public void updateAppointment_shouldNotSendAnIfMatchHeaderIfTheAppointmentHasNoVersion() {
+		Appointment appointment = new Appointment();
+		appointment.setId("Appointment/12");
+		IUpdate mockUpdate = Mockito.mock(IUpdate.class);
+		IUpdateTyped mockUpdateTyped = Mockito.mock(IUpdateTyped.class);
+		when(mockFhirClient.update()).thenReturn(mockUpdate);
+		when(mockUpdate.resource(appointment)).thenReturn(mockUpdateTyped);
+		MethodOutcome outcome = new MethodOutcome();
+		outcome.setResponseStatusCode(200);
+		when(mockUpdateTyped.execute()).thenReturn(outcome);
+		
+		client.updateAppointment(appointment);
+		
+		verify(mockUpdateTyped, never()).withAdditionalHeader(Mockito.any(), Mockito.any());
+	}
+	
+	@Test
+	public void getAppointmentByIdAsync_shouldReadTheAppointmentWithTheId() throws Exception {
+		final String id = "12";
+		IRead mockRead = Mockito.mock(IRead.class);
+		IReadTyped mockReadTyped = Mockito.mock(IReadTyped.class);
+		IReadExecutable mockReadExecutable = Mockito.mock(IReadExecutable.class);
+		Appointment expected = new Appointment();
+		when(mockFhirClient.read()).thenReturn(mockRead);
+		when(mockRead.resource(Appointment.class)).thenReturn(mockReadTyped);
+		when(mockReadTyped.withId(id)).thenReturn(mockReadExecutable);
+		when(mockReadExecutable.execute()).thenReturn(expected);
+		
+		assertSame(expected, client.getAppointmentByIdAsync(id).get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void updateAppointmentAsync_shouldFailWithTheSameEipExceptionAsTheBlockingCall() {
+		Appointment appointment = new Appointment();
+		IUpdate mockUpdate = Mockito.mock(IUpdate.class);
+		IUpdateTyped mockUpdateTyped = Mockito.mock(IUpdateTyped.class);
+		when(mockFhirClient.update()).thenReturn(mockUpdate);
+		when(mockUpdate.resource(appointment)).thenReturn(mockUpdateTyped);
+		when(mockUpdateTyped.execute()).thenThrow(RuntimeException.class);
+		CompletableFuture<MethodOutcome> future = client.updateAppointmentAsync(appointment);
+		
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		
+		assertEquals(EIPException.class, e.getCause().getClass());
+		assertEquals("Failed to update invite in hcw@home", e.getCause().getMessage());
+	}
+	
+	private Appointment createAppointment(String id, String uuid) {
+		Appointment appointment = new Appointment();
+		appointment.setId(id);
+		appointment.addIdentifier(new Identifier().setValue(uuid));
+		return appointment;
+	}
+	
+	@Test
+	public void getAppointmentsWithEncounters_shouldReturnTheAppointmentsAndEncountersFromAllPages() {
+		IUntypedQuery mockTypedQuery = Mockito.mock(IUntypedQuery.class);
+		IQuery mockQuery = Mockito.mock(IQuery.class);
+		IGetPage mockGetPage = Mockito.mock(IGetPage.class);
+		IGetPageTyped mockGetPageTyped = Mockito.mock(IGetPageTyped.class);
+		Appointment appointment1 = createAppointment("Appointment/1", "uuid-1");
+		Appointment appointment2 = createAppointment("Appointment/2", "uuid-2");
+		Encounter encounter1 = new Encounter();
+		encounter1.addAppointment(new Reference("Appointment/1"));
+		Bundle page1 = new Bundle();
+		page1.addEntry().setResource(appointment1);
+		page1.addEntry().setResource(encounter1);
+		page1.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://test/next");
+		Bundle page2 = new Bundle();
+		page2.addEntry().setResource(appointment2);
+		when(mockFhirClient.search()).thenReturn(mockTypedQuery);
+		when(mockTypedQuery.forResource(Appointment.class)).thenReturn(mockQuery);
+		when(mockQuery.where(Mockito.any(ICriterion.class))).thenReturn(mockQuery);
+		when(mockQuery.revInclude(Mockito.any(Include.class))).thenReturn(mockQuery);
+		when(mockQuery.returnBundle(Bundle.class)).thenReturn(mockQuery);
+		when(mockQuery.execute()).thenReturn(page1);
+		when(mockFhirClient.loadPage()).thenReturn(mockGetPage);
+		when(mockGetPage.next(page1)).thenReturn(mockGetPageTyped);
+		when(mockGetPageTyped.execute()).thenReturn(page2);
+		
+		Map<String, HcwAppointment> results = client.getAppointmentsWithEncounters(List.of("uuid-1", "uuid-2"));
+		
+		assertEquals(2, results.size());
+		assertSame(appointment1, results.get("uuid-1").appointment());
+		assertSame(encounter1, results.get("uuid-1").encounter());
+		assertSame(appointment2, results.get("uuid-2").appointment());
+		assertNull(results.get("uuid-2").encounter());
+		ArgumentCaptor<ICriterion> criterionCaptor = ArgumentCaptor.forClass(ICriterion.class);
+		verify(mockQuery).where(criterionCaptor.capture());
+		ICriterionInternal criterion = (ICriterionInternal) criterionCaptor.getValue();
+		assertEquals("identifier", criterion.getParameterName());
+		assertEquals("uuid-1,uuid-2", criterion.getParameterValue(null));
+		verify(mockQuery).revInclude(Encounter.INCLUDE_APPOINTMENT);
+	}
+	
+	@Test
+	public void getAppointmentsWithEncounters_shouldFailIfMultipleEncountersAreFoundForAnAppointment() {
+		IUntypedQuery mockTypedQuery = Mockito.mock(IUntypedQuery.class);
+		IQuery mockQuery = Mockito.mock(IQuery.class);
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(createAppointment("Appointment/1", "uuid-1"));
+		bundle.addEntry().setResource(new Encounter().addAppointment(new Reference("Appointment/1")));
+		bundle.addEntry().setResource(new Encounter().addAppointment(new Reference("Appointment/1")));
+		when(mockFhirClient.search()).thenReturn(mockTypedQuery);
+		when(mockTypedQuery.forResource(Appointment.class)).thenReturn(mockQuery);
+		when(mockQuery.where(Mockito.any(ICriterion.class))).thenReturn(mockQuery);
+		when(mockQuery.revInclude(Mockito.any(Include.class))).thenReturn(mockQuery);
+		when(mockQuery.returnBundle(Bundle.class)).thenReturn(mockQuery);
+		when(mockQuery.execute()).thenReturn(bundle);
+		
+		EIPException e = assertThrows(EIPException.class,
+		    () -> client.getAppointmentsWithEncounters(List.of("uuid-1")));
+		
+		assertEquals("Found multiple encounters from hcw@home for appointment with external identifier uuid-1",
+		    e.getMessage());
+	}
+	
+	@Test
+	public void getAppointmentsWithEncounters_shouldFailIfAPageAfterTheFirstIsNotFound() {
+		IUntypedQuery mockTypedQuery = Mockito.mock(IUntypedQuery.class);
+		IQuery mockQuery = Mockito.mock(IQuery.class);
+		IGetPage mockGetPage = Mockito.mock(IGetPage.class);
+		IGetPageTyped mockGetPageTyped = Mockito.mock(IGetPageTyped.class);
+		Bundle page1 = new Bundle();
+		page1.addEntry().setResource(createAppointment("Appointment/1", "uuid-1"));
+		page1.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://test/next");
+		when(mockFhirClient.search()).thenReturn(mockTypedQuery);
+		when(mockTypedQuery.forResource(Appointment.class)).thenReturn(mockQuery);
+		when(mockQuery.where(Mockito.any(ICriterion.class))).thenReturn(mockQuery);
+		when(mockQuery.revInclude(Mockito.any(Include.class))).thenReturn(mockQuery);
+		when(mockQuery.returnBundle(Bundle.class)).thenReturn(mockQuery);
+		when(mockQuery.execute()).thenReturn(page1);
+		when(mockFhirClient.loadPage()).thenReturn(mockGetPage);
+		when(mockGetPage.next(page1)).thenReturn(mockGetPageTyped);
+		when(mockGetPageTyped.execute()).thenThrow(new ResourceNotFoundException("test"));
+		
+		assertThrows(ResourceNotFoundException.class,
+		    () -> client.getAppointmentsWithEncounters(List.of("uuid-1", "uuid-2")));
+	}
+	
+	@Test
+	public void getAppointmentsWithEncounters_shouldReturnNoAppointmentsIfTheSearchIsNotFound() {
+		IUntypedQuery mockTypedQuery = Mockito.mock(IUntypedQuery.class);
+		IQuery mockQuery = Mockito.mock(IQuery.class);
+		when(mockFhirClient.search()).thenReturn(mockTypedQuery);
+		when(mockTypedQuery.forResource(Appointment.class)).thenReturn(mockQuery);
+		when(mockQuery.where(Mockito.any(ICriterion.class))).thenReturn(mockQuery);
+		when(mockQuery.revInclude(Mockito.any(Include.class))).thenReturn(mockQuery);
+		when(mockQuery.returnBundle(Bundle.class)).thenReturn(mockQuery);
+		when(mockQuery.execute()).thenThrow(new ResourceNotFoundException("test"));
+		
+		assertTrue(client.getAppointmentsWithEncounters(List.of("uuid-1")).isEmpty());
+	}
+	
 }
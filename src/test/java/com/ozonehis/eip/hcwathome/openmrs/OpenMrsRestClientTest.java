@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient.Version;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class OpenMrsRestClientTest {
+	
+	private HttpServer server;
+	
+	private OpenMrsRestClient client;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/openmrs/ws/rest/v1/", exchange -> {
+			final boolean found = exchange.getRequestURI().getPath().endsWith("/visit");
+			byte[] body = (found ? "{\"query\":\"" + exchange.getRequestURI().getQuery() + "\"}" : "Not found")
+			        .getBytes(UTF_8);
+			exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		
+		server.start();
+		AuthTokenHolder mockTokenHolder = Mockito.mock(AuthTokenHolder.class);
+		Mockito.when(mockTokenHolder.getAuthHeader()).thenReturn("Basic dGVzdA==");
+		client = new OpenMrsRestClient(mockTokenHolder, Version.HTTP_2, 1000, 5000, false, 2);
+		Whitebox.setInternalState(client, "baseUrl", "http://localhost:" + server.getAddress().getPort() + "/openmrs");
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		client.destroy();
+		server.stop(0);
+	}
+	
+	@Test
+	public void searchAsync_shouldReturnTheResponseBody() throws Exception {
+		CompletableFuture<byte[]> future = client.searchAsync("visit", Map.of("patient", "patient-uuid"));
+		
+		assertEquals("{\"query\":\"patient=patient-uuid\"}", new String(future.get(5, TimeUnit.SECONDS), UTF_8));
+	}
+	
+	@Test
+	public void searchAsync_shouldFailIfTheResponseStatusIsNotAllowed() {
+		CompletableFuture<byte[]> future = client.searchAsync("encounter", Map.of());
+		
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		assertEquals("Request to OpenMRS failed with status code: 404, Not found", e.getCause().getMessage());
+	}
+	
+	@Test
+	public void search_shouldReturnTheResponseBody() throws Exception {
+		byte[] body = client.search("visit", Map.of("includeInactive", "false"));
+		
+		assertEquals("{\"query\":\"includeInactive=false\"}", new String(body, UTF_8));
+	}
+	
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static com.ozonehis.eip.hcwathome.openmrs.EventListener.PROCESSOR_ENDPOINT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.mysql.watcher.Event;
+
+@ExtendWith(MockitoExtension.class)
+public class PartitionedEventDispatcherTest {
+	
+	@Mock
+	private ProducerTemplate mockProducerTemplate;
+	
+	private PartitionedEventDispatcher dispatcher;
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		if (dispatcher != null) {
+			dispatcher.destroy();
+		}
+	}
+	
+	private Exchange createExchange(String uuid, String operation) {
+		Event event = Mockito.mock(Event.class);
+		when(event.getTableName()).thenReturn("patient_appointment");
+		when(event.getIdentifier()).thenReturn(uuid);
+		Mockito.lenient().when(event.getOperation()).thenReturn(operation);
+		Message message = Mockito.mock(Message.class);
+		when(message.getBody(Event.class)).thenReturn(event);
+		Exchange copy = Mockito.mock(Exchange.class, uuid + "-" + operation);
+		Exchange exchange = Mockito.mock(Exchange.class);
+		when(exchange.getIn()).thenReturn(message);
+		when(exchange.copy()).thenReturn(copy);
+		return exchange;
+	}
+	
+	@Test
+	public void isEnabled_shouldReturnFalseIfNoLanesAreConfigured() {
+		dispatcher = new PartitionedEventDispatcher(mockProducerTemplate, 0, 10, 0);
+		
+		assertFalse(dispatcher.isEnabled());
+	}
+	
+	@Test
+	public void process_shouldProcessEventsForTheSameRowInOrderOnTheSameLane() throws Exception {
+		dispatcher = new PartitionedEventDispatcher(mockProducerTemplate, 4, 10, 0);
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+		Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+		CountDownLatch latch = new CountDownLatch(3);
+		when(mockProducerTemplate.send(eq(PROCESSOR_ENDPOINT), any(Exchange.class))).thenAnswer(invocation -> {
+			Exchange e = invocation.getArgument(1);
+			processed.add(e.toString());
+			threads.add(Thread.currentThread().getName());
+			latch.countDown();
+			return e;
+		});
+		
+		dispatcher.process(createExchange("uuid-1", "c"));
+		dispatcher.process(createExchange("uuid-1", "u"));
+		dispatcher.process(createExchange("uuid-1", "d"));
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(List.of("uuid-1-c", "uuid-1-u", "uuid-1-d"), processed);
+		assertEquals(1, threads.size());
+		assertTrue(threads.iterator().next().startsWith("event-lane-"));
+	}
+	
+	@Test
+	public void process_shouldProcessEventsForDifferentRowsInParallel() throws Exception {
+		dispatcher = new PartitionedEventDispatcher(mockProducerTemplate, 2, 10, 0);
+		String uuid1 = "uuid-1";
+		String uuid2 = null;
+		for (int i = 2; uuid2 == null; i++) {
+			//Find a uuid that hashes to the other lane
+			String candidate = "uuid-" + i;
+			if (Math.floorMod(("patient_appointment:" + candidate).hashCode(), 2) != Math
+			        .floorMod(("patient_appointment:" + uuid1).hashCode(), 2)) {
+				uuid2 = candidate;
+			}
+		}
+		
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		when(mockProducerTemplate.send(eq(PROCESSOR_ENDPOINT), any(Exchange.class))).thenAnswer(invocation -> {
+			Exchange e = invocation.getArgument(1);
+			if (e.toString().startsWith(uuid1)) {
+				//Simulate a slow hcw@home call that is only released after the other row is processed
+				blocked.await(5, TimeUnit.SECONDS);
+			} else {
+				blocked.countDown();
+				done.countDown();
+			}
+			
+			return e;
+		});
+		
+		dispatcher.process(createExchange(uuid1, "u"));
+		dispatcher.process(createExchange(uuid2, "u"));
+		
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		dispatcher.destroy();
+		assertEquals(1, dispatcher.getProcessedCount(0));
+		assertEquals(1, dispatcher.getProcessedCount(1));
+		assertEquals(0, dispatcher.getFailedCount(0) + dispatcher.getFailedCount(1));
+		dispatcher = null;
+	}
+	
+	@Test
+	public void drain_shouldProcessTheQueuedEventsBeforeReturning() throws Exception {
+		dispatcher = new PartitionedEventDispatcher(mockProducerTemplate, 1, 10, 0);
+		CountDownLatch started = new CountDownLatch(1);
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+		when(mockProducerTemplate.send(eq(PROCESSOR_ENDPOINT), any(Exchange.class))).thenAnswer(invocation -> {
+			Exchange e = invocation.getArgument(1);
+			started.countDown();
+			//Simulate a slow call so that the other events are still queued when draining
+			Thread.sleep(50);
+			processed.add(e.toString());
+			return e;
+		});
+		dispatcher.process(createExchange("uuid-1", "c"));
+		dispatcher.process(createExchange("uuid-2", "c"));
+		dispatcher.process(createExchange("uuid-3", "c"));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		dispatcher.drain();
+		
+		assertEquals(List.of("uuid-1-c", "uuid-2-c", "uuid-3-c"), processed);
+		assertEquals(3, dispatcher.getProcessedCount(0));
+	}
+	
+}
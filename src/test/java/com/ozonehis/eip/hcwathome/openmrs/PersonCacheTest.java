@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.openmrs.eip.EIPException;
+import org.powermock.reflect.Whitebox;
+
+public class PersonCacheTest {
+	
+	private static final String EMAIL_ATTR_TYPE_UUID = "email-type-uuid";
+	
+	private JdbcDataSource dataSource;
+	
+	private PersonCache cache;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:personcache;DB_CLOSE_DELAY=-1");
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("CREATE TABLE person (person_id INT PRIMARY KEY, gender VARCHAR(1))");
+			s.execute("CREATE TABLE person_name (person_name_id INT PRIMARY KEY, person_id INT, given_name "
+			        + "VARCHAR(50), family_name VARCHAR(50), preferred TINYINT, voided TINYINT)");
+			s.execute("CREATE TABLE person_attribute_type (person_attribute_type_id INT PRIMARY KEY, uuid "
+			        + "VARCHAR(38))");
+			s.execute("CREATE TABLE person_attribute (person_attribute_id INT PRIMARY KEY, person_id INT, value "
+			        + "VARCHAR(50), person_attribute_type_id INT, voided TINYINT)");
+			s.execute("INSERT INTO person VALUES (1, 'F'), (2, 'M'), (3, 'M')");
+			s.execute("INSERT INTO person_name VALUES (1, 1, 'Janet', 'Smith', 0, 0), (2, 1, 'Jane', 'Smith', 1, 0), "
+			        + "(3, 2, 'John', 'Doe', 1, 0), (4, 3, 'Horatio', 'Hornblower', 1, 0)");
+			s.execute("INSERT INTO person_attribute_type VALUES (5, '" + EMAIL_ATTR_TYPE_UUID + "')");
+			s.execute("INSERT INTO person_attribute VALUES (1, 1, 'jane@test.com', 5, 0), (2, 2, 'john@test.com', 5, "
+			        + "0)");
+		}
+		
+		cache = new PersonCache(2, 0);
+		Whitebox.setInternalState(cache, "emailPersonAttTypeUuid", EMAIL_ATTR_TYPE_UUID);
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE person_attribute");
+			s.execute("DROP TABLE person_attribute_type");
+			s.execute("DROP TABLE person_name");
+			s.execute("DROP TABLE person");
+		}
+	}
+	
+	@Test
+	public void getPersons_shouldLoadMissingPersonsAndServeSubsequentLookupsFromTheCache() throws Exception {
+		Map<Integer, PersonDetails> persons;
+		try (QuerySession session = new QuerySession(dataSource)) {
+			persons = cache.getPersons(List.of(1, 2), session);
+		}
+		
+		assertEquals(new PersonDetails(1, "F", "Jane", "Smith", "jane@test.com"), persons.get(1));
+		assertEquals(new PersonDetails(2, "M", "John", "Doe", "john@test.com"), persons.get(2));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("UPDATE person SET gender = 'O' WHERE person_id = 1");
+		}
+		
+		try (QuerySession session = new QuerySession(dataSource)) {
+			assertEquals("F", cache.getPersons(List.of(1), session).get(1).gender());
+		}
+		
+		assertEquals(1, cache.getHitCount());
+	}
+	
+	@Test
+	public void getPersons_shouldReloadAnInvalidatedPerson() throws Exception {
+		try (QuerySession session = new QuerySession(dataSource)) {
+			cache.getPersons(List.of(1), session);
+		}
+		
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("UPDATE person_attribute SET value = 'janet@test.com' WHERE person_attribute_id = 1");
+		}
+		
+		cache.invalidate(1);
+		
+		try (QuerySession session = new QuerySession(dataSource)) {
+			assertEquals("janet@test.com", cache.getPersons(List.of(1), session).get(1).email());
+		}
+		
+		assertEquals(2, cache.getMissCount());
+	}
+	
+	@Test
+	public void getPersons_shouldEvictTheLeastRecentlyUsedPersonWhenTheMaximumSizeIsExceeded() throws Exception {
+		try (QuerySession session = new QuerySession(dataSource)) {
+			cache.getPersons(List.of(1, 2), session);
+			cache.getPersons(List.of(1), session);
+			cache.getPersons(List.of(3), session);
+			cache.getPersons(List.of(1), session);
+		}
+		
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getHitCount());
+	}
+	
+	@Test
+	public void getPersons_shouldNotCachePersonsIfTheCacheIsInvalidatedWhileLoadingThem() throws Exception {
+		try (QuerySession session = Mockito.spy(new QuerySession(dataSource))) {
+			Mockito.doAnswer(invocation -> {
+				Object persons = invocation.callRealMethod();
+				cache.invalidate(1);
+				return persons;
+			}).when(session).executeQuery(anyString(), anyList(), any());
+			
+			assertEquals("jane@test.com", cache.getPersons(List.of(1), session).get(1).email());
+		}
+		
+		assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void getPersons_shouldFailIfTheEmailAttributeTypeDoesNotExist() throws Exception {
+		Whitebox.setInternalState(cache, "emailPersonAttTypeUuid", "bad-uuid");
+		
+		try (QuerySession session = new QuerySession(dataSource)) {
+			EIPException e = assertThrows(EIPException.class, () -> cache.getPersons(List.of(1), session));
+			assertEquals("No person attribute type found with uuid bad-uuid", e.getMessage());
+		}
+		
+		assertEquals(0, cache.size());
+	}
+	
+}
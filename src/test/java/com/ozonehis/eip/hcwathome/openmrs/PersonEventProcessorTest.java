@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.mysql.watcher.Event;
+
+@ExtendWith(MockitoExtension.class)
+public class PersonEventProcessorTest {
+	
+	@Mock
+	private PersonCache mockPersonCache;
+	
+	private PersonEventProcessor processor;
+	
+	@BeforeEach
+	public void setUp() {
+		processor = new PersonEventProcessor(mockPersonCache);
+	}
+	
+	@Test
+	public void process_shouldInvalidateThePersonForAPersonEvent() {
+		Event event = Mockito.mock(Event.class);
+		when(event.getTableName()).thenReturn("person");
+		when(event.getPrimaryKeyId()).thenReturn("5");
+		
+		processor.process(event);
+		
+		verify(mockPersonCache).invalidate(5);
+		verifyNoMoreInteractions(mockPersonCache);
+	}
+	
+	@Test
+	public void process_shouldInvalidateThePersonForAPersonNameEvent() {
+		Event event = Mockito.mock(Event.class);
+		when(event.getTableName()).thenReturn("person_name");
+		when(event.getCurrentState()).thenReturn(Map.<String, Object> of("person_name_id", 3, "person_id", 7));
+		
+		processor.process(event);
+		
+		verify(mockPersonCache).invalidate(7);
+		verifyNoMoreInteractions(mockPersonCache);
+	}
+	
+	@Test
+	public void process_shouldUseThePreviousStateForADeletedPersonAttribute() {
+		Event event = Mockito.mock(Event.class);
+		when(event.getTableName()).thenReturn("person_attribute");
+		when(event.getPreviousState()).thenReturn(Map.<String, Object> of("person_attribute_id", 2, "person_id", 8));
+		
+		processor.process(event);
+		
+		verify(mockPersonCache).invalidate(8);
+		verifyNoMoreInteractions(mockPersonCache);
+	}
+	
+	@Test
+	public void process_shouldClearTheCacheIfThePersonIdCannotBeResolved() {
+		Event event = Mockito.mock(Event.class);
+		when(event.getTableName()).thenReturn("person_attribute");
+		
+		processor.process(event);
+		
+		verify(mockPersonCache).invalidateAll();
+		verifyNoMoreInteractions(mockPersonCache);
+	}
+	
+}
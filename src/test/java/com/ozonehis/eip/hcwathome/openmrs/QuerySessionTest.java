@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powermock.reflect.Whitebox;
+
+public class QuerySessionTest {
+	
+	private static final String QUERY = "SELECT gender FROM person WHERE person_id = ?";
+	
+	private JdbcDataSource dataSource;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		dataSource = spy(new JdbcDataSource());
+		dataSource.setURL("jdbc:h2:mem:querysession;DB_CLOSE_DELAY=-1");
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("CREATE TABLE person (person_id INT PRIMARY KEY, gender VARCHAR(1))");
+			s.execute("INSERT INTO person VALUES (1, 'M'), (2, 'F')");
+		}
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE person");
+		}
+	}
+	
+	@Test
+	public void shouldUseASingleConnectionAndPrepareEachStatementOnce() throws Exception {
+		QuerySession session = new QuerySession(dataSource);
+		Connection connection;
+		try (session) {
+			assertEquals("M", session.querySingleValue(QUERY, List.of(1), String.class));
+			assertEquals("F", session.querySingleValue(QUERY, List.of(2), String.class));
+			assertEquals(List.of("F"), session.executeQuery(QUERY, List.of(2), r -> r.getString(1)));
+			assertEquals(1, session.executeUpdate("UPDATE person SET gender = 'O' WHERE person_id = ?", List.of(1)));
+			connection = session.getConnection();
+			Map<String, PreparedStatement> statements = Whitebox.getInternalState(session, "statements");
+			assertEquals(2, statements.size());
+		}
+		
+		//One connection for setUp and one for the session
+		verify(dataSource, times(2)).getConnection();
+		assertTrue(connection.isClosed());
+	}
+	
+	@Test
+	public void close_shouldNotOpenAConnectionIfNoStatementWasExecuted() throws Exception {
+		new QuerySession(dataSource).close();
+		
+		//Only the connection from setUp
+		verify(dataSource, times(1)).getConnection();
+	}
+	
+	@Test
+	public void executeBatch_shouldApplyAllTheUpdatesInATransaction() throws Exception {
+		final String update = "UPDATE person SET gender = 'O' WHERE person_id = ? AND gender = ?";
+		try (QuerySession session = new QuerySession(dataSource)) {
+			session.beginTransaction();
+			int[] counts = session.executeBatch(update, List.of(List.of(1, "M"), List.of(2, "M")));
+			session.commit();
+			
+			assertArrayEquals(new int[] { 1, 0 }, counts);
+			assertTrue(session.getConnection().getAutoCommit());
+		}
+		
+		assertEquals("O", DbUtils.querySingleValue(QUERY, dataSource, List.of(1), String.class));
+		assertEquals("F", DbUtils.querySingleValue(QUERY, dataSource, List.of(2), String.class));
+	}
+	
+	@Test
+	public void close_shouldRollbackAnUncommittedTransaction() throws Exception {
+		try (QuerySession session = new QuerySession(dataSource)) {
+			session.beginTransaction();
+			session.executeBatch("UPDATE person SET gender = 'O' WHERE person_id = ?", List.of(List.of(1), List.of(2)));
+		}
+		
+		assertEquals("M", DbUtils.querySingleValue(QUERY, dataSource, List.of(1), String.class));
+		assertEquals("F", DbUtils.querySingleValue(QUERY, dataSource, List.of(2), String.class));
+	}
+	
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SyncStateStoreTest {
+	
+	private JdbcDataSource dataSource;
+	
+	private SyncStateStore store;
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:syncstate;DB_CLOSE_DELAY=-1");
+		store = new SyncStateStore(dataSource);
+		store.afterPropertiesSet();
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+			s.execute("DROP TABLE hcw_appointment_sync_state");
+		}
+	}
+	
+	@Test
+	public void afterPropertiesSet_shouldNotFailIfTheTableAlreadyExists() throws Exception {
+		store.afterPropertiesSet();
+	}
+	
+	@Test
+	public void save_shouldInsertAndThenUpdateTheSyncState() throws Exception {
+		final String uuid = "appointment-uuid";
+		assertNull(store.get(uuid));
+		
+		store.save(new SyncState(uuid, "12", "1", null));
+		assertEquals(new SyncState(uuid, "12", "1", null), store.get(uuid));
+		
+		store.save(new SyncState(uuid, "12", null, "hash"));
+		assertEquals(new SyncState(uuid, "12", null, "hash"), store.get(uuid));
+	}
+	
+	@Test
+	public void remove_shouldRemoveTheSyncState() throws Exception {
+		final String uuid = "appointment-uuid";
+		store.save(new SyncState(uuid, "12", "1", null));
+		
+		store.remove(uuid);
+		
+		assertNull(store.get(uuid));
+	}
+	
+}
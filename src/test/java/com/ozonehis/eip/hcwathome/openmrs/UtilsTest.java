@@ -8,15 +8,12 @@
 package com.ozonehis.eip.hcwathome.openmrs;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.Mockito.when;
 
 import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import javax.sql.DataSource;
 
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Appointment.AppointmentStatus;
@@ -28,34 +25,11 @@ import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Identifier.IdentifierUse;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Practitioner;
-import org.junit.jupiter.api.AfterEach;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.Mock;
-import org.mockito.MockedStatic;
-import org.mockito.Mockito;
-import org.mockito.junit.jupiter.MockitoExtension;
+import org.openmrs.eip.EIPException;
 
-@ExtendWith(MockitoExtension.class)
 public class UtilsTest {
 	
-	private static MockedStatic<DbUtils> mockedDbUtils;
-	
-	@Mock
-	private DataSource mockDataSource;
-	
-	@BeforeEach
-	public void setUp() {
-		mockedDbUtils = Mockito.mockStatic(DbUtils.class);
-	}
-	
-	@AfterEach
-	public void tearDown() {
-		mockedDbUtils.close();
-		TestUtils.setFieldValue(Utils.class, "emailPersonAttrTypeId", null);
-	}
-	
 	@Test
 	public void convertGender_shouldConvertTheGenderStringToFhirEquivalent() {
 		assertEquals(AdministrativeGender.MALE, Utils.convertGender("m"));
@@ -80,23 +54,15 @@ public class UtilsTest {
 	}
 	
 	@Test
-	public void updateFhirAppointment_shouldUpdateTheHcwAppointmentWithOpenmrsData() throws Exception {
-		final Integer appointmentId = 2;
-		final Integer patientId = 5;
-		final Integer providerPersonId = 8;
-		final Integer emailPersonAttrTypeId = 10;
+	public void updateFhirAppointment_shouldUpdateTheHcwAppointmentWithOpenmrsData() {
 		final String newPatientEmail = "email@new.new";
 		final String newProviderEmail = "provider@new.new";
 		final String newGivenName = "John";
 		final String newFamilyName = "Doe";
-		Map<String, Object> openmrsAppointment = new HashMap<>();
 		LocalDateTime start = LocalDateTime.of(2025, 10, 21, 14, 00, 00);
 		LocalDateTime end = LocalDateTime.of(2025, 10, 21, 14, 30, 00);
-		openmrsAppointment.put("status", "Cancelled");
-		openmrsAppointment.put("patient_appointment_id", appointmentId);
-		openmrsAppointment.put("patient_id", patientId);
-		openmrsAppointment.put("start_date_time", start);
-		openmrsAppointment.put("end_date_time", end);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(2, 5, "Cancelled", start, end, false, "F", newGivenName,
+		        newFamilyName, newPatientEmail, 8, newProviderEmail);
 		Appointment hcwAppointment = new Appointment();
 		hcwAppointment.setStatus(AppointmentStatus.PROPOSED);
 		Patient hcwPatient = new Patient();
@@ -109,19 +75,8 @@ public class UtilsTest {
 		hcwAppointment.setStart(Utils.convertToDate(LocalDateTime.of(2025, 10, 21, 12, 00, 00)));
 		hcwAppointment.setEnd(Utils.convertToDate(LocalDateTime.of(2025, 10, 21, 12, 30, 00)));
 		hcwPatient.addName().setUse(NameUse.USUAL).addGiven("Horatio").setFamily("Hornblower");
-		when(DbUtils.executeQuery(Utils.QUERY_PERSON, mockDataSource, List.of(patientId)))
-		        .thenReturn(List.of(Map.of("gender", "F")));
-		TestUtils.setFieldValue(Utils.class, "emailPersonAttrTypeId", emailPersonAttrTypeId);
-		when(DbUtils.executeQuery(Utils.QUERY_EMAIL, mockDataSource, List.of(patientId, emailPersonAttrTypeId)))
-		        .thenReturn(List.of(Map.of("value", newPatientEmail)));
-		when(DbUtils.executeQuery(Utils.QUERY_NAME, mockDataSource, List.of(patientId)))
-		        .thenReturn(List.of(Map.of("given_name", newGivenName, "family_name", newFamilyName)));
-		when(DbUtils.executeQuery(Utils.QUERY_PROV_PERSON_ID, mockDataSource, List.of(appointmentId)))
-		        .thenReturn(List.of(Map.of("person_id", providerPersonId)));
-		when(DbUtils.executeQuery(Utils.QUERY_EMAIL, mockDataSource, List.of(providerPersonId, emailPersonAttrTypeId)))
-		        .thenReturn(List.of(Map.of("value", newProviderEmail)));
 		
-		assertTrue(Utils.updateFhirAppointment(hcwAppointment, openmrsAppointment, null, mockDataSource));
+		assertTrue(Utils.updateFhirAppointment(hcwAppointment, snapshot));
 		
 		assertEquals(AppointmentStatus.CANCELLED, hcwAppointment.getStatus());
 		assertEquals(Utils.convertToDate(start), hcwAppointment.getStart());
@@ -135,39 +90,30 @@ public class UtilsTest {
 	}
 	
 	@Test
-	public void buildFhirAppointment_shouldCreateTheHcwAppointmentWithOpenmrsData() throws Exception {
+	public void updateFhirAppointment_shouldReturnFalseIfNothingHasChanged() {
+		LocalDateTime start = LocalDateTime.of(2025, 10, 21, 14, 00, 00);
+		LocalDateTime end = LocalDateTime.of(2025, 10, 21, 14, 30, 00);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(2, 5, "Scheduled", start, end, false, "F", "Jane", "Doe",
+		        "patient@test.com", 8, "provider@test.com");
+		Appointment hcwAppointment = Utils.buildFhirAppointment("test-uuid", snapshot, "test-id-system");
+		
+		assertFalse(Utils.updateFhirAppointment(hcwAppointment, snapshot));
+	}
+	
+	@Test
+	public void buildFhirAppointment_shouldCreateTheHcwAppointmentWithOpenmrsData() {
 		final String uuid = "test-uuid";
-		final Integer appointmentId = 3;
-		final Integer patientId = 7;
-		final Integer providerPersonId = 9;
-		final Integer emailPersonAttrTypeId = 11;
 		final String patientEmail = "patient@test.com";
 		final String providerEmail = "provider@test.com";
 		final String givenName = "Jane";
 		final String familyName = "Smith";
 		final String idSystem = "test-id-system";
-		Map<String, Object> openmrsAppointment = new HashMap<>();
 		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
 		LocalDateTime end = LocalDateTime.of(2025, 11, 15, 10, 30, 00);
-		openmrsAppointment.put("status", "Scheduled");
-		openmrsAppointment.put("patient_appointment_id", appointmentId);
-		openmrsAppointment.put("patient_id", patientId);
-		openmrsAppointment.put("start_date_time", start);
-		openmrsAppointment.put("end_date_time", end);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(3, 7, "Scheduled", start, end, false, "M", givenName,
+		        familyName, patientEmail, 9, providerEmail);
 		
-		when(DbUtils.executeQuery(Utils.QUERY_PERSON, mockDataSource, List.of(patientId)))
-		        .thenReturn(List.of(Map.of("gender", "M")));
-		TestUtils.setFieldValue(Utils.class, "emailPersonAttrTypeId", emailPersonAttrTypeId);
-		when(DbUtils.executeQuery(Utils.QUERY_EMAIL, mockDataSource, List.of(patientId, emailPersonAttrTypeId)))
-		        .thenReturn(List.of(Map.of("value", patientEmail)));
-		when(DbUtils.executeQuery(Utils.QUERY_NAME, mockDataSource, List.of(patientId)))
-		        .thenReturn(List.of(Map.of("given_name", givenName, "family_name", familyName)));
-		when(DbUtils.executeQuery(Utils.QUERY_PROV_PERSON_ID, mockDataSource, List.of(appointmentId)))
-		        .thenReturn(List.of(Map.of("person_id", providerPersonId)));
-		when(DbUtils.executeQuery(Utils.QUERY_EMAIL, mockDataSource, List.of(providerPersonId, emailPersonAttrTypeId)))
-		        .thenReturn(List.of(Map.of("value", providerEmail)));
-		
-		Appointment hcwAppointment = Utils.buildFhirAppointment(uuid, openmrsAppointment, null, idSystem, mockDataSource);
+		Appointment hcwAppointment = Utils.buildFhirAppointment(uuid, snapshot, idSystem);
 		
 		assertEquals(AppointmentStatus.BOOKED, hcwAppointment.getStatus());
 		assertEquals(1, hcwAppointment.getIdentifier().size());
@@ -195,4 +141,59 @@ public class UtilsTest {
 		assertEquals(providerEmail, practitioner.getTelecom().get(0).getValue());
 	}
 	
+	@Test
+	public void buildFhirAppointment_shouldFailIfThePatientHasNoEmail() {
+		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(3, 7, "Scheduled", start, start, false, "M", "Jane",
+		        "Smith", null, 9, "provider@test.com");
+		
+		EIPException e = assertThrows(EIPException.class, () -> Utils.buildFhirAppointment("uuid", snapshot, "system"));
+		
+		assertEquals("Patient email address not found", e.getMessage());
+	}
+	
+	@Test
+	public void buildFhirAppointment_shouldFailIfTheProviderHasNoEmail() {
+		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(3, 7, "Scheduled", start, start, false, "M", "Jane",
+		        "Smith", "patient@test.com", null, null);
+		
+		EIPException e = assertThrows(EIPException.class, () -> Utils.buildFhirAppointment("uuid", snapshot, "system"));
+		
+		assertEquals("Provider email address not found", e.getMessage());
+	}
+	
+	@Test
+	public void computeContentHash_shouldOnlyChangeWhenASyncedFieldChanges() {
+		LocalDateTime start = LocalDateTime.of(2025, 11, 15, 10, 00, 00);
+		LocalDateTime end = LocalDateTime.of(2025, 11, 15, 10, 30, 00);
+		AppointmentSnapshot snapshot = new AppointmentSnapshot(1, 2, "Scheduled", start, end, false, "F", "Jane",
+		        "Smith", "patient@test.com", 3, "provider@test.com");
+		AppointmentSnapshot sameFields = new AppointmentSnapshot(4, 5, "Scheduled", start, end, true, "F", "Jane",
+		        "Smith", "patient@test.com", 6, "provider@test.com");
+		AppointmentSnapshot newEnd = new AppointmentSnapshot(1, 2, "Scheduled", start, end.plusMinutes(15), false, "F",
+		        "Jane", "Smith", "patient@test.com", 3, "provider@test.com");
+		
+		final String hash = Utils.computeContentHash(snapshot);
+		
+		assertEquals(64, hash.length());
+		assertEquals(hash, Utils.computeContentHash(sameFields));
+		assertNotEquals(hash, Utils.computeContentHash(newEnd));
+	}
+	
+	@Test
+	public void computeContentHash_shouldNotCollideWhenValuesAreShiftedBetweenFields() {
+		AppointmentSnapshot snapshot1 = new AppointmentSnapshot(1, 2, "Scheduled", null, null, false, "F", "Ja",
+		        "neSmith", null, 3, null);
+		AppointmentSnapshot snapshot2 = new AppointmentSnapshot(1, 2, "Scheduled", null, null, false, "F", "Jane",
+		        "Smith", null, 3, null);
+		AppointmentSnapshot snapshot3 = new AppointmentSnapshot(1, 2, "Scheduled", null, null, false, "F", "", null,
+		        null, 3, null);
+		AppointmentSnapshot snapshot4 = new AppointmentSnapshot(1, 2, "Scheduled", null, null, false, "F", null, "",
+		        null, 3, null);
+		
+		assertNotEquals(Utils.computeContentHash(snapshot1), Utils.computeContentHash(snapshot2));
+		assertNotEquals(Utils.computeContentHash(snapshot3), Utils.computeContentHash(snapshot4));
+	}
+	
 }
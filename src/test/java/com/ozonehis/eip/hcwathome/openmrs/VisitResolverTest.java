@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.hcwathome.openmrs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VisitResolverTest {
+	
+	private static final String PATIENT_UUID = "patient-uuid";
+	
+	private static final Map<String, String> PARAMS = Map.of("patient", PATIENT_UUID, "includeInactive", "false", "v",
+	    "custom:(uuid)");
+	
+	@Mock
+	private OpenMrsRestClient mockRestClient;
+	
+	@Test
+	public void getActiveVisitUuid_shouldFetchTheVisitOncePerRun() throws Exception {
+		VisitResolver resolver = new VisitResolver(mockRestClient, 0);
+		when(mockRestClient.search("visit", PARAMS)).thenReturn("{\"results\":[{\"uuid\":\"visit-uuid\"}]}"
+		        .getBytes(UTF_8));
+		resolver.beginRun();
+		
+		assertEquals("visit-uuid", resolver.getActiveVisitUuid(PATIENT_UUID));
+		assertEquals("visit-uuid", resolver.getActiveVisitUuid(PATIENT_UUID));
+		resolver.beginRun();
+		assertEquals("visit-uuid", resolver.getActiveVisitUuid(PATIENT_UUID));
+		
+		verify(mockRestClient, times(2)).search("visit", PARAMS);
+		assertEquals(2, resolver.getRestCallCount());
+		assertEquals(1, resolver.getSavedCallCount());
+	}
+	
+	@Test
+	public void getActiveVisitUuid_shouldKeepTheVisitAcrossRunsWithinTheTimeToLive() throws Exception {
+		VisitResolver resolver = new VisitResolver(mockRestClient, 60000);
+		when(mockRestClient.search("visit", PARAMS)).thenReturn("{\"results\":[]}".getBytes(UTF_8));
+		resolver.beginRun();
+		
+		assertNull(resolver.getActiveVisitUuid(PATIENT_UUID));
+		resolver.beginRun();
+		assertNull(resolver.getActiveVisitUuid(PATIENT_UUID));
+		
+		verify(mockRestClient).search("visit", PARAMS);
+		assertEquals(1, resolver.getSavedCallCount());
+	}
+	
+	@Test
+	public void parseVisitUuid_shouldReturnTheUuidIfThereIsExactlyOneVisit() throws Exception {
+		final String json = "{\"links\":[{\"rel\":\"self\",\"uri\":\"x\"}],\"results\":[{\"links\":[{\"uuid\":\"x\"}],"
+		        + "\"uuid\":\"visit-uuid\",\"display\":{\"a\":1}}]}";
+		
+		assertEquals("visit-uuid", VisitResolver.parseVisitUuid(json.getBytes(UTF_8)));
+	}
+	
+	@Test
+	public void parseVisitUuid_shouldReturnNullIfThereAreNoOrMultipleVisits() throws Exception {
+		assertNull(VisitResolver.parseVisitUuid("{\"results\":[]}".getBytes(UTF_8)));
+		assertNull(VisitResolver.parseVisitUuid("{}".getBytes(UTF_8)));
+		assertNull(VisitResolver.parseVisitUuid("{\"results\":[{\"uuid\":\"v1\"},{\"uuid\":\"v2\"}]}".getBytes(UTF_8)));
+	}
+	
+}